@@ -0,0 +1,167 @@
+package org.labkey.api.ldk;
+
+/**
+ * The usage of one index or table over a period, summarized from the snapshots taken by LDK.  Counters are the sum of the changes between consecutive
+ * snapshots of the period, where a counter that went down is taken to have been reset, or the totals since the database statistics were last reset
+ * if there is only one snapshot.
+ */
+public class IndexUsage
+{
+    public static final String TYPE_INDEX = "index";
+    public static final String TYPE_TABLE = "table";
+    public static final String TYPE_MISSING = "missing";
+
+    private String _rowType;
+    private String _schemaName;
+    private String _tableName;
+    private String _indexName;
+    private long _reads;
+    private long _writes;
+    private long _seqScans;
+    private Long _sizeBytes;
+    private Long _statementCalls;
+    private String _missingIndexColumns;
+    private Double _improvementMeasure;
+    private double _periodDays;
+
+    /**
+     * @return TYPE_INDEX, TYPE_TABLE, or TYPE_MISSING for an index suggested by SQL Server's missing index statistics
+     */
+    public String getRowType()
+    {
+        return _rowType;
+    }
+
+    public void setRowType(String rowType)
+    {
+        _rowType = rowType;
+    }
+
+    public String getSchemaName()
+    {
+        return _schemaName;
+    }
+
+    public void setSchemaName(String schemaName)
+    {
+        _schemaName = schemaName;
+    }
+
+    public String getTableName()
+    {
+        return _tableName;
+    }
+
+    public void setTableName(String tableName)
+    {
+        _tableName = tableName;
+    }
+
+    public String getIndexName()
+    {
+        return _indexName;
+    }
+
+    public void setIndexName(String indexName)
+    {
+        _indexName = indexName;
+    }
+
+    /**
+     * @return the number of scans, seeks or lookups that used this index, or that used any index of this table
+     */
+    public long getReads()
+    {
+        return _reads;
+    }
+
+    public void setReads(long reads)
+    {
+        _reads = reads;
+    }
+
+    /**
+     * @return the number of rows inserted, updated or deleted in the table on Postgres, or the number of updates to this index on SQL Server
+     */
+    public long getWrites()
+    {
+        return _writes;
+    }
+
+    public void setWrites(long writes)
+    {
+        _writes = writes;
+    }
+
+    /**
+     * @return the number of sequential scans of the table
+     */
+    public long getSeqScans()
+    {
+        return _seqScans;
+    }
+
+    public void setSeqScans(long seqScans)
+    {
+        _seqScans = seqScans;
+    }
+
+    public Long getSizeBytes()
+    {
+        return _sizeBytes;
+    }
+
+    public void setSizeBytes(Long sizeBytes)
+    {
+        _sizeBytes = sizeBytes;
+    }
+
+    /**
+     * @return the number of statements that referenced this table, if pg_stat_statements is installed
+     */
+    public Long getStatementCalls()
+    {
+        return _statementCalls;
+    }
+
+    public void setStatementCalls(Long statementCalls)
+    {
+        _statementCalls = statementCalls;
+    }
+
+    /**
+     * @return the key columns of a missing index, comma separated, followed by any included columns as: include:col1,col2
+     */
+    public String getMissingIndexColumns()
+    {
+        return _missingIndexColumns;
+    }
+
+    public void setMissingIndexColumns(String missingIndexColumns)
+    {
+        _missingIndexColumns = missingIndexColumns;
+    }
+
+    public Double getImprovementMeasure()
+    {
+        return _improvementMeasure;
+    }
+
+    public void setImprovementMeasure(Double improvementMeasure)
+    {
+        _improvementMeasure = improvementMeasure;
+    }
+
+    /**
+     * @return the days between the first and last snapshot that included this index or table, which is zero if there was only one
+     */
+    public double getPeriodDays()
+    {
+        return _periodDays;
+    }
+
+    public void setPeriodDays(double periodDays)
+    {
+        _periodDays = periodDays;
+    }
+}
@@ -79,4 +79,14 @@ static public void setInstance(LDKService instance)
     abstract public void customizeButtonBar(AbstractTableInfo ti, List<ButtonConfigFactory> buttons);
 
     abstract public User getBackgroundAdminUser();
+
+    /**
+     * Records the current index and table usage statistics of the LabKey database.  This also runs once a day in the background.
+     */
+    abstract public void snapshotIndexUsage();
+
+    /**
+     * @return the usage of each index and table over the past number of days, based on the recorded snapshots
+     */
+    abstract public List<IndexUsage> getIndexUsage(int days);
 }
@@ -23,7 +23,6 @@
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.data.ColumnInfo;
-import org.labkey.api.data.CompareType;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerFilter;
 import org.labkey.api.data.ContainerManager;
@@ -51,6 +50,8 @@
 import org.labkey.api.security.User;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -181,6 +182,14 @@ protected Map<String, Object> insertRow(User user, Container container, Map<Stri
         @Override
         public List<Map<String,Object>> insertRows(User user, Container container, List<Map<String, Object>> rows, BatchValidationException errors, @Nullable Map<Enum, Object> configParameters, @Nullable Map<String, Object> extraScriptContext) throws DuplicateKeyException, QueryUpdateServiceException, SQLException
         {
+            List<Object> keys = new ArrayList<>(rows.size());
+            for (Map<String,Object> row : rows)
+            {
+                if (row.get(_pseudoPk) != null)
+                    keys.add(row.get(_pseudoPk));
+            }
+            _keyManager.prefetch(container, keys);
+
             int idx = 1;
             for (Map<String,Object> row : rows)
             {
@@ -232,20 +241,40 @@ public DataIterator getDataIterator(DataIteratorContext context)
 
             final String containerColName = getContainerFilterColumn();
             final KeyManager keyManager = new KeyManager();
-            final SimpleTranslator it = new SimpleTranslator(input, context);
             final Map<String, Integer> inputColMap = new HashMap<String, Integer>();
             for (int idx = 1; idx <= input.getColumnCount(); idx++)
             {
                 ColumnInfo col = input.getColumnInfo(idx);
                 if (StringUtils.equalsIgnoreCase(_pseudoPk, col.getName()))
-                {
                     inputColMap.put(_pseudoPk, idx);
-                    continue;
-                }
+                else if (StringUtils.equalsIgnoreCase(containerColName, col.getName()))
+                    inputColMap.put(containerColName, idx);
+            }
+
+            if (inputColMap.containsKey(_pseudoPk) && context.getInsertOption() != QueryUpdateService.InsertOption.MERGE)
+            {
+                //the keys of each batch of rows are looked up together, rather than once per row in rowExists()
+                final int pkIdx = inputColMap.get(_pseudoPk);
+                final Integer containerIdx = inputColMap.get(containerColName);
+                input = new PrefetchingDataIterator(input, rows -> {
+                    Map<Container, List<Object>> keys = new HashMap<>();
+                    for (Object[] row : rows)
+                    {
+                        if (row[pkIdx] != null)
+                            keys.computeIfAbsent(getTargetContainer(containerIdx == null ? null : row[containerIdx]), x -> new ArrayList<>()).add(row[pkIdx]);
+                    }
+
+                    keys.forEach(keyManager::prefetch);
+                });
+            }
 
-                if (StringUtils.equalsIgnoreCase(getContainerFilterColumn(), col.getName()))
+            final SimpleTranslator it = new SimpleTranslator(input, context);
+            for (int idx = 1; idx <= input.getColumnCount(); idx++)
+            {
+                ColumnInfo col = input.getColumnInfo(idx);
+                if (StringUtils.equalsIgnoreCase(_pseudoPk, col.getName()))
                 {
-                    inputColMap.put(getContainerFilterColumn(), idx);
+                    continue;
                 }
 
                 it.addColumn(idx);
@@ -258,20 +287,7 @@ public DataIterator getDataIterator(DataIteratorContext context)
                 @Override
                 public Object call()
                 {
-                    Container c = null;
-                    if (inputColMap.containsKey(containerColName))
-                    {
-                        String containerId = (String)it.getInputColumnValue(inputColMap.get(containerColName));
-                        if (containerId != null)
-                            c = ContainerManager.getForId(containerId);
-                    }
-
-                    if (c == null)
-                    {
-                        c = getContainer();
-                    }
-
-                    assert c != null;
+                    Container c = getTargetContainer(inputColMap.containsKey(containerColName) ? it.getInputColumnValue(inputColMap.get(containerColName)) : null);
 
                     if (inputColMap.containsKey(_pseudoPk))
                     {
@@ -296,15 +312,49 @@ public Object call()
         }
     }
 
+    private Container getTargetContainer(@Nullable Object containerId)
+    {
+        Container c = null;
+        if (containerId != null)
+            c = ContainerManager.getForId((String)containerId);
+
+        if (c == null)
+        {
+            c = getContainer();
+        }
+
+        assert c != null;
+
+        return c;
+    }
+
     private class KeyManager
     {
         private Set<Object> _encounteredKeys = new HashSet<>();
 
+        //one checker per shared schema owner, since the same import can target several containers
+        private final Map<String, UniqueKeyChecker> _checkers = new HashMap<>();
+
         public KeyManager()
         {
 
         }
 
+        private UniqueKeyChecker getChecker(Container c)
+        {
+            Container target = c.getContainerFor(ContainerType.DataType.sharedSchemaOwner);
+
+            return _checkers.computeIfAbsent(target.getId(), id -> new UniqueKeyChecker(_rootTable, _pseudoPk, ContainerFilter.current(target).createFilterClause(_rootTable.getSchema(), getContainerFieldKey())));
+        }
+
+        /**
+         * Looks up these keys in bulk, so that rowExists() does not query the database once per row
+         */
+        public void prefetch(Container c, Collection<Object> keys)
+        {
+            getChecker(c).prefetch(keys);
+        }
+
         public boolean rowExists(Container c, Object key)
         {
             ColumnInfo pkCol = getColumn(FieldKey.fromString(_pseudoPk));
@@ -318,20 +368,12 @@ public boolean rowExists(Container c, Object key)
                 return false;
             }
 
-            boolean exists = _encounteredKeys.contains(key);
-            _encounteredKeys.add(key);
-
-            if (exists)
+            if (!_encounteredKeys.add(key))
             {
-                return exists;
+                return true;
             }
 
-            Container target = c.getContainerFor(ContainerType.DataType.sharedSchemaOwner);
-            SimpleFilter filter = new SimpleFilter(FieldKey.fromString(_pseudoPk), key, CompareType.EQUAL);
-            filter.addClause(ContainerFilter.current(target).createFilterClause(_rootTable.getSchema(), getContainerFieldKey()));
-            TableSelector ts = new TableSelector(_rootTable, Collections.singleton(_pseudoPk), filter, null);
-
-            return ts.getRowCount() > 0;
+            return getChecker(c).exists(key);
         }
     }
 }
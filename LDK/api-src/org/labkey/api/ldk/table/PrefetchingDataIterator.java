@@ -0,0 +1,89 @@
+package org.labkey.api.ldk.table;
+
+import org.labkey.api.dataiterator.DataIterator;
+import org.labkey.api.dataiterator.WrapperDataIterator;
+import org.labkey.api.query.BatchValidationException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Reads ahead a batch of rows from the input, and passes them to a handler before any of them are returned.  This lets the keys of a batch be
+ * looked up together, for example with UniqueKeyChecker.prefetch(), rather than once per imported row.
+ * Each row is passed as its column values, indexed as in DataIterator.get().
+ */
+public class PrefetchingDataIterator extends WrapperDataIterator
+{
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final int _batchSize;
+    private final Consumer<List<Object[]>> _handler;
+
+    private final Deque<Object[]> _batch = new ArrayDeque<>();
+    private Object[] _current = null;
+
+    public PrefetchingDataIterator(DataIterator in, Consumer<List<Object[]>> handler)
+    {
+        this(in, DEFAULT_BATCH_SIZE, handler);
+    }
+
+    public PrefetchingDataIterator(DataIterator in, int batchSize, Consumer<List<Object[]>> handler)
+    {
+        super(in);
+        _batchSize = batchSize;
+        _handler = handler;
+    }
+
+    @Override
+    public boolean next() throws BatchValidationException
+    {
+        if (_batch.isEmpty())
+            readBatch();
+
+        _current = _batch.poll();
+
+        return _current != null;
+    }
+
+    private void readBatch() throws BatchValidationException
+    {
+        List<Object[]> rows = new ArrayList<>(_batchSize);
+        while (rows.size() < _batchSize && super.next())
+        {
+            Object[] row = new Object[getColumnCount() + 1];
+            for (int i = 0; i < row.length; i++)
+            {
+                row[i] = super.get(i);
+            }
+            rows.add(row);
+        }
+
+        if (!rows.isEmpty())
+        {
+            _handler.accept(rows);
+            _batch.addAll(rows);
+        }
+    }
+
+    @Override
+    public Object get(int i)
+    {
+        return _current[i];
+    }
+
+    @Override
+    public Supplier<Object> getSupplier(int i)
+    {
+        return () -> get(i);
+    }
+
+    @Override
+    public boolean isScrollable()
+    {
+        return false;
+    }
+}
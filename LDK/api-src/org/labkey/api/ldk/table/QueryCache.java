@@ -15,6 +15,7 @@
  */
 package org.labkey.api.ldk.table;
 
+import jakarta.servlet.http.HttpServletRequest;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.labkey.api.assay.AssayProtocolSchema;
@@ -30,38 +31,108 @@
 import org.labkey.api.query.QueryService;
 import org.labkey.api.query.UserSchema;
 import org.labkey.api.security.User;
+import org.labkey.api.view.HttpView;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This helper can centralize caching of TableInfos and ColumnInfos.  If code is expected to repeatedly request
  * these, it could provide a perf win.
+ *
+ * Instances are safe for concurrent use.  Each type of object is held in a map bounded by size and age, evicting the least recently used entry.
+ * Because UserSchemas and TableInfos are built for a specific user and request, getRequestCache() is the preferred way to share one instance
+ * across the code that renders a single request.
  */
 public class QueryCache
 {
     private static final Logger _log = LogManager.getLogger(QueryCache.class);
 
-    private Map<String, AssayProtocolSchema> _cachedAssaySchemas = new HashMap<>();
-    private Map<String, UserSchema> _cachedUserSchemas = new HashMap<>();
-    private Map<String, TableInfo> _cachedQueries = new HashMap<>();
-    private Map<String, ColumnInfo> _cachedColumns = new HashMap<>();
+    public static final int DEFAULT_MAX_SIZE = 1000;
+    public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+    private static final String REQUEST_ATTRIBUTE = QueryCache.class.getName();
+
+    //totals across all instances, for monitoring
+    private static final AtomicLong _totalHits = new AtomicLong();
+    private static final AtomicLong _totalMisses = new AtomicLong();
+    private static final AtomicLong _totalEvictions = new AtomicLong();
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    private final BoundedMap<AssayProtocolSchema> _cachedAssaySchemas;
+    private final BoundedMap<UserSchema> _cachedUserSchemas;
+    private final BoundedMap<TableInfo> _cachedQueries;
+    private final BoundedMap<ColumnInfo> _cachedColumns;
 
     public QueryCache()
     {
+        this(DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param maxSize The maximum number of entries held for each type of object
+     * @param ttlMillis The maximum age of an entry
+     */
+    public QueryCache(int maxSize, long ttlMillis)
+    {
+        _cachedAssaySchemas = new BoundedMap<>(maxSize, ttlMillis);
+        _cachedUserSchemas = new BoundedMap<>(maxSize, ttlMillis);
+        _cachedQueries = new BoundedMap<>(maxSize, ttlMillis);
+        _cachedColumns = new BoundedMap<>(maxSize, ttlMillis);
+    }
+
+    /**
+     * Shares this instance with the current request, such as a mock request used by a worker thread acting on behalf of another request
+     */
+    public static void setRequestCache(QueryCache cache)
+    {
+        HttpServletRequest request = HttpView.currentRequest();
+        if (request == null)
+            return;
 
+        synchronized (request)
+        {
+            request.setAttribute(REQUEST_ATTRIBUTE, cache);
+        }
+    }
+
+    /**
+     * @return The instance shared by the current request, or a new instance if there is no current request (such as in a background thread)
+     */
+    public static QueryCache getRequestCache()
+    {
+        HttpServletRequest request = HttpView.currentRequest();
+        if (request == null)
+            return new QueryCache();
+
+        synchronized (request)
+        {
+            QueryCache ret = (QueryCache)request.getAttribute(REQUEST_ATTRIBUTE);
+            if (ret == null)
+            {
+                ret = new QueryCache();
+                request.setAttribute(REQUEST_ATTRIBUTE, ret);
+            }
+
+            return ret;
+        }
     }
 
     public UserSchema getUserSchema(Container targetContainer, User u, String schemaName)
     {
         String key = getUserSchemaKey(targetContainer, u, schemaName);
-        if (_cachedUserSchemas.containsKey(key))
+        Entry<UserSchema> cached = _cachedUserSchemas.get(key);
+        if (cached != null)
         {
-            return _cachedUserSchemas.get(key);
+            return cached.getValue();
         }
 
         UserSchema ret = QueryService.get().getUserSchema(u, targetContainer, schemaName);
@@ -73,9 +144,10 @@ public UserSchema getUserSchema(Container targetContainer, User u, String schema
     public AssayProtocolSchema getAssaySchema(Container targetContainer, User u, String providerName, ExpProtocol protocol)
     {
         String key = getAssaySchemaKey(targetContainer, u, providerName, protocol.getName());
-        if (_cachedAssaySchemas.containsKey(key))
+        Entry<AssayProtocolSchema> cached = _cachedAssaySchemas.get(key);
+        if (cached != null)
         {
-            return _cachedAssaySchemas.get(key);
+            return cached.getValue();
         }
 
         AssayProvider ap = AssayService.get().getProvider(providerName);
@@ -88,9 +160,10 @@ public AssayProtocolSchema getAssaySchema(Container targetContainer, User u, Str
     public TableInfo getTableInfo(Container targetContainer, User u, String schemaPath, String queryName)
     {
         String key = getQueryKey(targetContainer, u, schemaPath, queryName);
-        if (_cachedQueries.containsKey(key))
+        Entry<TableInfo> cached = _cachedQueries.get(key);
+        if (cached != null)
         {
-            return _cachedQueries.get(key);
+            return cached.getValue();
         }
         else
         {
@@ -175,12 +248,12 @@ public Map<FieldKey, ColumnInfo> getColumns(TableInfo ti, Set<FieldKey> keys)
         Map<FieldKey, ColumnInfo> ret = new HashMap<>();
         for (FieldKey fk : keys)
         {
-            String colKey = getColumnKey(ti, fk);
-            if (_cachedColumns.containsKey(colKey))
+            Entry<ColumnInfo> cached = _cachedColumns.get(getColumnKey(ti, fk));
+            if (cached != null)
             {
-                if (_cachedColumns.get(colKey) != null)
+                if (cached.getValue() != null)
                 {
-                    ret.put(fk, _cachedColumns.get(colKey));
+                    ret.put(fk, cached.getValue());
                 }
             }
             else
@@ -204,4 +277,109 @@ public Map<FieldKey, ColumnInfo> getColumns(TableInfo ti, Set<FieldKey> keys)
 
         return ret;
     }
+
+    public Map<String, Object> getStats()
+    {
+        return getStats(_hits, _misses, _evictions);
+    }
+
+    /**
+     * @return hit, miss and eviction counts summed across all instances since startup
+     */
+    public static Map<String, Object> getGlobalStats()
+    {
+        return getStats(_totalHits, _totalMisses, _totalEvictions);
+    }
+
+    private static Map<String, Object> getStats(AtomicLong hits, AtomicLong misses, AtomicLong evictions)
+    {
+        Map<String, Object> ret = new HashMap<>();
+        ret.put("hits", hits.get());
+        ret.put("misses", misses.get());
+        ret.put("evictions", evictions.get());
+
+        return ret;
+    }
+
+    private static class Entry<V>
+    {
+        private final V _value;
+        private final long _created = System.currentTimeMillis();
+
+        public Entry(V value)
+        {
+            _value = value;
+        }
+
+        public V getValue()
+        {
+            return _value;
+        }
+    }
+
+    /**
+     * A synchronized, access-ordered map that evicts the least recently used entry once it exceeds the max size, and ignores expired entries.
+     * Values can be null, which caches the fact that the object does not exist.
+     */
+    private class BoundedMap<V>
+    {
+        private final int _maxSize;
+        private final long _ttlMillis;
+        private final LinkedHashMap<String, Entry<V>> _map;
+
+        public BoundedMap(int maxSize, long ttlMillis)
+        {
+            _maxSize = maxSize;
+            _ttlMillis = ttlMillis;
+            _map = new LinkedHashMap<>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest)
+                {
+                    if (size() > _maxSize)
+                    {
+                        recordEviction();
+                        return true;
+                    }
+
+                    return false;
+                }
+            };
+        }
+
+        public synchronized Entry<V> get(String key)
+        {
+            Entry<V> ret = _map.get(key);
+            if (ret != null && System.currentTimeMillis() - ret._created > _ttlMillis)
+            {
+                _map.remove(key);
+                recordEviction();
+                ret = null;
+            }
+
+            if (ret == null)
+            {
+                _misses.incrementAndGet();
+                _totalMisses.incrementAndGet();
+            }
+            else
+            {
+                _hits.incrementAndGet();
+                _totalHits.incrementAndGet();
+            }
+
+            return ret;
+        }
+
+        public synchronized void put(String key, V value)
+        {
+            _map.put(key, new Entry<>(value));
+        }
+
+        private void recordEviction()
+        {
+            _evictions.incrementAndGet();
+            _totalEvictions.incrementAndGet();
+        }
+    }
 }
@@ -0,0 +1,193 @@
+package org.labkey.api.ldk.table;
+
+import org.apache.commons.beanutils.ConversionException;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.ConvertHelper;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.query.FieldKey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks whether key values already exist in one column of a table, within an optional scope such as a container.
+ * Callers can supply the keys they are about to check to prefetch(), which probes them in chunked IN queries, and any other key is checked individually.
+ * The cost therefore follows the number of keys checked rather than the size of the table.  Only if at least BULK_LOAD_MIN_KEYS keys are
+ * prefetched at once, and the scope holds no more than MAX_PREFETCH_ROWS rows, is every existing key loaded in one query instead.
+ * Keys are converted to the column's type, so values from scripts or JSON compare equal to those read from the database.  If the database
+ * compares strings case-insensitively, string keys are also compared ignoring case, so a key matched by the IN query is always found.
+ */
+public class UniqueKeyChecker
+{
+    public static final int MAX_PREFETCH_ROWS = 100000;
+    public static final int BULK_LOAD_MIN_KEYS = 5000;
+    private static final int IN_CLAUSE_SIZE = 500;
+
+    private final TableInfo _table;
+    private final String _colName;
+    private final Class<?> _javaClass;
+    private final boolean _ignoreCase;
+    private final SimpleFilter.FilterClause _scopeClause;
+
+    private final Set<Object> _existing = new HashSet<>();
+    private final Set<Object> _probed = new HashSet<>();
+    private boolean _allLoaded = false;
+    private boolean _bulkLoadChecked = false;
+
+    /**
+     * @param scopeClause an optional clause limiting the rows considered, such as a container filter
+     */
+    public UniqueKeyChecker(TableInfo table, String colName, @Nullable SimpleFilter.FilterClause scopeClause)
+    {
+        _table = table;
+        _colName = colName;
+        _scopeClause = scopeClause;
+
+        ColumnInfo col = table.getColumn(colName);
+        _javaClass = col == null ? null : col.getJavaClass();
+        _ignoreCase = !table.getSqlDialect().isCaseSensitive();
+    }
+
+    /**
+     * Looks up these keys in chunked IN queries, so later calls to exists() for them do not query the database
+     */
+    public void prefetch(Collection<?> keys)
+    {
+        if (_allLoaded)
+            return;
+
+        Set<Object> toProbe = new HashSet<>();
+        for (Object key : keys)
+        {
+            key = normalize(key);
+            if (key != null && !_probed.contains(key))
+                toProbe.add(key);
+        }
+
+        if (toProbe.size() >= BULK_LOAD_MIN_KEYS && loadAll())
+            return;
+
+        probe(new ArrayList<>(toProbe));
+    }
+
+    private void probe(List<Object> toProbe)
+    {
+        for (int i = 0; i < toProbe.size(); i += IN_CLAUSE_SIZE)
+        {
+            List<Object> chunk = toProbe.subList(i, Math.min(i + IN_CLAUSE_SIZE, toProbe.size()));
+            SimpleFilter filter = getScopeFilter();
+            filter.addInClause(FieldKey.fromString(_colName), chunk);
+
+            addExisting(new TableSelector(_table, Collections.singleton(_colName), filter, null).getArrayList(Object.class));
+            _probed.addAll(chunk);
+        }
+    }
+
+    /**
+     * @return true if a row with this key exists in the database
+     */
+    public boolean exists(Object key)
+    {
+        key = normalize(key);
+        if (key == null)
+            return false;
+
+        if (_allLoaded || _probed.contains(key))
+            return _existing.contains(key);
+
+        SimpleFilter filter = getScopeFilter();
+        filter.addCondition(FieldKey.fromString(_colName), key);
+        boolean exists = new TableSelector(_table, Collections.singleton(_colName), filter, null).exists();
+        if (exists)
+            _existing.add(key);
+
+        _probed.add(key);
+
+        return exists;
+    }
+
+    /**
+     * Converts the key to the column's type.  Keys that cannot be converted are returned unchanged.
+     */
+    public Object convert(Object key)
+    {
+        if (key == null || _javaClass == null || _javaClass.isInstance(key))
+            return key;
+
+        try
+        {
+            return ConvertHelper.convert(key, _javaClass);
+        }
+        catch (ConversionException e)
+        {
+            return key;
+        }
+    }
+
+    /**
+     * Converts the key to the column's type and, if the database ignores case, folds string keys to lower case.  Keys that are equal after
+     * this compare equal in the database.
+     */
+    public Object normalize(Object key)
+    {
+        key = convert(key);
+        if (_ignoreCase && key instanceof String s)
+            return s.toLowerCase();
+
+        return key;
+    }
+
+    /**
+     * Loads every existing key in the scope, if there are no more than MAX_PREFETCH_ROWS.  The size of the scope is only checked once.
+     * @return true if the keys were loaded
+     */
+    private boolean loadAll()
+    {
+        if (!_bulkLoadChecked)
+        {
+            _bulkLoadChecked = true;
+
+            TableSelector ts = new TableSelector(_table, Collections.singleton(_colName), getScopeFilter(), null);
+            if (ts.getRowCount() <= MAX_PREFETCH_ROWS)
+            {
+                addExisting(ts.getArrayList(Object.class));
+                _allLoaded = true;
+            }
+        }
+
+        return _allLoaded;
+    }
+
+    /**
+     * @return true if every existing key in the scope has been loaded, rather than only those probed
+     */
+    public boolean isAllLoaded()
+    {
+        return _allLoaded;
+    }
+
+    private void addExisting(Collection<Object> values)
+    {
+        for (Object value : values)
+        {
+            if (value != null)
+                _existing.add(normalize(value));
+        }
+    }
+
+    private SimpleFilter getScopeFilter()
+    {
+        SimpleFilter filter = new SimpleFilter();
+        if (_scopeClause != null)
+            filter.addClause(_scopeClause);
+
+        return filter;
+    }
+}
@@ -0,0 +1,19 @@
+CREATE TABLE ldk.index_usage_snapshots (
+    rowid INT IDENTITY(1, 1) NOT NULL,
+    snapshotDate DATETIME NOT NULL,
+    rowType varchar(20) NOT NULL,
+    schemaName varchar(200),
+    tableName varchar(200),
+    indexName varchar(200),
+    reads bigint,
+    writes bigint,
+    seqScans bigint,
+    sizeBytes bigint,
+    statementCalls bigint,
+    missingIndexColumns varchar(4000),
+    improvementMeasure float,
+
+    CONSTRAINT PK_index_usage_snapshots PRIMARY KEY (rowid)
+);
+
+CREATE INDEX IDX_index_usage_snapshots_table ON ldk.index_usage_snapshots (schemaName, tableName, snapshotDate);
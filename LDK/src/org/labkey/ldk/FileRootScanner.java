@@ -0,0 +1,293 @@
+package org.labkey.ldk;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.ShutdownListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes the total size and file count of a file root in a single pass, splitting subdirectories across a fork-join pool.
+ * Results are cached per root.  Once a snapshot is older than TTL_MILLIS it is still returned immediately, and a refresh is queued in the background.
+ * If several requests need the first scan of a root at once, only one scans it and the others wait for its result.
+ */
+public class FileRootScanner implements ShutdownListener
+{
+    private static final Logger _log = LogManager.getLogger(FileRootScanner.class);
+    private static final FileRootScanner _instance = new FileRootScanner();
+
+    public static final long TTL_MILLIS = 60 * 60 * 1000;
+    private static final int PARALLELISM = 4;
+
+    //subdirectories below this depth are walked sequentially within a single task
+    private static final int MAX_FORK_DEPTH = 3;
+
+    private final ForkJoinPool _pool = new ForkJoinPool(PARALLELISM);
+    private final ExecutorService _refreshExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "LDK File Root Scanner");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Map<Path, Snapshot> _snapshots = new ConcurrentHashMap<>();
+    private final Map<Path, Boolean> _pendingRefresh = new ConcurrentHashMap<>();
+    private final Map<Path, CompletableFuture<Snapshot>> _initialScans = new ConcurrentHashMap<>();
+
+    private FileRootScanner()
+    {
+        ContextListener.addShutdownListener(this);
+    }
+
+    public static FileRootScanner get()
+    {
+        return _instance;
+    }
+
+    /**
+     * Returns the cached snapshot for this root, scanning it on the calling thread only if it has never been scanned
+     */
+    public Snapshot getSnapshot(File root)
+    {
+        Path path = root.toPath().toAbsolutePath().normalize();
+        Snapshot existing = _snapshots.get(path);
+        if (existing == null)
+        {
+            return initialScan(path);
+        }
+
+        if (existing.isStale() && _pendingRefresh.putIfAbsent(path, true) == null)
+        {
+            _refreshExecutor.execute(() -> {
+                try
+                {
+                    scan(path);
+                }
+                catch (Exception e)
+                {
+                    _log.error("Unable to scan file root: " + path, e);
+                }
+                finally
+                {
+                    _pendingRefresh.remove(path);
+                }
+            });
+        }
+
+        return existing;
+    }
+
+    private Snapshot initialScan(Path root)
+    {
+        CompletableFuture<Snapshot> future = new CompletableFuture<>();
+        CompletableFuture<Snapshot> inProgress = _initialScans.putIfAbsent(root, future);
+        if (inProgress != null)
+        {
+            return inProgress.join();
+        }
+
+        try
+        {
+            //another request may have finished scanning this root since it was checked
+            Snapshot ret = _snapshots.get(root);
+            if (ret == null)
+                ret = scan(root);
+
+            future.complete(ret);
+            return ret;
+        }
+        catch (RuntimeException e)
+        {
+            future.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            _initialScans.remove(root, future);
+        }
+    }
+
+    private Snapshot scan(Path root)
+    {
+        long[] totals = _pool.invoke(new DirectoryTask(root, 0));
+        Snapshot ret = new Snapshot(totals[0], totals[1], new Date());
+        _snapshots.put(root, ret);
+
+        return ret;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "LDK File Root Scanner";
+    }
+
+    @Override
+    public void shutdownPre()
+    {
+        _refreshExecutor.shutdownNow();
+    }
+
+    @Override
+    public void shutdownStarted()
+    {
+        _pool.shutdownNow();
+    }
+
+    public static class Snapshot
+    {
+        private final long _size;
+        private final long _fileCount;
+        private final Date _scanDate;
+
+        public Snapshot(long size, long fileCount, Date scanDate)
+        {
+            _size = size;
+            _fileCount = fileCount;
+            _scanDate = scanDate;
+        }
+
+        public long getSize()
+        {
+            return _size;
+        }
+
+        public long getFileCount()
+        {
+            return _fileCount;
+        }
+
+        public Date getScanDate()
+        {
+            return _scanDate;
+        }
+
+        public boolean isStale()
+        {
+            return System.currentTimeMillis() - _scanDate.getTime() > TTL_MILLIS;
+        }
+    }
+
+    /**
+     * @return an array holding the total size and file count under this directory
+     */
+    private static class DirectoryTask extends RecursiveTask<long[]>
+    {
+        private final Path _dir;
+        private final int _depth;
+
+        public DirectoryTask(Path dir, int depth)
+        {
+            _dir = dir;
+            _depth = depth;
+        }
+
+        @Override
+        protected long[] compute()
+        {
+            long[] ret = new long[2];
+            if (_depth >= MAX_FORK_DEPTH)
+            {
+                walk(_dir, ret);
+                return ret;
+            }
+
+            List<DirectoryTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(_dir))
+            {
+                for (Path child : stream)
+                {
+                    BasicFileAttributes attrs = readAttributes(child);
+                    if (attrs == null || attrs.isSymbolicLink())
+                        continue;
+
+                    if (attrs.isDirectory())
+                    {
+                        DirectoryTask task = new DirectoryTask(child, _depth + 1);
+                        task.fork();
+                        subtasks.add(task);
+                    }
+                    else
+                    {
+                        ret[0] += attrs.size();
+                        ret[1]++;
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                //NOTE: this has been hit when there are bad symlinks or unreadable directories under a file root
+                _log.error("Unable to read directory: " + _dir, e);
+            }
+
+            for (DirectoryTask task : subtasks)
+            {
+                long[] totals = task.join();
+                ret[0] += totals[0];
+                ret[1] += totals[1];
+            }
+
+            return ret;
+        }
+
+        private static BasicFileAttributes readAttributes(Path path)
+        {
+            try
+            {
+                return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            }
+            catch (IOException e)
+            {
+                return null;
+            }
+        }
+
+        private static void walk(Path dir, long[] ret)
+        {
+            try
+            {
+                Files.walkFileTree(dir, new SimpleFileVisitor<>()
+                {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    {
+                        if (!attrs.isSymbolicLink())
+                        {
+                            ret[0] += attrs.size();
+                            ret[1]++;
+                        }
+
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e)
+                    {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+            catch (IOException e)
+            {
+                _log.error("Unable to read directory: " + dir, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package org.labkey.ldk;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.labkey.api.data.DbSchema;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.ldk.IndexUsage;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.ShutdownListener;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the usage statistics of each index and table in the LabKey database into ldk.index_usage_snapshots once a day.
+ * On Postgres these come from pg_stat_user_indexes and pg_stat_user_tables, plus pg_stat_statements if that extension is installed.  On SQL Server
+ * they come from dm_db_index_usage_stats, along with the missing index statistics.  These counters are cumulative since the server last restarted
+ * or the statistics were reset, so usage over a period is summed from the differences between consecutive snapshots.
+ */
+public class IndexUsageCollector implements ShutdownListener
+{
+    private static final Logger _log = LogManager.getLogger(IndexUsageCollector.class);
+    private static final IndexUsageCollector _instance = new IndexUsageCollector();
+
+    public static final int RETENTION_DAYS = 90;
+    public static final int SNAPSHOT_INTERVAL_HOURS = 24;
+
+    //the number of the most scanned tables that are matched against pg_stat_statements
+    private static final int MAX_STATEMENT_TABLES = 50;
+
+    private static final List<String> COLUMNS = Arrays.asList("snapshotDate", "rowType", "schemaName", "tableName", "indexName", "reads", "writes", "seqScans", "sizeBytes", "statementCalls", "missingIndexColumns", "improvementMeasure");
+
+    private ScheduledExecutorService _executor = null;
+
+    private IndexUsageCollector()
+    {
+
+    }
+
+    public static IndexUsageCollector get()
+    {
+        return _instance;
+    }
+
+    public synchronized void start()
+    {
+        if (_executor != null)
+            return;
+
+        _executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "LDK Index Usage Collector");
+            t.setDaemon(true);
+            return t;
+        });
+
+        _executor.scheduleWithFixedDelay(() -> {
+            try
+            {
+                snapshot();
+            }
+            catch (Exception e)
+            {
+                //NOTE: catch everything, since an exception would cancel the scheduled task
+                _log.error("Unable to record index usage", e);
+            }
+        }, 1, SNAPSHOT_INTERVAL_HOURS, TimeUnit.HOURS);
+        ContextListener.addShutdownListener(this);
+    }
+
+    /**
+     * Records the current statistics, and removes snapshots older than RETENTION_DAYS
+     */
+    public void snapshot()
+    {
+        DbScope scope = DbScope.getLabKeyScope();
+        Date snapshotDate = new Date();
+
+        List<Map<String, Object>> rows = scope.getSqlDialect().isSqlServer() ? getSqlServerStats() : getPostgresStats(scope);
+        for (Map<String, Object> row : rows)
+        {
+            row.put("snapshotDate", snapshotDate);
+        }
+
+        DbSchema schema = LDKSchema.getInstance().getSchema();
+        TableInfo ti = schema.getTable(LDKSchema.TABLE_INDEX_USAGE_SNAPSHOTS);
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(ti.getSelectName()).append(" (").append(String.join(", ", COLUMNS)).append(") VALUES (");
+        sql.append(String.join(", ", COLUMNS.stream().map(x -> "?").toList())).append(")");
+
+        List<List<Object>> params = new ArrayList<>(rows.size());
+        for (Map<String, Object> row : rows)
+        {
+            List<Object> values = new ArrayList<>(COLUMNS.size());
+            for (String col : COLUMNS)
+            {
+                values.add(row.get(col));
+            }
+            params.add(values);
+        }
+
+        try (DbScope.Transaction transaction = schema.getScope().ensureTransaction())
+        {
+            if (!params.isEmpty())
+                Table.batchExecute(schema, sql.toString(), params);
+
+            Date cutoff = new Date(snapshotDate.getTime() - TimeUnit.DAYS.toMillis(RETENTION_DAYS));
+            new SqlExecutor(schema).execute(new SQLFragment("DELETE FROM " + ti.getSelectName() + " WHERE snapshotDate < ?", cutoff));
+
+            transaction.commit();
+        }
+
+        _log.info("Recorded usage of " + rows.size() + " indexes and tables");
+    }
+
+    private List<Map<String, Object>> getPostgresStats(DbScope scope)
+    {
+        List<Map<String, Object>> rows = new ArrayList<>();
+
+        SQLFragment indexSql = new SQLFragment("SELECT i.schemaname AS schemaName, i.relname AS tableName, i.indexrelname AS indexName, " +
+                "COALESCE(i.idx_scan, 0) AS reads, " +
+                "COALESCE(t.n_tup_ins + t.n_tup_upd + t.n_tup_del, 0) AS writes, " +
+                "COALESCE(t.seq_scan, 0) AS seqScans, " +
+                "pg_relation_size(i.indexrelid) AS sizeBytes " +
+                "FROM pg_stat_user_indexes i JOIN pg_stat_user_tables t ON (i.relid = t.relid)");
+        new SqlSelector(scope, indexSql).forEach(rs -> rows.add(readRow(rs, IndexUsage.TYPE_INDEX)));
+
+        Map<String, Map<String, Object>> tableRows = new HashMap<>();
+        SQLFragment tableSql = new SQLFragment("SELECT schemaname AS schemaName, relname AS tableName, NULL AS indexName, " +
+                "COALESCE(idx_scan, 0) AS reads, " +
+                "COALESCE(n_tup_ins + n_tup_upd + n_tup_del, 0) AS writes, " +
+                "COALESCE(seq_scan, 0) AS seqScans, " +
+                "pg_relation_size(relid) AS sizeBytes " +
+                "FROM pg_stat_user_tables");
+        new SqlSelector(scope, tableSql).forEach(rs -> {
+            Map<String, Object> row = readRow(rs, IndexUsage.TYPE_TABLE);
+            tableRows.put(row.get("schemaName") + "." + row.get("tableName"), row);
+            rows.add(row);
+        });
+
+        //NOTE: pg_stat_statements does not record the tables a statement uses, so its calls are matched on the table name, for the most scanned tables only
+        if (new SqlSelector(scope, new SQLFragment("SELECT extname FROM pg_extension WHERE extname = 'pg_stat_statements'")).exists())
+        {
+            try
+            {
+                SQLFragment statementSql = new SQLFragment("SELECT t.schemaname, t.relname, SUM(s.calls) AS calls " +
+                        "FROM (SELECT schemaname, relname FROM pg_stat_user_tables ORDER BY seq_tup_read DESC LIMIT " + MAX_STATEMENT_TABLES + ") t " +
+                        "JOIN pg_stat_statements s ON (s.query ILIKE '%' || t.schemaname || '.' || t.relname || '%') " +
+                        "GROUP BY t.schemaname, t.relname");
+                new SqlSelector(scope, statementSql).forEach(rs -> {
+                    Map<String, Object> row = tableRows.get(rs.getString("schemaname") + "." + rs.getString("relname"));
+                    if (row != null)
+                        row.put("statementCalls", rs.getLong("calls"));
+                });
+            }
+            catch (Exception e)
+            {
+                //the extension may be installed without being loaded, or without permission to read other users' statements
+                _log.warn("Unable to read pg_stat_statements: " + e.getMessage());
+            }
+        }
+
+        return rows;
+    }
+
+    private List<Map<String, Object>> getSqlServerStats()
+    {
+        DbScope scope = DbScope.getLabKeyScope();
+        List<Map<String, Object>> rows = new ArrayList<>();
+
+        //index_id 0 is a heap and 1 is the clustered index, either of which stands for the table itself
+        SQLFragment sql = new SQLFragment("SELECT SCHEMA_NAME(o.schema_id) AS schemaName, o.name AS tableName, i.name AS indexName, i.index_id, " +
+                "COALESCE(u.user_seeks + u.user_scans + u.user_lookups, 0) AS reads, " +
+                "COALESCE(u.user_updates, 0) AS writes, " +
+                "COALESCE(u.user_scans, 0) AS seqScans, " +
+                "(SELECT SUM(p.used_page_count) * 8192 FROM sys.dm_db_partition_stats p WHERE p.object_id = i.object_id AND p.index_id = i.index_id) AS sizeBytes " +
+                "FROM sys.indexes i " +
+                "JOIN sys.objects o ON (o.object_id = i.object_id) " +
+                "LEFT JOIN sys.dm_db_index_usage_stats u ON (u.database_id = DB_ID() AND u.object_id = i.object_id AND u.index_id = i.index_id) " +
+                "WHERE o.type = 'U'");
+        new SqlSelector(scope, sql).forEach(rs -> {
+            boolean isTable = rs.getInt("index_id") <= 1;
+            Map<String, Object> row = readRow(rs, isTable ? IndexUsage.TYPE_TABLE : IndexUsage.TYPE_INDEX);
+            if (isTable)
+                row.put("indexName", null);
+            else
+                row.put("seqScans", null);
+
+            rows.add(row);
+        });
+
+        SQLFragment missingSql = new SQLFragment("SELECT SCHEMA_NAME(o.schema_id) AS schemaName, o.name AS tableName, " +
+                "d.equality_columns, d.inequality_columns, d.included_columns, " +
+                "s.user_seeks + s.user_scans AS reads, " +
+                "s.avg_total_user_cost * (s.avg_user_impact / 100.0) * (s.user_seeks + s.user_scans) AS improvementMeasure " +
+                "FROM sys.dm_db_missing_index_details d " +
+                "JOIN sys.dm_db_missing_index_groups g ON (g.index_handle = d.index_handle) " +
+                "JOIN sys.dm_db_missing_index_group_stats s ON (s.group_handle = g.index_group_handle) " +
+                "JOIN sys.objects o ON (o.object_id = d.object_id) " +
+                "WHERE d.database_id = DB_ID()");
+        new SqlSelector(scope, missingSql).forEach(rs -> {
+            Map<String, Object> row = new HashMap<>();
+            row.put("rowType", IndexUsage.TYPE_MISSING);
+            row.put("schemaName", rs.getString("schemaName"));
+            row.put("tableName", rs.getString("tableName"));
+            row.put("reads", rs.getLong("reads"));
+            row.put("improvementMeasure", rs.getDouble("improvementMeasure"));
+
+            List<String> keyCols = new ArrayList<>();
+            for (String cols : new String[]{rs.getString("equality_columns"), rs.getString("inequality_columns")})
+            {
+                if (cols != null)
+                    keyCols.add(stripBrackets(cols));
+            }
+
+            String columns = StringUtils.join(keyCols, ",");
+            if (rs.getString("included_columns") != null)
+                columns += ";include:" + stripBrackets(rs.getString("included_columns"));
+
+            row.put("missingIndexColumns", StringUtils.left(columns, 4000));
+            rows.add(row);
+        });
+
+        return rows;
+    }
+
+    private String stripBrackets(String cols)
+    {
+        return StringUtils.remove(StringUtils.remove(StringUtils.deleteWhitespace(cols), '['), ']');
+    }
+
+    private Map<String, Object> readRow(ResultSet rs, String rowType) throws SQLException
+    {
+        Map<String, Object> row = new HashMap<>();
+        row.put("rowType", rowType);
+        row.put("schemaName", rs.getString("schemaName"));
+        row.put("tableName", rs.getString("tableName"));
+        row.put("indexName", rs.getString("indexName"));
+        row.put("reads", rs.getLong("reads"));
+        row.put("writes", rs.getLong("writes"));
+        row.put("seqScans", rs.getLong("seqScans"));
+
+        long size = rs.getLong("sizeBytes");
+        row.put("sizeBytes", rs.wasNull() ? null : size);
+
+        return row;
+    }
+
+    /**
+     * Summarizes usage over the snapshots taken in the past number of days, for the indexes and tables present in the latest snapshot.
+     * Usage is the sum of the differences between consecutive snapshots.  The statistics are reset when the database restarts, so if a counter
+     * went down between two snapshots, its later value is taken as the usage since the reset.
+     */
+    public List<IndexUsage> getUsage(int days)
+    {
+        DbSchema schema = LDKSchema.getInstance().getSchema();
+        TableInfo ti = schema.getTable(LDKSchema.TABLE_INDEX_USAGE_SNAPSHOTS);
+
+        Date cutoff = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days));
+        Map<String, Accumulator> usageMap = new LinkedHashMap<>();
+        Date[] lastDate = new Date[1];
+        SQLFragment sql = new SQLFragment("SELECT * FROM " + ti.getSelectName() + " WHERE snapshotDate >= ? ORDER BY snapshotDate", cutoff);
+        new SqlSelector(schema, sql).forEach(rs -> {
+            IndexUsage usage = new IndexUsage();
+            usage.setRowType(rs.getString("rowType"));
+            usage.setSchemaName(rs.getString("schemaName"));
+            usage.setTableName(rs.getString("tableName"));
+            usage.setIndexName(rs.getString("indexName"));
+            usage.setReads(rs.getLong("reads"));
+            usage.setWrites(rs.getLong("writes"));
+            usage.setSeqScans(rs.getLong("seqScans"));
+            long size = rs.getLong("sizeBytes");
+            usage.setSizeBytes(rs.wasNull() ? null : size);
+            long calls = rs.getLong("statementCalls");
+            usage.setStatementCalls(rs.wasNull() ? null : calls);
+            usage.setMissingIndexColumns(rs.getString("missingIndexColumns"));
+            double improvement = rs.getDouble("improvementMeasure");
+            usage.setImprovementMeasure(rs.wasNull() ? null : improvement);
+
+            Date snapshotDate = new Date(rs.getTimestamp("snapshotDate").getTime());
+            lastDate[0] = snapshotDate;
+
+            String key = StringUtils.join(Arrays.asList(usage.getRowType(), usage.getSchemaName(), usage.getTableName(), usage.getIndexName(), usage.getMissingIndexColumns()), "||");
+            Accumulator acc = usageMap.get(key);
+            if (acc == null)
+                usageMap.put(key, new Accumulator(usage, snapshotDate));
+            else
+                acc.add(usage, snapshotDate);
+        });
+
+        List<IndexUsage> ret = new ArrayList<>(usageMap.size());
+        for (Accumulator acc : usageMap.values())
+        {
+            //indexes and tables missing from the latest snapshot have since been dropped
+            if (acc._lastDate.equals(lastDate[0]))
+                ret.add(acc.getSummary());
+        }
+
+        return ret;
+    }
+
+    private static long getDelta(long previous, long current)
+    {
+        return current >= previous ? current - previous : current;
+    }
+
+    /**
+     * Sums the usage of one index or table across consecutive snapshots.  If there is only one snapshot, the totals since the last reset are used.
+     */
+    private static class Accumulator
+    {
+        private final Date _firstDate;
+        private Date _lastDate;
+        private IndexUsage _latest;
+        private int _snapshots = 1;
+
+        private long _reads = 0;
+        private long _writes = 0;
+        private long _seqScans = 0;
+        private Long _statementCalls = null;
+        private Double _improvementMeasure = null;
+
+        public Accumulator(IndexUsage usage, Date snapshotDate)
+        {
+            _firstDate = snapshotDate;
+            _lastDate = snapshotDate;
+            _latest = usage;
+        }
+
+        public void add(IndexUsage usage, Date snapshotDate)
+        {
+            _reads += getDelta(_latest.getReads(), usage.getReads());
+            _writes += getDelta(_latest.getWrites(), usage.getWrites());
+            _seqScans += getDelta(_latest.getSeqScans(), usage.getSeqScans());
+            if (usage.getStatementCalls() != null)
+                _statementCalls = (_statementCalls == null ? 0 : _statementCalls) + (_latest.getStatementCalls() == null ? usage.getStatementCalls() : getDelta(_latest.getStatementCalls(), usage.getStatementCalls()));
+
+            if (usage.getImprovementMeasure() != null)
+            {
+                double previous = _latest.getImprovementMeasure() == null ? 0 : _latest.getImprovementMeasure();
+                double delta = usage.getImprovementMeasure() >= previous ? usage.getImprovementMeasure() - previous : usage.getImprovementMeasure();
+                _improvementMeasure = (_improvementMeasure == null ? 0 : _improvementMeasure) + delta;
+            }
+
+            _latest = usage;
+            _lastDate = snapshotDate;
+            _snapshots++;
+        }
+
+        public IndexUsage getSummary()
+        {
+            IndexUsage ret = _latest;
+            if (_snapshots > 1)
+            {
+                ret.setReads(_reads);
+                ret.setWrites(_writes);
+                ret.setSeqScans(_seqScans);
+                ret.setStatementCalls(_statementCalls);
+                ret.setImprovementMeasure(_improvementMeasure);
+            }
+            ret.setPeriodDays((_lastDate.getTime() - _firstDate.getTime()) / (double)TimeUnit.DAYS.toMillis(1));
+
+            return ret;
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return "LDK Index Usage Collector";
+    }
+
+    @Override
+    public void shutdownPre()
+    {
+
+    }
+
+    @Override
+    public void shutdownStarted()
+    {
+        ScheduledExecutorService executor;
+        synchronized (this)
+        {
+            executor = _executor;
+        }
+
+        if (executor != null)
+            executor.shutdownNow();
+    }
+}
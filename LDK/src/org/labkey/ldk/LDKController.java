@@ -46,6 +46,7 @@
 import org.labkey.api.ldk.LDKService;
 import org.labkey.api.ldk.notification.Notification;
 import org.labkey.api.ldk.notification.NotificationService;
+import org.labkey.api.ldk.table.QueryCache;
 import org.labkey.api.module.AllowedDuringUpgrade;
 import org.labkey.api.module.ModuleHtmlView;
 import org.labkey.api.module.ModuleLoader;
@@ -89,6 +90,7 @@
 import org.springframework.validation.Errors;
 import org.springframework.web.servlet.ModelAndView;
 
+import java.io.PrintWriter;
 import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -437,13 +439,13 @@ public ApiResponse execute(RunNotificationForm form, BindException errors) throw
     }
 
     @RequiresPermission(ReadPermission.class)
-    public class ValidateContainerScopedTablesAction extends SimpleViewAction<Object>
+    public class ValidateContainerScopedTablesAction extends SimpleViewAction<ValidateContainerScopedTablesForm>
     {
         @Override
-        public ModelAndView getView(Object form, BindException errors) throws Exception
+        public ModelAndView getView(ValidateContainerScopedTablesForm form, BindException errors) throws Exception
         {
             LDKServiceImpl service = (LDKServiceImpl)LDKServiceImpl.get();
-            List<String> messages = service.validateContainerScopedTables(false);
+            List<String> messages = service.validateContainerScopedTables(false, form.isModifiedSinceLastValidation(), getUser().hasSiteAdminPermission());
 
             String sb = "This page is designed to inspect all registered container scoped tables and report any tables with duplicate keys in the same container.  This should be enforced by the user schema; however, direct DB inserts will bypass this check.<p>" +
                     StringUtils.join(messages, "<br>");
@@ -458,6 +460,43 @@ public void addNavTrail(NavTree root)
         }
     }
 
+    /**
+     * Writes the results for each table as plain text as soon as that table completes, rather than waiting for all tables.
+     * As with ValidateContainerScopedTablesAction, only a site admin's run advances the high-water mark used by modifiedSinceLastValidation.
+     */
+    @RequiresPermission(ReadPermission.class)
+    public class StreamContainerScopedTableValidationAction extends ExportAction<ValidateContainerScopedTablesForm>
+    {
+        @Override
+        public void export(ValidateContainerScopedTablesForm form, HttpServletResponse response, BindException errors) throws Exception
+        {
+            LDKServiceImpl service = (LDKServiceImpl)LDKServiceImpl.get();
+
+            response.setContentType("text/plain");
+            response.setCharacterEncoding(StringUtilsLabKey.DEFAULT_CHARSET.name());
+            PrintWriter out = response.getWriter();
+            service.validateContainerScopedTables(false, form.isModifiedSinceLastValidation(), getUser().hasSiteAdminPermission(), (idx, messages) -> {
+                messages.forEach(out::println);
+                out.flush();
+            });
+        }
+    }
+
+    public static class ValidateContainerScopedTablesForm
+    {
+        private boolean _modifiedSinceLastValidation = false;
+
+        public boolean isModifiedSinceLastValidation()
+        {
+            return _modifiedSinceLastValidation;
+        }
+
+        public void setModifiedSinceLastValidation(boolean modifiedSinceLastValidation)
+        {
+            _modifiedSinceLastValidation = modifiedSinceLastValidation;
+        }
+    }
+
     @RequiresPermission(AdminPermission.class)
     public class GetNotificationSubscriptionsAction extends ReadOnlyApiAction<RunNotificationForm>
     {
@@ -681,6 +720,32 @@ public ApiResponse execute(LogMetricForm form, BindException errors) throws Exce
         }
     }
 
+    @RequiresPermission(AdminOperationsPermission.class)
+    public class GetPerfMetricWriterStatsAction extends ReadOnlyApiAction<Object>
+    {
+        @Override
+        public ApiResponse execute(Object form, BindException errors) throws Exception
+        {
+            Map<String, Object> result = new HashMap<>(PerfMetricWriter.get().getStats());
+            result.put("success", true);
+
+            return new ApiSimpleResponse(result);
+        }
+    }
+
+    @RequiresPermission(AdminOperationsPermission.class)
+    public class GetQueryCacheStatsAction extends ReadOnlyApiAction<Object>
+    {
+        @Override
+        public ApiResponse execute(Object form, BindException errors) throws Exception
+        {
+            Map<String, Object> result = new HashMap<>(QueryCache.getGlobalStats());
+            result.put("success", true);
+
+            return new ApiSimpleResponse(result);
+        }
+    }
+
     public static class LogMetricForm
     {
         String _category;
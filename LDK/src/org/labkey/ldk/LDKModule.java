@@ -56,7 +56,7 @@ public String getName()
     @Override
     public @Nullable Double getSchemaVersion()
     {
-        return 12.39;
+        return 12.41;
     }
 
     @Override
@@ -94,6 +94,8 @@ protected void doStartupAfterSpringConfig(ModuleContext moduleContext)
         }
 
         NotificationService.get().registerNotification(new SiteSummaryNotification());
+        IndexUsageCollector.get().start();
+        PerfMetricWriter.get().start();
     }
 
     @Override
@@ -31,6 +31,7 @@
 
     public static final String TABLE_METRICS = "metrics";
     public static final String TABLE_NOTIFICATION_RECIPIENTS = "notificationrecipients";
+    public static final String TABLE_INDEX_USAGE_SNAPSHOTS = "index_usage_snapshots";
 
     public static final String TABLE_LOOKUPS = "lookup_data";
     public static final String TABLE_LOOKUP_SETS = "lookup_sets";
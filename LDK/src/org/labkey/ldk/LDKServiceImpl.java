@@ -14,14 +14,15 @@
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.DbSchema;
+import org.labkey.api.data.PropertyManager;
 import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.Selector;
 import org.labkey.api.data.SqlExecutor;
 import org.labkey.api.data.SqlSelector;
-import org.labkey.api.data.Table;
 import org.labkey.api.data.TableCustomizer;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.files.FileContentService;
+import org.labkey.api.ldk.IndexUsage;
 import org.labkey.api.ldk.LDKService;
 import org.labkey.api.ldk.notification.NotificationSection;
 import org.labkey.api.ldk.table.ButtonConfigFactory;
@@ -31,6 +32,9 @@
 import org.labkey.api.security.User;
 import org.labkey.api.security.UserManager;
 import org.labkey.api.security.ValidEmail;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.Pair;
+import org.labkey.api.util.ShutdownListener;
 import org.labkey.ldk.query.BuiltInColumnsCustomizer;
 import org.labkey.ldk.query.ColumnOrderCustomizer;
 import org.labkey.ldk.query.DefaultTableCustomizer;
@@ -47,6 +51,13 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 /**
  * Created with IntelliJ IDEA.
@@ -54,7 +65,7 @@
  * Date: 11/4/12
  * Time: 3:47 PM
  */
-public class LDKServiceImpl extends LDKService
+public class LDKServiceImpl extends LDKService implements ShutdownListener
 {
     private static final Logger _log = LogManager.getLogger(LDKServiceImpl.class);
     private final Set<NotificationSection> _summaryNotificationSections = new HashSet<>();
@@ -62,10 +73,38 @@ public class LDKServiceImpl extends LDKService
     private Boolean _isNaturalizeInstalled = null;
     private final Map<String, Map<String, List<ButtonConfigFactory>>> _queryButtons = new CaseInsensitiveHashMap<Map<String, List<ButtonConfigFactory>>>();
     private static final String BACKGROUND_USER_PROPNAME = "BackgroundAdminUser";
+    private static final String CONTAINER_SCOPED_VALIDATION_CATEGORY = "ldk.containerScopedTableValidation";
+    private static final int CONTAINER_SCOPED_VALIDATION_THREADS = 4;
+
+    //shared by all validations, so concurrent requests do not each start their own threads
+    private final ThreadPoolExecutor _validationExecutor = new ThreadPoolExecutor(CONTAINER_SCOPED_VALIDATION_THREADS, CONTAINER_SCOPED_VALIDATION_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "LDK Container Scoped Table Validation");
+        t.setDaemon(true);
+        return t;
+    });
 
     public LDKServiceImpl()
     {
+        _validationExecutor.allowCoreThreadTimeOut(true);
+        ContextListener.addShutdownListener(this);
+    }
 
+    @Override
+    public String getName()
+    {
+        return "LDK Service";
+    }
+
+    @Override
+    public void shutdownPre()
+    {
+        _validationExecutor.shutdown();
+    }
+
+    @Override
+    public void shutdownStarted()
+    {
+        _validationExecutor.shutdownNow();
     }
 
     @Override
@@ -135,45 +174,20 @@ public Map<String, Object> getContainerSizeJson(Container c, User u, boolean inc
 
     private JSONObject getJSONForRoot(File fileRoot, String name, boolean includeFileCount)
     {
-        try
-        {
-            JSONObject obj = new JSONObject();
-            obj.put("name", name);
-            obj.put("rootPath", fileRoot.getPath());
-            long size = FileUtils.sizeOfDirectory(fileRoot);
-            obj.put("rootSizeInt", size);
-            obj.put("rootSize", FileUtils.byteCountToDisplaySize(size));
-            if (includeFileCount)
-                obj.put("totalFiles", getFileCount(fileRoot));
-
-            return obj;
-        }
-        catch (IllegalArgumentException e)
-        {
-            //NOTE: this has been hit when there are bad symlinks under a file root
-            _log.error(e.getMessage(), e);
-        }
-
-        return new JSONObject();
-    }
-
-    private int getFileCount(File file)
-    {
-        if (!file.isDirectory())
-        {
-            return 1;
-        }
-
-        int count = 0;
-        File[] files = file.listFiles();
-        if (files != null)
-        {
-            for (File f: files)
-            {
-                count += getFileCount(f);
-            }
-        }
-        return count;
+        //NOTE: size and count are computed together and cached per root.  stale values are returned immediately while a refresh runs in the background
+        FileRootScanner.Snapshot snapshot = FileRootScanner.get().getSnapshot(fileRoot);
+
+        JSONObject obj = new JSONObject();
+        obj.put("name", name);
+        obj.put("rootPath", fileRoot.getPath());
+        obj.put("rootSizeInt", snapshot.getSize());
+        obj.put("rootSize", FileUtils.byteCountToDisplaySize(snapshot.getSize()));
+        obj.put("scanDate", snapshot.getScanDate());
+        obj.put("isStale", snapshot.isStale());
+        if (includeFileCount)
+            obj.put("totalFiles", snapshot.getFileCount());
+
+        return obj;
     }
 
     @Override
@@ -233,60 +247,180 @@ public void registerContainerScopedTable(String dbSchemaName, String tableName,
 
     public List<String> validateContainerScopedTables(boolean onlyReportErrors)
     {
-        final List<String> messages = new ArrayList<>();
+        return validateContainerScopedTables(onlyReportErrors, false, false);
+    }
+
+    /**
+     * @return messages for all registered tables, in the order the tables were registered
+     */
+    public List<String> validateContainerScopedTables(boolean onlyReportErrors, boolean modifiedSinceLastValidation, boolean saveHighWaterMark)
+    {
+        final List<List<String>> results = new ArrayList<>(Collections.nCopies(_containerScopedTables.size(), null));
+        validateContainerScopedTables(onlyReportErrors, modifiedSinceLastValidation, saveHighWaterMark, results::set);
+
+        List<String> messages = new ArrayList<>();
+        for (List<String> result : results)
+        {
+            if (result != null)
+                messages.addAll(result);
+        }
+
+        return messages;
+    }
 
-        for (List<String> values : _containerScopedTables)
+    /**
+     * Validates the registered tables concurrently.  The handler is called on the calling thread as each table completes, with the index of
+     * that table and its messages.  If modifiedSinceLastValidation is true, only keys from rows modified since the last validation of that table
+     * that found no duplicates are checked.  The high-water mark is shared by the whole site, so it is only advanced if saveHighWaterMark is
+     * true, which should be limited to the scheduled check and site admins.
+     */
+    public void validateContainerScopedTables(boolean onlyReportErrors, boolean modifiedSinceLastValidation, boolean saveHighWaterMark, BiConsumer<Integer, List<String>> handler)
+    {
+        List<List<String>> tables = new ArrayList<>(_containerScopedTables);
+        if (tables.isEmpty())
+            return;
+
+        List<Future<Pair<Integer, List<String>>>> futures = new ArrayList<>();
+        try
         {
-            DbSchema schema = DbSchema.get(values.get(0));
-            if (schema == null)
+            ExecutorCompletionService<Pair<Integer, List<String>>> ecs = new ExecutorCompletionService<>(_validationExecutor);
+            for (int i = 0; i < tables.size(); i++)
             {
-                messages.add("Unknown schema: " + values.get(0));
-                continue;
+                final int idx = i;
+                final List<String> values = tables.get(i);
+                futures.add(ecs.submit(() -> {
+                    try
+                    {
+                        return Pair.of(idx, validateContainerScopedTable(values, onlyReportErrors, modifiedSinceLastValidation, saveHighWaterMark));
+                    }
+                    catch (Exception e)
+                    {
+                        _log.error("Error validating container scoped table: " + values.get(0) + "." + values.get(1), e);
+                        return Pair.of(idx, Collections.singletonList("ERROR: unable to validate " + values.get(0) + "." + values.get(1) + ": " + e.getMessage()));
+                    }
+                }));
             }
 
-            TableInfo ti = schema.getTable(values.get(1));
-            if (ti == null)
+            for (int i = 0; i < tables.size(); i++)
             {
-                messages.add("Unknown table: " + values.get(0) + "." + values.get(1));
-                continue;
+                Pair<Integer, List<String>> result = ecs.take().get();
+                handler.accept(result.first, result.second);
             }
-
-            final ColumnInfo pseudoPk = ti.getColumn(values.get(2));
-            if (pseudoPk == null)
+        }
+        catch (ExecutionException e)
+        {
+            //should not occur, since each task catches its own exceptions
+            _log.error("Error validating container scoped tables", e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            //the pool is shared, so only this call's tasks are stopped
+            for (Future<Pair<Integer, List<String>>> f : futures)
             {
-                messages.add("Unable to find column " + values.get(2) + " in table " + values.get(0) + "." + values.get(1));
-                continue;
+                f.cancel(true);
             }
+        }
+    }
+
+    private List<String> validateContainerScopedTable(List<String> values, boolean onlyReportErrors, boolean modifiedSinceLastValidation, boolean saveHighWaterMark)
+    {
+        final List<String> messages = new ArrayList<>();
+
+        DbSchema schema = DbSchema.get(values.get(0));
+        if (schema == null)
+        {
+            messages.add("Unknown schema: " + values.get(0));
+            return messages;
+        }
+
+        TableInfo ti = schema.getTable(values.get(1));
+        if (ti == null)
+        {
+            messages.add("Unknown table: " + values.get(0) + "." + values.get(1));
+            return messages;
+        }
+
+        final ColumnInfo pseudoPk = ti.getColumn(values.get(2));
+        if (pseudoPk == null)
+        {
+            messages.add("Unable to find column " + values.get(2) + " in table " + values.get(0) + "." + values.get(1));
+            return messages;
+        }
 
-            // group data based on pseudoPK and effective container (ie. workbooks go with parent) and return duplicates
-            SQLFragment sql = new SQLFragment("SELECT ").append(pseudoPk.getValueSql("t")).append(" as keyField, count(*) as total FROM ").append(ti.getFromSQL("t")).append(
-            " LEFT JOIN core.containers c ON t.container = c.entityid " +
-            " GROUP BY ").append(pseudoPk.getValueSql("t")).append(", CASE WHEN c.type = 'workbook' THEN c.parent ELSE c.entityid END " +
-            " HAVING count(*) > 1");
+        // the high-water mark is read before validation, so rows modified while this runs will be checked again next time
+        ColumnInfo modifiedCol = ti.getColumn("modified");
+        Date highWaterMark = null;
+        Date lastValidated = null;
+        if (modifiedCol != null && saveHighWaterMark)
+        {
+            highWaterMark = new SqlSelector(schema.getScope(), new SQLFragment("SELECT max(").append(modifiedCol.getValueSql("t")).append(") FROM ").append(ti.getFromSQL("t"))).getObject(Date.class);
+        }
+
+        if (modifiedCol != null && modifiedSinceLastValidation)
+        {
+            String stored = PropertyManager.getProperties(ContainerManager.getRoot(), CONTAINER_SCOPED_VALIDATION_CATEGORY).get(getTableKey(values));
+            lastValidated = stored == null ? null : new Date(Long.parseLong(stored));
+        }
 
-            SqlSelector ss = new SqlSelector(schema.getScope(), sql);
-            if (ss.exists())
+        // group data based on pseudoPK and effective container (ie. workbooks go with parent) and return duplicates
+        SQLFragment sql = new SQLFragment("SELECT ").append(pseudoPk.getValueSql("t")).append(" as keyField, count(*) as total FROM ").append(ti.getFromSQL("t")).append(
+        " LEFT JOIN core.containers c ON t.container = c.entityid ");
+
+        if (lastValidated != null)
+        {
+            // only keys present in recently modified rows can have new duplicates
+            sql.append(" WHERE ").append(pseudoPk.getValueSql("t")).append(" IN (SELECT ").append(pseudoPk.getValueSql("m")).append(" FROM ").append(ti.getFromSQL("m"));
+            sql.append(" WHERE ").append(modifiedCol.getValueSql("m")).append(" >= ?)");
+            sql.add(lastValidated);
+        }
+
+        sql.append(" GROUP BY ").append(pseudoPk.getValueSql("t")).append(", CASE WHEN c.type = 'workbook' THEN c.parent ELSE c.entityid END " +
+        " HAVING count(*) > 1");
+
+        SqlSelector ss = new SqlSelector(schema.getScope(), sql);
+        if (ss.exists())
+        {
+            messages.add("ERROR: duplicates found in: " + values.get(0) + "." + values.get(1));
+            ss.forEach(new Selector.ForEachBlock<ResultSet>()
             {
-                messages.add("ERROR: duplicates found in: " + values.get(0) + "." + values.get(1));
-                ss.forEach(new Selector.ForEachBlock<ResultSet>()
+                @Override
+                public void exec(ResultSet rs) throws SQLException
                 {
-                    @Override
-                    public void exec(ResultSet rs) throws SQLException
-                    {
-                        messages.add(pseudoPk.getName() + ": " + rs.getString("keyField") + ", total: " + rs.getInt("total"));
-                    }
-                });
-            }
-            else
+                    messages.add(pseudoPk.getName() + ": " + rs.getString("keyField") + ", total: " + rs.getInt("total"));
+                }
+            });
+        }
+        else
+        {
+            if (!onlyReportErrors)
+                messages.add("No duplicates: " + values.get(0) + "." + values.get(1) + (lastValidated == null ? "" : " (rows modified since " + lastValidated + ")"));
+
+            //only advance the mark after a clean run, so existing duplicates continue to be reported
+            if (highWaterMark != null)
             {
-                if (!onlyReportErrors)
-                    messages.add("No duplicates: " + values.get(0) + "." + values.get(1));
+                saveValidationHighWaterMark(values, highWaterMark);
             }
         }
 
         return messages;
     }
 
+    private synchronized void saveValidationHighWaterMark(List<String> values, Date highWaterMark)
+    {
+        PropertyManager.WritablePropertyMap map = PropertyManager.getWritableProperties(ContainerManager.getRoot(), CONTAINER_SCOPED_VALIDATION_CATEGORY, true);
+        map.put(getTableKey(values), String.valueOf(highWaterMark.getTime()));
+        map.save();
+    }
+
+    private String getTableKey(List<String> values)
+    {
+        return values.get(0) + "||" + values.get(1) + "||" + values.get(2);
+    }
+
     @Override
     public void logPerfMetric(Container c, User u, String metricName, String comment, Double value)
     {
@@ -298,20 +432,23 @@ public void logPerfMetric(Container c, User u, String metricName, String comment
         logPerfMetric(c, u, model);
     }
 
+    /**
+     * Metrics are queued and written in batches by PerfMetricWriter, so this does not hit the DB on the request thread
+     */
     public void logPerfMetric(Container c, User u, PerfMetricModel model)
     {
-        Map<String, Object> result = new HashMap<>();
-        TableInfo t = LDKSchema.getInstance().getSchema().getTable(LDKSchema.TABLE_METRICS);
-
         if(model.getMetricName() == null)
         {
             throw new IllegalArgumentException("No metric name provided");
         }
 
+        Date created = new Date();
         Map<String, Object> map = new HashMap<>();
         map.put("container", c.getId());
-        map.put("created", new Date());
+        map.put("created", created);
         map.put("createdby", u.getUserId());
+        map.put("modified", created);
+        map.put("modifiedby", u.getUserId());
 
         map.put("category", model.getCategory());
         map.put("metric_name", model.getMetricName());
@@ -322,11 +459,14 @@ public void logPerfMetric(Container c, User u, PerfMetricModel model)
         map.put("stringvalue2", model.getStringValue2());
         map.put("stringvalue3", model.getStringValue3());
 
-        map.put("referrerURL", model.getReferrerURL());
+        map.put("referrerurl", model.getReferrerURL());
         map.put("browser", model.getBrowser());
         map.put("platform", model.getPlatform());
 
-        Table.insert(u, t, map);
+        if (!PerfMetricWriter.get().enqueue(map))
+        {
+            _log.debug("Performance metric queue is full, dropping metric: " + model.getMetricName());
+        }
     }
 
     @Override
@@ -531,4 +671,16 @@ public User getBackgroundAdminUser()
 
         return null;
     }
+
+    @Override
+    public void snapshotIndexUsage()
+    {
+        IndexUsageCollector.get().snapshot();
+    }
+
+    @Override
+    public List<IndexUsage> getIndexUsage(int days)
+    {
+        return IndexUsageCollector.get().getUsage(days);
+    }
 }
@@ -0,0 +1,213 @@
+package org.labkey.ldk;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.labkey.api.data.DbSchema;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.ShutdownListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers client-reported performance metrics in a bounded queue and batch-inserts them into ldk.perf_metrics on a background thread.
+ * A flush runs every FLUSH_INTERVAL_SECONDS, or sooner once BATCH_SIZE rows are waiting.  If the queue is full, new metrics are dropped rather than
+ * blocking the request thread.  The writer is started by LDKModule at startup, and metrics reported before then or during shutdown are dropped.
+ */
+public class PerfMetricWriter implements ShutdownListener
+{
+    private static final Logger _log = LogManager.getLogger(PerfMetricWriter.class);
+    private static final PerfMetricWriter _instance = new PerfMetricWriter();
+
+    public static final int QUEUE_CAPACITY = 10000;
+    public static final int BATCH_SIZE = 100;
+    public static final int FLUSH_INTERVAL_SECONDS = 5;
+
+    private static final List<String> COLUMNS = Arrays.asList("container", "created", "createdby", "modified", "modifiedby", "category", "metric_name", "floatvalue1", "floatvalue2", "floatvalue3", "stringvalue1", "stringvalue2", "stringvalue3", "referrerurl", "browser", "platform");
+
+    private final BlockingQueue<Map<String, Object>> _queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicBoolean _flushRequested = new AtomicBoolean(false);
+
+    //set once by start() and cleared by shutdownPre(), so enqueue() does not need to lock
+    private volatile ScheduledExecutorService _executor = null;
+    private ScheduledExecutorService _stoppedExecutor = null;
+
+    private final AtomicLong _queued = new AtomicLong();
+    private final AtomicLong _flushed = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+
+    private PerfMetricWriter()
+    {
+
+    }
+
+    public static PerfMetricWriter get()
+    {
+        return _instance;
+    }
+
+    /**
+     * @return true if the metric was queued, or false if it was dropped because the queue is full or the writer is not running
+     */
+    public boolean enqueue(Map<String, Object> row)
+    {
+        ScheduledExecutorService executor = _executor;
+        if (executor == null || !_queue.offer(row))
+        {
+            _dropped.incrementAndGet();
+            return false;
+        }
+
+        _queued.incrementAndGet();
+        if (_queue.size() >= BATCH_SIZE && _flushRequested.compareAndSet(false, true))
+        {
+            try
+            {
+                executor.execute(this::flush);
+            }
+            catch (RejectedExecutionException e)
+            {
+                //the scheduled flush will pick these up, or the executor is shutting down
+                _flushRequested.set(false);
+            }
+        }
+
+        return true;
+    }
+
+    public synchronized void start()
+    {
+        if (_executor != null || _stoppedExecutor != null)
+            return;
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "LDK Perf Metric Writer");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        ContextListener.addShutdownListener(this);
+
+        _executor = executor;
+    }
+
+    /**
+     * Writes all queued metrics, in batches of BATCH_SIZE
+     */
+    public void flush()
+    {
+        _flushRequested.set(false);
+
+        List<Map<String, Object>> batch = new ArrayList<>(BATCH_SIZE);
+        while (_queue.drainTo(batch, BATCH_SIZE) > 0)
+        {
+            try
+            {
+                insertBatch(batch);
+                _flushed.addAndGet(batch.size());
+            }
+            catch (Exception e)
+            {
+                //NOTE: catch everything, since an exception would cancel the scheduled task
+                _failed.addAndGet(batch.size());
+                _log.error("Unable to save " + batch.size() + " performance metrics", e);
+            }
+
+            batch.clear();
+        }
+    }
+
+    private void insertBatch(List<Map<String, Object>> batch)
+    {
+        DbSchema schema = LDKSchema.getInstance().getSchema();
+        TableInfo ti = schema.getTable(LDKSchema.TABLE_METRICS);
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(ti.getSelectName()).append(" (").append(String.join(", ", COLUMNS)).append(") VALUES (");
+        sql.append(String.join(", ", COLUMNS.stream().map(x -> "?").toList())).append(")");
+
+        List<List<Object>> params = new ArrayList<>(batch.size());
+        for (Map<String, Object> row : batch)
+        {
+            List<Object> values = new ArrayList<>(COLUMNS.size());
+            for (String col : COLUMNS)
+            {
+                values.add(row.get(col));
+            }
+            params.add(values);
+        }
+
+        try (DbScope.Transaction transaction = schema.getScope().ensureTransaction())
+        {
+            Table.batchExecute(schema, sql.toString(), params);
+            transaction.commit();
+        }
+    }
+
+    public Map<String, Object> getStats()
+    {
+        Map<String, Object> ret = new HashMap<>();
+        ret.put("queued", _queued.get());
+        ret.put("flushed", _flushed.get());
+        ret.put("dropped", _dropped.get());
+        ret.put("failed", _failed.get());
+        ret.put("pending", _queue.size());
+        ret.put("capacity", QUEUE_CAPACITY);
+
+        return ret;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "LDK Perf Metric Writer";
+    }
+
+    @Override
+    public synchronized void shutdownPre()
+    {
+        //new metrics are dropped from here on
+        _stoppedExecutor = _executor;
+        _executor = null;
+    }
+
+    @Override
+    public void shutdownStarted()
+    {
+        ScheduledExecutorService executor;
+        synchronized (this)
+        {
+            executor = _stoppedExecutor;
+        }
+
+        if (executor != null)
+        {
+            executor.shutdown();
+            try
+            {
+                executor.awaitTermination(FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        //write anything still queued before the DB connections are closed
+        flush();
+    }
+}
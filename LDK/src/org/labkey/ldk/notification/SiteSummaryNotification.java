@@ -380,7 +380,9 @@ private void getPipelineJobCount(Container c, User u, final StringBuilder msg, f
     private void validateContainerScopedTables(Container c, User u, final StringBuilder msg, final StringBuilder alerts)
     {
         LDKServiceImpl service = (LDKServiceImpl)LDKServiceImpl.get();
-        List<String> errors = service.validateContainerScopedTables(true);
+        //NOTE: this always checks every row, since duplicates can be created by direct DB writes that do not set modified.  A clean run
+        //advances the high-water mark used by incremental checks.
+        List<String> errors = service.validateContainerScopedTables(true, false, true);
 
         if (!errors.isEmpty())
         {
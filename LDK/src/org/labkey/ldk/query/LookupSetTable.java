@@ -15,6 +15,8 @@
  */
 package org.labkey.ldk.query;
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -22,20 +24,33 @@
 import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerFilter;
+import org.labkey.api.data.CompareType;
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.SchemaTableInfo;
 import org.labkey.api.data.TableInfo;
+import org.labkey.api.dataiterator.DataIterator;
+import org.labkey.api.dataiterator.DataIteratorBuilder;
+import org.labkey.api.dataiterator.DataIteratorContext;
+import org.labkey.api.dataiterator.WrapperDataIterator;
 import org.labkey.api.ldk.LDKService;
 import org.labkey.api.ldk.table.AbstractDataDefinedTable;
+import org.labkey.api.ldk.table.UniqueKeyChecker;
 import org.labkey.api.module.Module;
 import org.labkey.api.module.ModuleLoader;
 import org.labkey.api.query.BatchValidationException;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.query.InvalidKeyException;
+import org.labkey.api.query.QueryUpdateService;
+import org.labkey.api.query.QueryUpdateServiceException;
 import org.labkey.api.query.QueryService;
 import org.labkey.api.query.UserSchema;
 import org.labkey.api.query.ValidationException;
+import org.labkey.api.security.User;
 import org.labkey.ldk.LDKModule;
 import org.labkey.ldk.LDKSchema;
 
+import java.io.IOException;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -114,6 +129,66 @@ public LookupSetTable init()
         return this;
     }
 
+    @Override
+    public QueryUpdateService getUpdateService()
+    {
+        return new UpdateService(this)
+        {
+            @Override
+            protected Map<String, Object> updateRow(User user, Container container, Map<String, Object> row, @NotNull Map<String, Object> oldRow, @Nullable Map<Enum, Object> configParameters) throws InvalidKeyException, ValidationException, QueryUpdateServiceException, SQLException
+            {
+                Map<String, Object> ret = super.updateRow(user, container, row, oldRow, configParameters);
+                invalidateCachedValues();
+
+                return ret;
+            }
+
+            @Override
+            protected Map<String, Object> deleteRow(User user, Container container, Map<String, Object> oldRowMap) throws QueryUpdateServiceException, SQLException, InvalidKeyException
+            {
+                Map<String, Object> ret = super.deleteRow(user, container, oldRowMap);
+                invalidateCachedValues();
+
+                return ret;
+            }
+
+            @Override
+            protected int truncateRows(User user, Container container)
+            {
+                int ret = super.truncateRows(user, container);
+                invalidateCachedValues();
+
+                return ret;
+            }
+        };
+    }
+
+    @Override
+    public DataIteratorBuilder persistRows(DataIteratorBuilder data, DataIteratorContext context)
+    {
+        final DataIteratorBuilder in = super.persistRows(data, context);
+        return ctx -> {
+            DataIterator it = in.getDataIterator(ctx);
+            if (it == null)
+                return null;
+
+            return new WrapperDataIterator(it)
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    super.close();
+                    invalidateCachedValues();
+                }
+            };
+        };
+    }
+
+    private void invalidateCachedValues()
+    {
+        LookupValueCache.get().invalidate(getPublicSchemaName(), getPublicName());
+    }
+
     public static class TestCase extends AbstractIntegrationTest
     {
         public static final String PROJECT_NAME = "LookupSetTableTestProject";
@@ -225,6 +300,23 @@ private void insertDataAndValidate(String tableName, UserSchema us, String table
                 throw errors1;
             }
 
+            //cached lookup values should reflect inserts
+            Map<String, String> cached = LookupValueCache.get().getAllowableValues(ti, ti.getColumn("value"), project);
+            assertNotNull("Lookup values not cached", cached);
+            assertEquals("Incorrect cached value", "ABC", cached.get("abc"));
+
+            Map<String, Object> row3 = new CaseInsensitiveHashMap<>();
+            row3.put("value", "ABCD");
+            row3.put("displayValue", "DisplayValue3");
+            ti.getUpdateService().insertRows(getUser(), project, List.of(row3), errors1, null, null);
+            if (errors1.hasErrors())
+            {
+                throw errors1;
+            }
+
+            cached = LookupValueCache.get().getAllowableValues(ti, ti.getColumn("value"), project);
+            assertEquals("Cached lookup values not invalidated", "ABCD", cached.get("abcd"));
+
             //Test duplicate keys, expect failure
             ti.getUpdateService().insertRows(getUser(), project, List.of(row1), errors1, null, null);
             if (errors1.hasErrors())
@@ -238,6 +330,50 @@ private void insertDataAndValidate(String tableName, UserSchema us, String table
             }
         }
 
+        @Test
+        public void keyCheckTest() throws Exception
+        {
+            Container project = ContainerManager.getForPath(PROJECT_NAME);
+            UserSchema us = QueryService.get().getUserSchema(getUser(), project, LookupsUserSchema.NAME);
+
+            Map<String, Object> row = new CaseInsensitiveHashMap<>();
+            row.put("value", "KeyCheck1");
+            row.put("displayValue", "KeyCheck1");
+
+            BatchValidationException errors = new BatchValidationException();
+            us.getTable(TABLE2).getUpdateService().insertRows(getUser(), project, List.of(row), errors, null, null);
+            if (errors.hasErrors())
+            {
+                throw errors;
+            }
+
+            //a single key is checked on its own, without loading the table
+            UniqueKeyChecker checker = new UniqueKeyChecker(LDKSchema.getTable(LDKSchema.TABLE_LOOKUPS), VALUE_COL, new CompareType.CompareClause(FieldKey.fromString(FILTER_COL), CompareType.EQUAL, TABLE2));
+            assertTrue("Existing key not found", checker.exists("KeyCheck1"));
+            assertFalse("Missing key found", checker.exists("KeyCheck2"));
+            assertFalse("Table should not be loaded for single keys", checker.isAllLoaded());
+
+            //a small batch is probed by key
+            checker = new UniqueKeyChecker(LDKSchema.getTable(LDKSchema.TABLE_LOOKUPS), VALUE_COL, new CompareType.CompareClause(FieldKey.fromString(FILTER_COL), CompareType.EQUAL, TABLE2));
+            checker.prefetch(Arrays.asList("KeyCheck1", "KeyCheck2"));
+            assertFalse("Table should not be loaded for a small batch", checker.isAllLoaded());
+            assertTrue("Existing key not found", checker.exists("KeyCheck1"));
+            assertFalse("Missing key found", checker.exists("KeyCheck2"));
+
+            //a large batch loads every key of this small table
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < UniqueKeyChecker.BULK_LOAD_MIN_KEYS; i++)
+            {
+                keys.add("BulkKey" + i);
+            }
+
+            checker = new UniqueKeyChecker(LDKSchema.getTable(LDKSchema.TABLE_LOOKUPS), VALUE_COL, new CompareType.CompareClause(FieldKey.fromString(FILTER_COL), CompareType.EQUAL, TABLE2));
+            checker.prefetch(keys);
+            assertTrue("Table should be loaded for a large batch", checker.isAllLoaded());
+            assertTrue("Existing key not found", checker.exists("KeyCheck1"));
+            assertFalse("Missing key found", checker.exists("BulkKey1"));
+        }
+
         @Test
         public void insertFailedValidationTest() throws Exception
         {
@@ -45,6 +45,9 @@
     private final Map<String, UserSchema> _userSchemaMap = new HashMap<String, UserSchema>();
     private final Map<String, Map<String, String>> _allowableValueMap = new HashMap<String, Map<String, String>>();
 
+    //columns whose values came from LookupValueCache, and have not yet been reloaded after a value was not found
+    private final Set<String> _sharedValueColumns = new HashSet<>();
+
     private LookupValidationHelper(String containerId, int userId, String schemaName, String queryName)
     {
         _container = ContainerManager.getForId(containerId);
@@ -101,7 +104,15 @@ public Object getLookupValue(String value, String fieldName)
         if (allowable == null)
             return null;
 
-        return allowable.get(value);
+        String ret = allowable.get(value);
+        if (ret == null && _sharedValueColumns.remove(ci.getName()))
+        {
+            //the shared values may predate rows added to the lookup table, so reload them once before rejecting the value
+            Map<String, String> reloaded = reloadAllowableValues(ci);
+            ret = reloaded == null ? null : reloaded.get(value);
+        }
+
+        return ret;
     }
 
     public String validateRequiredField(String fieldName, Object value)
@@ -133,6 +144,15 @@ private Map<String, String> getAllowableValues(ColumnInfo ci)
 
         try
         {
+            //the server-wide cache is used when possible, so each trigger script session does not re-read the lookup table
+            Map<String, String> cached = LookupValueCache.get().getAllowableValues(fkTableInfo, targetCol, _container);
+            if (cached != null)
+            {
+                _allowableValueMap.put(name, cached);
+                _sharedValueColumns.add(name);
+                return cached;
+            }
+
             TableSelector ts = new TableSelector(fkTableInfo, PageFlowUtil.set(targetCol), null, null);
             String[] vals = ts.getArray(String.class);
             if (vals != null)
@@ -156,6 +176,24 @@ private Map<String, String> getAllowableValues(ColumnInfo ci)
         }
     }
 
+    private Map<String, String> reloadAllowableValues(ColumnInfo ci)
+    {
+        TableInfo fkTableInfo = ci.getFkTableInfo();
+        ColumnInfo targetCol = fkTableInfo.getColumn(ci.getFk().getLookupColumnName());
+
+        Map<String, String> reloaded = LookupValueCache.get().reload(fkTableInfo, targetCol, _container);
+        if (reloaded == null)
+        {
+            //the table has grown past the cache limit, so load it directly
+            _allowableValueMap.remove(ci.getName());
+            return getAllowableValues(ci);
+        }
+
+        _allowableValueMap.put(ci.getName(), reloaded);
+
+        return reloaded;
+    }
+
     public void cascadeUpdate(String targetSchema, String targetTable, String targetField, Object newVal, Object oldVal) throws Exception
     {
         UserSchema us = QueryService.get().getUserSchema(_user, _container, targetSchema);
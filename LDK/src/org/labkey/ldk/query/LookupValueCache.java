@@ -0,0 +1,130 @@
+package org.labkey.ldk.query;
+
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.query.UserSchema;
+import org.labkey.api.util.PageFlowUtil;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Server-wide cache of the allowable values for lookup columns, keyed on the lookup table, its container, the user and the container filter.
+ * Entries for a table are removed in every container when a LookupSetTable is modified, since a lookup may include rows from /Shared or a parent project,
+ * and otherwise expire after a short time.  Because other lookup targets are not tracked, LookupValidationHelper reloads the values once when
+ * a value is not found, rather than rejecting it based on a stale entry.  Tables larger than MAX_CACHED_VALUES are not cached.
+ */
+public class LookupValueCache
+{
+    private static final LookupValueCache _instance = new LookupValueCache();
+
+    public static final int MAX_CACHED_TABLES = 500;
+    public static final int MAX_CACHED_VALUES = 50000;
+
+    private static final Map<String, String> TOO_LARGE = Collections.emptyMap();
+
+    private final Cache<String, Map<String, String>> _cache = CacheManager.getStringKeyCache(MAX_CACHED_TABLES, CacheManager.MINUTE * 10, "LDK Lookup Values");
+
+    private LookupValueCache()
+    {
+
+    }
+
+    public static LookupValueCache get()
+    {
+        return _instance;
+    }
+
+    /**
+     * @return A case-insensitive map of the allowable values, or null if the table is too large to cache or does not belong to a UserSchema
+     */
+    @Nullable
+    public Map<String, String> getAllowableValues(TableInfo fkTableInfo, ColumnInfo targetCol, Container defaultContainer)
+    {
+        String key = getCacheKey(fkTableInfo, targetCol, defaultContainer);
+        if (key == null)
+            return null;
+
+        Map<String, String> ret = _cache.get(key, null, (k, arg) -> {
+            //count first, so a large table is only read once, by the caller, rather than here as well
+            TableSelector ts = new TableSelector(fkTableInfo, PageFlowUtil.set(targetCol), null, null);
+            if (ts.getRowCount() > MAX_CACHED_VALUES)
+                return TOO_LARGE;
+
+            String[] vals = ts.getArray(String.class);
+
+            Map<String, String> map = new CaseInsensitiveHashMap<>();
+            for (String val : vals)
+            {
+                map.put(val, val);
+            }
+
+            return Collections.unmodifiableMap(map);
+        });
+
+        return ret == TOO_LARGE ? null : ret;
+    }
+
+    /**
+     * Discards the cached values for this lookup and reads them again
+     */
+    @Nullable
+    public Map<String, String> reload(TableInfo fkTableInfo, ColumnInfo targetCol, Container defaultContainer)
+    {
+        String key = getCacheKey(fkTableInfo, targetCol, defaultContainer);
+        if (key != null)
+            _cache.remove(key);
+
+        return getAllowableValues(fkTableInfo, targetCol, defaultContainer);
+    }
+
+    /**
+     * Removes cached values for the supplied table in all containers.  If a transaction is active, this is repeated after commit
+     */
+    public void invalidate(String schemaName, String queryName)
+    {
+        String prefix = getCacheKeyPrefix(schemaName, queryName);
+
+        Runnable r = () -> _cache.removeUsingFilter(key -> key.startsWith(prefix));
+        r.run();
+
+        DbScope scope = DbScope.getLabKeyScope();
+        if (scope.isTransactionActive())
+        {
+            scope.getCurrentTransaction().addCommitTask(r, DbScope.CommitTaskOption.POSTCOMMIT);
+        }
+    }
+
+    public void clear()
+    {
+        _cache.clear();
+    }
+
+    @Nullable
+    private String getCacheKey(TableInfo fkTableInfo, ColumnInfo targetCol, Container defaultContainer)
+    {
+        //the rows returned depend on the user, so tables without a UserSchema are not cached
+        UserSchema us = fkTableInfo.getUserSchema();
+        if (us == null)
+            return null;
+
+        Container c = us.getContainer() == null ? defaultContainer : us.getContainer();
+        c = c.isWorkbook() ? c.getParent() : c;
+
+        String cfKey = fkTableInfo.getContainerFilter() == null ? "" : String.valueOf(fkTableInfo.getContainerFilter().getType());
+
+        return getCacheKeyPrefix(fkTableInfo.getPublicSchemaName(), fkTableInfo.getPublicName()) + c.getId() + "||" + us.getUser().getUserId() + "||" + targetCol.getName().toLowerCase() + "||" + cfKey;
+    }
+
+    private String getCacheKeyPrefix(String schemaName, String queryName)
+    {
+        return schemaName.toLowerCase() + "||" + queryName.toLowerCase() + "||";
+    }
+}
@@ -5,21 +5,17 @@
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
-import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.TableInfo;
-import org.labkey.api.data.TableSelector;
-import org.labkey.api.query.FieldKey;
+import org.labkey.api.ldk.table.UniqueKeyChecker;
 import org.labkey.api.query.QueryService;
 import org.labkey.api.query.UserSchema;
 import org.labkey.api.security.User;
 import org.labkey.api.security.UserManager;
 import org.labkey.api.util.MemTracker;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
 
@@ -30,8 +26,9 @@
     private final User _user;
     private final TableInfo _table;
     private final String _targetColName;
+    private final UniqueKeyChecker _checker;
 
-    private final List<Object> _encounteredKeys = new ArrayList<>();
+    private final Set<Object> _encounteredKeys = new HashSet<>();
 
     private static final Logger _log = LogManager.getLogger(UniqueConstraintHelper.class);
 
@@ -56,6 +53,7 @@ private UniqueConstraintHelper(String containerId, int userId, String schemaName
             throw new IllegalArgumentException("Unknown table: " + schemaName + "." + queryName);
 
         _targetColName = targetColName;
+        _checker = new UniqueKeyChecker(_table, _targetColName, null);
 
         MemTracker.getInstance().put(this);
     }
@@ -65,8 +63,19 @@ public static UniqueConstraintHelper create(String containerId, int userId, Stri
         return new UniqueConstraintHelper(containerId, userId, schemaName, queryName, targetColName);
     }
 
+    /**
+     * Looks up these values in bulk, so that validating them does not query the database once per row
+     */
+    public void prefetch(Collection<Object> values)
+    {
+        _checker.prefetch(values);
+    }
+
     public boolean validateKey(Object value, @Nullable Object oldValue)
     {
+        value = _checker.normalize(value);
+        oldValue = _checker.normalize(oldValue);
+
         //allow for updates that change the value
         if (oldValue != null)
         {
@@ -82,15 +91,12 @@ public boolean validateKey(Object value, @Nullable Object oldValue)
             }
         }
 
-        if (_encounteredKeys.contains(value))
+        if (!_encounteredKeys.add(value))
         {
             return false;
         }
 
         //check the DB
-        boolean exists = new TableSelector(_table, Collections.singleton(_targetColName), new SimpleFilter(FieldKey.fromString(_targetColName), value), null).exists();
-        _encounteredKeys.add(value);
-
-        return !exists;
+        return !_checker.exists(value);
     }
 }
@@ -20,16 +20,12 @@
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONObject;
-import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerType;
-import org.labkey.api.data.PropertyManager;
 import org.labkey.api.ldk.table.QueryCache;
 import org.labkey.api.security.User;
 import org.labkey.api.view.ActionURL;
 
-import java.util.Map;
-
 /**
  * User: bimber
  * Date: 10/1/12
@@ -38,7 +34,7 @@
 abstract public class AbstractNavItem implements NavItem
 {
     protected static final Logger _log = LogManager.getLogger(AbstractNavItem.class);
-    protected QueryCache _queryCache = new QueryCache();
+    protected QueryCache _queryCache = QueryCache.getRequestCache();
 
     private String _ownerKey = null;
     private Container _targetContainer = null;
@@ -93,9 +89,9 @@ public boolean isVisible(Container c, User u)
                 return false;
         }
 
-        Map<String, String> map = new CaseInsensitiveHashMap<>(PropertyManager.getProperties(targetContainer, NavItem.PROPERTY_CATEGORY));
-        if (map.containsKey(getPropertyManagerKey()))
-            return Boolean.parseBoolean(map.get(getPropertyManagerKey()));
+        Boolean visible = NavItemSettingsCache.get().getSettings(targetContainer).getVisibility(getPropertyManagerKey());
+        if (visible != null)
+            return visible;
 
         return getDefaultVisibility(targetContainer, u);
     }
@@ -142,11 +138,7 @@ public ActionURL appendDefaultView(Container c, ActionURL url, String dataRegion
 
     public static String getDefaultViewName(Container c, String key)
     {
-        Map<String, String> map = PropertyManager.getProperties(c, NavItem.VIEW_PROPERTY_CATEGORY);
-        if (map.containsKey(key))
-            return map.get(key);
-
-        return null;
+        return NavItemSettingsCache.get().getSettings(c).getDefaultViewName(key);
     }
 
     @Override
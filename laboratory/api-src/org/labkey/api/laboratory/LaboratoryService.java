@@ -123,6 +123,15 @@ static public void setInstance(LaboratoryService instance)
 
     abstract public @Nullable DemographicsProvider getDemographicsProviderByName(Container c, User u, String name);
 
+    /**
+     * Removes the stored data summary row counts for this container, which should be called after rows are inserted, updated or deleted.
+     * The default implementation does nothing, for services that do not store counts.
+     */
+    public void invalidateSummaryCounts(Container c)
+    {
+
+    }
+
     public static enum NavItemCategory
     {
         samples(),
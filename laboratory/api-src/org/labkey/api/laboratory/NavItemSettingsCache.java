@@ -0,0 +1,72 @@
+package org.labkey.api.laboratory;
+
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.PropertyManager;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caches the NavItem visibility and default view settings of each container, so the many NavItems rendered in one request share a single
+ * copy rather than each reading PropertyManager.  Entries must be invalidated whenever either property category is saved.
+ */
+public class NavItemSettingsCache
+{
+    private static final NavItemSettingsCache _instance = new NavItemSettingsCache();
+
+    private final Cache<String, Settings> _cache = CacheManager.getStringKeyCache(5000, CacheManager.HOUR, "Laboratory NavItem Settings");
+
+    private NavItemSettingsCache()
+    {
+
+    }
+
+    public static NavItemSettingsCache get()
+    {
+        return _instance;
+    }
+
+    public Settings getSettings(Container c)
+    {
+        return _cache.get(c.getId(), null, (key, arg) -> new Settings(c));
+    }
+
+    public void invalidate(Container c)
+    {
+        _cache.remove(c.getId());
+    }
+
+    public void clear()
+    {
+        _cache.clear();
+    }
+
+    public static class Settings
+    {
+        private final Map<String, String> _visibility;
+        private final Map<String, String> _defaultViews;
+
+        private Settings(Container c)
+        {
+            _visibility = Collections.unmodifiableMap(new CaseInsensitiveHashMap<>(PropertyManager.getProperties(c, NavItem.PROPERTY_CATEGORY)));
+            _defaultViews = Collections.unmodifiableMap(new HashMap<>(PropertyManager.getProperties(c, NavItem.VIEW_PROPERTY_CATEGORY)));
+        }
+
+        /**
+         * @return the saved visibility for this key, or null if none has been saved
+         */
+        public Boolean getVisibility(String key)
+        {
+            return _visibility.containsKey(key) ? Boolean.parseBoolean(_visibility.get(key)) : null;
+        }
+
+        public String getDefaultViewName(String key)
+        {
+            return _defaultViews.get(key);
+        }
+    }
+}
@@ -15,9 +15,15 @@
  */
 package org.labkey.api.laboratory;
 
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.CompareType;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerFilter;
+import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.Table;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
 import org.labkey.api.query.FieldKey;
@@ -26,6 +32,10 @@
 import org.labkey.api.security.User;
 import org.labkey.api.view.ActionURL;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
 /**
  * User: bimber
  * Date: 10/1/12
@@ -34,6 +44,8 @@
 public class QueryCountNavItem extends AbstractQueryNavItem implements SummaryNavItem
 {
     private SimpleFilter _filter = null;
+    private FieldKey _subjectFieldKey = null;
+    private Long _rowCount = null;
 
     public QueryCountNavItem(DataProvider provider, String schema, String query, LaboratoryService.NavItemCategory itemType, String reportCategory, String label)
     {
@@ -43,6 +55,9 @@ public QueryCountNavItem(DataProvider provider, String schema, String query, Lab
     @Override
     public Long getRowCount(Container c, User u)
     {
+        if (_rowCount != null)
+            return _rowCount;
+
         TableInfo ti = getTableInfo(c, u);
         if (ti == null)
             return Long.valueOf(0);
@@ -54,11 +69,7 @@ public Long getRowCount(Container c, User u)
 
     protected SimpleFilter getFilter(Container c, TableInfo ti)
     {
-        SimpleFilter filter = new SimpleFilter();
-
-        if (ti.getColumn("container") != null && !(ti.supportsContainerFilter() && ContainerFilter.current(c).equals(ti.getContainerFilter())))
-            filter.addClause(ContainerFilter.current(c).createFilterClause(ti.getSchema(), FieldKey.fromString("container")));
-
+        SimpleFilter filter = getContainerFilter(c, ti);
         if (_filter != null)
         {
             for (SimpleFilter.FilterClause clause : _filter.getClauses())
@@ -68,6 +79,49 @@ protected SimpleFilter getFilter(Container c, TableInfo ti)
         return filter;
     }
 
+    private SimpleFilter getContainerFilter(Container c, TableInfo ti)
+    {
+        SimpleFilter filter = new SimpleFilter();
+
+        if (ti.getColumn("container") != null && !(ti.supportsContainerFilter() && ContainerFilter.current(c).equals(ti.getContainerFilter())))
+            filter.addClause(ContainerFilter.current(c).createFilterClause(ti.getSchema(), FieldKey.fromString("container")));
+
+        return filter;
+    }
+
+    /**
+     * Builds a single query returning the row count for each of the supplied subjects, grouped on the subject column.
+     * The result has the columns subjectid and total.  Subjects without rows are omitted.
+     * The SQL is generated on the calling thread, so the returned selector can safely be executed on another.
+     * @return the selector, or null if no subject column was set using setSubjectFilter() or the table cannot be resolved
+     */
+    @Nullable
+    public SqlSelector getSubjectCountSelector(Container c, User u, Collection<String> subjectIds)
+    {
+        if (_subjectFieldKey == null)
+            return null;
+
+        TableInfo ti = getTableInfo(c, u);
+        if (ti == null)
+            return null;
+
+        ColumnInfo subjectCol = ti.getColumn(_subjectFieldKey);
+        if (subjectCol == null)
+            return null;
+
+        SimpleFilter filter = getContainerFilter(c, ti);
+        filter.addCondition(subjectCol.getFieldKey(), new ArrayList<>(subjectIds), CompareType.IN);
+
+        SQLFragment select = QueryService.get().getSelectSQL(ti, Collections.singleton(subjectCol), filter, null, Table.ALL_ROWS, Table.NO_OFFSET, false);
+        String alias = ti.getSqlDialect().makeLegalIdentifier(subjectCol.getAlias());
+
+        SQLFragment sql = new SQLFragment("SELECT x.").append(alias).append(" AS subjectid, COUNT(*) AS total FROM (");
+        sql.append(select);
+        sql.append(") x GROUP BY x.").append(alias);
+
+        return new SqlSelector(ti.getSchema().getScope(), sql);
+    }
+
     @Override
     protected String getItemText(Container c, User u)
     {
@@ -96,5 +150,37 @@ protected ActionURL getActionURL(Container c, User u)
     public void setFilter(SimpleFilter filter)
     {
         _filter = filter;
+        _subjectFieldKey = null;
+    }
+
+    /**
+     * Filters this item to a single subject.  Unlike setFilter(), this also allows counts for many subjects to be calculated in one query.
+     */
+    public void setSubjectFilter(FieldKey subjectFieldKey, String subjectId)
+    {
+        _subjectFieldKey = subjectFieldKey;
+        _filter = new SimpleFilter(subjectFieldKey, subjectId);
+    }
+
+    /**
+     * @return a string identifying the filter applied to this item, which is empty if there is none
+     */
+    public String getFilterKey()
+    {
+        return _filter == null ? "" : _filter.toQueryString("query");
+    }
+
+    @Nullable
+    public FieldKey getSubjectFieldKey()
+    {
+        return _subjectFieldKey;
+    }
+
+    /**
+     * Supplies a count that was calculated elsewhere, so getRowCount() does not need to query the table
+     */
+    public void setRowCount(@Nullable Long rowCount)
+    {
+        _rowCount = rowCount;
     }
 }
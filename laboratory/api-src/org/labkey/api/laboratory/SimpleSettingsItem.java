@@ -32,7 +32,7 @@ public class SimpleSettingsItem extends QueryImportNavItem implements SettingsNa
 {
     public SimpleSettingsItem(DataProvider provider, String schema, String query, String reportCategory, String label)
     {
-        super(provider, schema, query, label, LaboratoryService.NavItemCategory.settings, reportCategory, new QueryCache());
+        super(provider, schema, query, label, LaboratoryService.NavItemCategory.settings, reportCategory, QueryCache.getRequestCache());
     }
 
     @Override
@@ -22,7 +22,6 @@
 import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.PropertyManager;
-import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.exp.api.ExpProtocol;
 import org.labkey.api.laboratory.AbstractDataProvider;
@@ -247,7 +246,7 @@ public JSONObject getTemplateMetadata(ViewContext ctx)
     public List<NavItem> getReportItems(Container c, User u)
     {
         List<NavItem> items = new ArrayList<>();
-        QueryCache cache = new QueryCache();
+        QueryCache cache = QueryCache.getRequestCache();
         for (ExpProtocol p : getProtocols(c))
         {
             AssayNavItem nav = new AssayNavItem(this, p);
@@ -287,7 +286,7 @@ public List<NavItem> getReportItems(Container c, User u)
     public List<TabbedReportItem> getTabbedReportItems(Container c, User u)
     {
         List<TabbedReportItem> items = new ArrayList<>();
-        QueryCache cache = new QueryCache();
+        QueryCache cache = QueryCache.getRequestCache();
         for (ExpProtocol p : getProtocols(c))
         {
             AssayNavItem nav = new AssayNavItem(this, p);
@@ -368,7 +367,7 @@ public List<SummaryNavItem> getSummary(Container c, User u)
     public List<NavItem> getSubjectIdSummary(Container c, User u, String subjectId)
     {
         List<NavItem> items = new ArrayList<>();
-        QueryCache cache = new QueryCache();
+        QueryCache cache = QueryCache.getRequestCache();
         for (ExpProtocol p : getProtocols(c))
         {
             boolean visible = new AssayNavItem(this, p).isVisible(c, u);
@@ -382,7 +381,7 @@ public List<NavItem> getSubjectIdSummary(Container c, User u, String subjectId)
                 {
                     QueryCountNavItem item = new QueryCountNavItem(this, schema.getSchemaName(), ti.getName(), LaboratoryService.NavItemCategory.reports, LaboratoryService.NavItemCategory.data.name(), p.getName());
                     item.setQueryCache(cache);
-                    item.setFilter(new SimpleFilter(FieldKey.fromString(ci.getName()), subjectId));
+                    item.setSubjectFilter(FieldKey.fromString(ci.getName()), subjectId);
                     items.add(item);
                 }
             }
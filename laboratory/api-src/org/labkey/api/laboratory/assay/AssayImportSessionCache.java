@@ -0,0 +1,378 @@
+package org.labkey.api.laboratory.assay;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Holds the parsed and validated result rows from an assay preview, so that a subsequent save of the same file and JSON can use them directly
+ * rather than parsing the file again.  Each session is identified by a token returned with the preview, and can be used once.
+ * Large sessions are written to a compressed temp file rather than held in memory.  These files only hold the value types produced by parsing
+ * (strings, numbers, booleans and dates), written in a simple tagged format rather than with Java serialization.  A session with any other
+ * type of value is not stored, and the file is parsed again on save.
+ */
+public class AssayImportSessionCache
+{
+    private static final Logger _log = LogManager.getLogger(AssayImportSessionCache.class);
+    private static final AssayImportSessionCache _instance = new AssayImportSessionCache();
+
+    public static final String TOKEN_PROPERTY = "importToken";
+
+    public static final long TTL_MILLIS = 30 * 60 * 1000;
+    public static final int MAX_SESSIONS = 100;
+    public static final int SPILL_THRESHOLD_ROWS = 5000;
+
+    //the value types that can be written to a session file
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_BOOLEAN = 6;
+    private static final byte TYPE_DECIMAL = 7;
+    private static final byte TYPE_DATE = 8;
+
+    //access-ordered, so the least recently used session is evicted first
+    private final LinkedHashMap<String, Session> _sessions = new LinkedHashMap<>(16, 0.75f, true);
+
+    private AssayImportSessionCache()
+    {
+
+    }
+
+    public static AssayImportSessionCache get()
+    {
+        return _instance;
+    }
+
+    /**
+     * Stores the rows parsed for this upload
+     * @return the token used to retrieve them
+     */
+    public String put(ImportContext context, SessionKey key, List<Map<String, Object>> rows) throws IOException
+    {
+        Session session = new Session(context, getFingerprint(context, key));
+        if (rows.size() > SPILL_THRESHOLD_ROWS)
+        {
+            session._spillFile = spill(rows);
+        }
+        else
+        {
+            session._rows = rows;
+        }
+
+        String token = UUID.randomUUID().toString();
+        synchronized (this)
+        {
+            purge();
+            _sessions.put(token, session);
+            while (_sessions.size() > MAX_SESSIONS)
+            {
+                Iterator<Map.Entry<String, Session>> it = _sessions.entrySet().iterator();
+                it.next().getValue().delete();
+                it.remove();
+            }
+        }
+
+        return token;
+    }
+
+    /**
+     * Removes the session for the token supplied in the context's JSON and returns its rows, provided it was created by the same user and folder
+     * for the same assay, JSON and file, and this import's error threshold is the same as or more severe than the preview's.  For example, rows
+     * previewed with a WARN threshold can be saved with an ERROR threshold, but rows previewed with an ERROR threshold cannot be saved with WARN,
+     * since the preview would not have reported the warnings.
+     * @return the rows, or null if they must be parsed again
+     */
+    @Nullable
+    public List<Map<String, Object>> take(ImportContext context, SessionKey key)
+    {
+        String token = context.getJson() == null ? null : context.getJson().optString(TOKEN_PROPERTY, null);
+        if (token == null)
+            return null;
+
+        Session session;
+        synchronized (this)
+        {
+            session = _sessions.remove(token);
+        }
+
+        if (session == null)
+            return null;
+
+        try
+        {
+            if (session.isExpired() || !session._containerId.equals(context.getViewContext().getContainer().getId()) || session._userId != context.getViewContext().getUser().getUserId())
+                return null;
+
+            if (!context.getErrors().getThreshold().isMoreSpecificThan(session._threshold))
+                return null;
+
+            if (!session._fingerprint.equals(getFingerprint(context, key)))
+                return null;
+
+            return session._rows != null ? session._rows : unspill(session._spillFile);
+        }
+        catch (IOException e)
+        {
+            _log.error("Unable to read assay import session, the file will be parsed again", e);
+            return null;
+        }
+        finally
+        {
+            session.delete();
+        }
+    }
+
+    private synchronized void purge()
+    {
+        Iterator<Session> it = _sessions.values().iterator();
+        while (it.hasNext())
+        {
+            Session session = it.next();
+            if (session.isExpired())
+            {
+                session.delete();
+                it.remove();
+            }
+        }
+    }
+
+    private File spill(List<Map<String, Object>> rows) throws IOException
+    {
+        File f = File.createTempFile("assayImport", ".rows.gz");
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(f)))))
+        {
+            out.writeInt(rows.size());
+            for (Map<String, Object> row : rows)
+            {
+                out.writeInt(row.size());
+                for (Map.Entry<String, Object> entry : row.entrySet())
+                {
+                    if (entry.getKey() == null)
+                        throw new IOException("Unable to store a row with a null column name");
+
+                    writeString(out, entry.getKey());
+                    writeValue(out, entry.getValue());
+                }
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            f.delete();
+            throw e;
+        }
+
+        return f;
+    }
+
+    private List<Map<String, Object>> unspill(File f) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(f)))))
+        {
+            int size = in.readInt();
+            List<Map<String, Object>> rows = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+            {
+                int rowSize = in.readInt();
+                Map<String, Object> row = new LinkedHashMap<>();
+                for (int j = 0; j < rowSize; j++)
+                {
+                    row.put(readString(in), readValue(in));
+                }
+                rows.add(row);
+            }
+
+            return rows;
+        }
+    }
+
+    private void writeValue(DataOutputStream out, Object value) throws IOException
+    {
+        if (value == null)
+        {
+            out.writeByte(TYPE_NULL);
+        }
+        else if (value instanceof String val)
+        {
+            out.writeByte(TYPE_STRING);
+            writeString(out, val);
+        }
+        else if (value instanceof Integer val)
+        {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt(val);
+        }
+        else if (value instanceof Long val)
+        {
+            out.writeByte(TYPE_LONG);
+            out.writeLong(val);
+        }
+        else if (value instanceof Double val)
+        {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble(val);
+        }
+        else if (value instanceof Float val)
+        {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat(val);
+        }
+        else if (value instanceof Boolean val)
+        {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean(val);
+        }
+        else if (value instanceof BigDecimal val)
+        {
+            out.writeByte(TYPE_DECIMAL);
+            writeString(out, val.toString());
+        }
+        else if (value instanceof Date val)
+        {
+            out.writeByte(TYPE_DATE);
+            out.writeLong(val.getTime());
+        }
+        else
+        {
+            throw new IOException("Unable to store value of type: " + value.getClass().getName());
+        }
+    }
+
+    private Object readValue(DataInputStream in) throws IOException
+    {
+        byte type = in.readByte();
+        return switch (type)
+        {
+            case TYPE_NULL -> null;
+            case TYPE_STRING -> readString(in);
+            case TYPE_INTEGER -> in.readInt();
+            case TYPE_LONG -> in.readLong();
+            case TYPE_DOUBLE -> in.readDouble();
+            case TYPE_FLOAT -> in.readFloat();
+            case TYPE_BOOLEAN -> in.readBoolean();
+            case TYPE_DECIMAL -> new BigDecimal(readString(in));
+            case TYPE_DATE -> new Date(in.readLong());
+            default -> throw new IOException("Unknown value type in assay import session file: " + type);
+        };
+    }
+
+    //writeUTF() is limited to 64KB, so strings are written as their length followed by UTF-8 bytes
+    private void writeString(DataOutputStream out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Hashes the assay, import method, JSON (excluding the token and error level) and file contents
+     */
+    private String getFingerprint(ImportContext context, SessionKey key) throws IOException
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(key.toString().getBytes(StandardCharsets.UTF_8));
+
+            if (context.getJson() != null)
+            {
+                JSONObject json = new JSONObject(context.getJson().toMap());
+                json.remove(TOKEN_PROPERTY);
+                json.remove("errorLevel");
+                digest.update(json.toString().getBytes(StandardCharsets.UTF_8));
+            }
+
+            if (context.getFile() != null && context.getFile().exists())
+            {
+                byte[] buffer = new byte[64 * 1024];
+                try (InputStream is = new FileInputStream(context.getFile()))
+                {
+                    int read;
+                    while ((read = is.read(buffer)) != -1)
+                    {
+                        digest.update(buffer, 0, read);
+                    }
+                }
+            }
+
+            return HexFormat.of().formatHex(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Identifies the assay and import method that produced a session
+     */
+    public record SessionKey(int protocolId, String importMethod)
+    {
+    }
+
+    private static class Session
+    {
+        private final String _containerId;
+        private final int _userId;
+        private final Level _threshold;
+        private final String _fingerprint;
+        private final long _created = System.currentTimeMillis();
+        private List<Map<String, Object>> _rows = null;
+        private File _spillFile = null;
+
+        public Session(ImportContext context, String fingerprint)
+        {
+            _containerId = context.getViewContext().getContainer().getId();
+            _userId = context.getViewContext().getUser().getUserId();
+            _threshold = context.getErrors().getThreshold();
+            _fingerprint = fingerprint;
+        }
+
+        public boolean isExpired()
+        {
+            return System.currentTimeMillis() - _created > TTL_MILLIS;
+        }
+
+        public void delete()
+        {
+            if (_spillFile != null && _spillFile.exists() && !_spillFile.delete())
+                _log.warn("Unable to delete assay import session file: " + _spillFile.getPath());
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package org.labkey.api.laboratory.assay;
+
+import org.apache.commons.beanutils.ConversionException;
+import org.apache.commons.lang3.StringUtils;
+import org.labkey.api.assay.AssayProvider;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.ConvertHelper;
+import org.labkey.api.exp.PropertyDescriptor;
+import org.labkey.api.exp.api.ExpProtocol;
+import org.labkey.api.exp.property.Domain;
+import org.labkey.api.exp.property.DomainProperty;
+import org.labkey.api.laboratory.LaboratoryService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The import rules for the results domain of one assay: the columns each header maps to, their types, which are required, and which result fields
+ * carry an out-of-range indicator.  It is built once per protocol and reused until the results domain changes, so these are not worked out again
+ * for each row.
+ */
+public class AssayRowSchema
+{
+    private static final Cache<String, AssayRowSchema> _cache = CacheManager.getStringKeyCache(500, CacheManager.HOUR, "Laboratory Assay Row Schemas");
+
+    private static final String CATEGORY_FIELD = "category";
+
+    private final String _version;
+    private final Map<String, PropertyDescriptor> _propertyMap;
+    private final List<Column> _columns;
+    private final List<Column> _oorColumns;
+    private final List<Column> _requiredFields;
+
+    private AssayRowSchema(String version, Map<String, PropertyDescriptor> propertyMap, List<Column> columns, List<Column> requiredFields)
+    {
+        _version = version;
+        _propertyMap = propertyMap;
+        _columns = columns;
+        _oorColumns = columns.stream().filter(col -> col._oorName != null).toList();
+        _requiredFields = requiredFields;
+    }
+
+    /**
+     * @param resultField the name of the default result field, used when no field has the assay result concept
+     */
+    public static AssayRowSchema get(AssayProvider provider, ExpProtocol protocol, String resultField)
+    {
+        Domain domain = provider.getResultsDomain(protocol);
+        String key = protocol.getRowId() + "||" + resultField;
+        String version = getVersion(domain);
+
+        AssayRowSchema ret = _cache.get(key);
+        if (ret == null || !ret._version.equals(version))
+        {
+            ret = create(domain, version, resultField);
+            _cache.put(key, ret);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Identifies the current state of the domain's properties, so a schema is rebuilt after the assay design is edited
+     */
+    private static String getVersion(Domain domain)
+    {
+        StringBuilder sb = new StringBuilder(domain.getTypeURI());
+        for (DomainProperty dp : domain.getProperties())
+        {
+            PropertyDescriptor pd = dp.getPropertyDescriptor();
+            sb.append("|").append(pd.getPropertyId()).append(":").append(pd.getName()).append(":").append(pd.getRangeURI()).append(":").append(pd.isRequired()).append(":").append(pd.getConceptURI()).append(":").append(pd.getDescription());
+        }
+
+        return sb.toString();
+    }
+
+    private static AssayRowSchema create(Domain domain, String version, String resultField)
+    {
+        Map<String, DomainProperty> importMap = domain.createImportMap(false);
+
+        Map<String, PropertyDescriptor> propertyMap = new CaseInsensitiveHashMap<>(importMap.size());
+        Set<PropertyDescriptor> seen = new HashSet<>(importMap.size());
+        for (Map.Entry<String, DomainProperty> entry : importMap.entrySet())
+        {
+            PropertyDescriptor pd = entry.getValue().getPropertyDescriptor();
+            if (seen.add(pd))
+            {
+                String description = pd.getDescription();
+                if (description != null && description.length() > 0)
+                    propertyMap.put(description.toLowerCase(), pd);
+            }
+            propertyMap.put(entry.getKey(), pd);
+        }
+
+        Set<String> oorFields = new HashSet<>();
+        for (String name : inferResultFields(importMap, resultField))
+        {
+            if (propertyMap.containsKey(getOORName(name)))
+                oorFields.add(name);
+        }
+
+        List<Column> columns = new ArrayList<>(propertyMap.size());
+        for (Map.Entry<String, PropertyDescriptor> entry : propertyMap.entrySet())
+        {
+            PropertyDescriptor pd = entry.getValue();
+            if (pd.getName().equalsIgnoreCase(entry.getKey()))
+                columns.add(new Column(pd.getName(), pd, oorFields.contains(pd.getName()) ? getOORName(pd.getName()) : null));
+            else
+                columns.add(new Column(entry.getKey(), pd, null));
+        }
+
+        List<Column> requiredFields = new ArrayList<>();
+        for (DomainProperty dp : domain.getProperties())
+        {
+            if (dp.isRequired())
+                requiredFields.add(new Column(dp.getName(), dp.getPropertyDescriptor(), null));
+        }
+
+        return new AssayRowSchema(version, Collections.unmodifiableMap(propertyMap), Collections.unmodifiableList(columns), Collections.unmodifiableList(requiredFields));
+    }
+
+    private static List<String> inferResultFields(Map<String, DomainProperty> importMap, String resultField)
+    {
+        boolean hasResultCol = false;
+        List<String> ret = new ArrayList<>();
+        for (DomainProperty dp : new HashSet<>(importMap.values()))
+        {
+            if (resultField.equalsIgnoreCase(dp.getName()))
+            {
+                hasResultCol = true;
+            }
+
+            if (LaboratoryService.ASSAYRESULT_CONCEPT_URI.equalsIgnoreCase(dp.getConceptURI()))
+            {
+                ret.add(dp.getName());
+            }
+        }
+
+        if (hasResultCol && ret.isEmpty())
+        {
+            ret.add(resultField);
+        }
+
+        return ret;
+    }
+
+    public static String getOORName(String colName)
+    {
+        return colName + "OORIndicator";
+    }
+
+    /**
+     * @return the import names, aliases and descriptions of the results domain, each mapped to its property
+     */
+    public Map<String, PropertyDescriptor> getPropertyMap()
+    {
+        return _propertyMap;
+    }
+
+    /**
+     * Splits any out-of-range indicator from the result fields, and stores each result as a number
+     */
+    public void processOORIndicators(Map<String, Object> row, ParserErrors errors)
+    {
+        for (Column col : _oorColumns)
+        {
+            if (row.get(col._name) instanceof String resultString)
+            {
+                if (resultString.startsWith("<") || resultString.startsWith(">"))
+                {
+                    row.put(col._oorName, resultString.substring(0, 1));
+                    resultString = resultString.substring(1);
+                }
+
+                try
+                {
+                    row.put(col._name, Double.parseDouble(resultString));
+                }
+                catch (NumberFormatException e)
+                {
+                    errors.addError("Improper number format: " + resultString);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that each known column can be converted to its type, that required fields have a value, and that any sample category is valid.
+     * The row is not modified, so the preview and the saved file show the values as entered.  Columns from the file were already converted
+     * by TabLoader, and result fields by processOORIndicators(), so for those this is only a type check.  A trial conversion is only made
+     * for values that are still of another type, such as promoted fields from the run JSON or rows added by a subclass.
+     */
+    public void checkRow(Map<String, Object> row, int rowIdx, ParserErrors errors)
+    {
+        for (Column col : _columns)
+        {
+            if (!row.containsKey(col._name))
+                continue;
+
+            Object value = row.get(col._name);
+            if (value == null)
+            {
+                if (col._pd.isRequired())
+                    errors.addError("Row " + rowIdx + ": missing required field '" + col._pd.getLabel() + "'");
+
+                continue;
+            }
+
+            if (!col._javaClass.isInstance(value))
+            {
+                try
+                {
+                    ConvertHelper.convert(value, col._javaClass);
+                }
+                catch (ConversionException e)
+                {
+                    errors.addError("Row " + rowIdx + ": unable to convert value: '" + value + "' to type " + col._pd.getJdbcType());
+                }
+            }
+        }
+
+        Object category = row.get(CATEGORY_FIELD);
+        if (category instanceof String && StringUtils.trimToNull((String)category) != null)
+        {
+            String errorMsg = "Row " + rowIdx + ": unknown sample category: " + category;
+            try
+            {
+                if (DefaultAssayImportMethod.SAMPLE_CATEGORY.getEnum((String)category) == null)
+                {
+                    errors.addError(errorMsg);
+                }
+            }
+            catch (IllegalArgumentException e)
+            {
+                errors.addError(errorMsg);
+            }
+        }
+    }
+
+    /**
+     * Checks that each required field of the results domain has a value.  Field names are matched without regard to case.
+     */
+    public void checkRequiredFields(Map<String, Object> row, int rowIdx, ParserErrors errors)
+    {
+        for (Column col : _requiredFields)
+        {
+            if (getIgnoreCase(row, col._name) == null)
+            {
+                errors.addError("Row " + rowIdx + ": Missing required field " + col._pd.getLabel());
+            }
+        }
+    }
+
+    private static Object getIgnoreCase(Map<String, Object> row, String name)
+    {
+        Object value = row.get(name);
+        if (value != null || row instanceof CaseInsensitiveHashMap)
+            return value;
+
+        //NOTE: only reached when the exact name is absent or null, which is uncommon for required fields
+        for (Map.Entry<String, Object> entry : row.entrySet())
+        {
+            if (entry.getValue() != null && name.equalsIgnoreCase(entry.getKey()))
+                return entry.getValue();
+        }
+
+        return null;
+    }
+
+    private static class Column
+    {
+        private final String _name;
+        private final PropertyDescriptor _pd;
+        private final Class<?> _javaClass;
+        private final String _oorName;
+
+        public Column(String name, PropertyDescriptor pd, String oorName)
+        {
+            _name = name;
+            _pd = pd;
+            _javaClass = pd.getJavaClass();
+            _oorName = oorName;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.labkey.api.laboratory.assay;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Opens an assay upload once and inspects a buffered prefix to infer the file format, text encoding, delimiter and header line.
+ * For text files, the same stream is then used to parse the file, so the upload is only read from disk a single time.
+ */
+public class BufferedAssayInput implements Closeable
+{
+    public static final int SNIFF_LINES = 20;
+    private static final int PREFIX_SIZE = 64 * 1024;
+
+    public enum Format
+    {
+        xlsx,
+        xls,
+        text
+    }
+
+    private final BufferedInputStream _in;
+    private final Format _format;
+    private Charset _charset = StandardCharsets.UTF_8;
+    private BufferedReader _reader = null;
+    private char _delimiter = '\t';
+
+    private BufferedAssayInput(File file) throws IOException
+    {
+        _in = new BufferedInputStream(new FileInputStream(file), PREFIX_SIZE);
+        try
+        {
+            _in.mark(4);
+            byte[] magic = _in.readNBytes(4);
+            _in.reset();
+
+            _format = inferFormat(magic);
+            if (_format == Format.text)
+            {
+                skipByteOrderMark(magic);
+                _reader = new BufferedReader(new InputStreamReader(_in, _charset), PREFIX_SIZE);
+                sniffText();
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            _in.close();
+            throw e;
+        }
+    }
+
+    public static BufferedAssayInput open(File file) throws IOException
+    {
+        return new BufferedAssayInput(file);
+    }
+
+    private static Format inferFormat(byte[] magic)
+    {
+        if (magic.length == 4)
+        {
+            //zip container
+            if (magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4)
+                return Format.xlsx;
+
+            //OLE2 compound document
+            if ((magic[0] & 0xFF) == 0xD0 && (magic[1] & 0xFF) == 0xCF && (magic[2] & 0xFF) == 0x11 && (magic[3] & 0xFF) == 0xE0)
+                return Format.xls;
+        }
+
+        return Format.text;
+    }
+
+    private void skipByteOrderMark(byte[] magic) throws IOException
+    {
+        if (magic.length >= 3 && (magic[0] & 0xFF) == 0xEF && (magic[1] & 0xFF) == 0xBB && (magic[2] & 0xFF) == 0xBF)
+        {
+            _in.skipNBytes(3);
+        }
+        else if (magic.length >= 2 && (magic[0] & 0xFF) == 0xFE && (magic[1] & 0xFF) == 0xFF)
+        {
+            _charset = StandardCharsets.UTF_16BE;
+            _in.skipNBytes(2);
+        }
+        else if (magic.length >= 2 && (magic[0] & 0xFF) == 0xFF && (magic[1] & 0xFF) == 0xFE)
+        {
+            _charset = StandardCharsets.UTF_16LE;
+            _in.skipNBytes(2);
+        }
+    }
+
+    /**
+     * Reads a prefix of the file and counts delimiters across the first non-empty lines, then rewinds the reader
+     */
+    private void sniffText() throws IOException
+    {
+        char[] prefix = new char[PREFIX_SIZE];
+        _reader.mark(PREFIX_SIZE);
+        int length = 0;
+        int read;
+        while (length < prefix.length && (read = _reader.read(prefix, length, prefix.length - length)) != -1)
+        {
+            length += read;
+        }
+        _reader.reset();
+
+        int tabCount = 0;
+        int commaCount = 0;
+        int lineCount = 0;
+        int lineStart = 0;
+        for (int i = 0; i <= length && lineCount <= SNIFF_LINES; i++)
+        {
+            char ch = i < length ? prefix[i] : '\n';
+            if (ch == '\n' || ch == '\r')
+            {
+                if (i > lineStart)
+                    lineCount++;
+
+                lineStart = i + 1;
+            }
+            else if (ch == '\t')
+            {
+                tabCount++;
+            }
+            else if (ch == ',')
+            {
+                commaCount++;
+            }
+        }
+
+        _delimiter = commaCount > tabCount ? ',' : '\t';
+    }
+
+    public Format getFormat()
+    {
+        return _format;
+    }
+
+    public Charset getCharset()
+    {
+        return _charset;
+    }
+
+    public char getDelimiter()
+    {
+        return _delimiter;
+    }
+
+    /**
+     * @return a reader positioned at the start of the text, or null if this is not a text file
+     */
+    @Nullable
+    public BufferedReader getReader()
+    {
+        return _reader;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (_reader != null)
+            _reader.close();
+        else
+            _in.close();
+    }
+}
@@ -17,12 +17,14 @@
 
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
-import org.apache.commons.beanutils.ConversionException;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.jetbrains.annotations.Nullable;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
@@ -39,8 +41,8 @@
 import org.labkey.api.exp.api.ExpProtocol;
 import org.labkey.api.exp.api.ExpRun;
 import org.labkey.api.exp.api.ExperimentService;
-import org.labkey.api.exp.property.Domain;
 import org.labkey.api.exp.property.DomainProperty;
+import org.labkey.api.iterator.CloseableIterator;
 import org.labkey.api.laboratory.LaboratoryService;
 import org.labkey.api.query.BatchValidationException;
 import org.labkey.api.query.FieldKey;
@@ -52,26 +54,26 @@
 import org.labkey.api.security.User;
 import org.labkey.api.assay.AssayProvider;
 import org.labkey.api.assay.AssayService;
-import org.labkey.api.util.FileType;
 import org.labkey.api.util.JsonUtil;
 import org.labkey.api.util.Pair;
 import org.labkey.api.view.NotFoundException;
 import org.labkey.api.view.ViewContext;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -92,6 +94,8 @@ public class DefaultAssayParser implements AssayParser
 
     protected String RESULT_FIELD = "result";
 
+    private AssayRowSchema _rowSchema = null;
+
     private static final Logger _log = LogManager.getLogger(AssayParser.class);
 
     public DefaultAssayParser(AssayImportMethod method, Container c, User u, int assayId)
@@ -110,6 +114,14 @@ protected TabLoader getTabLoader(String contents) throws IOException
         return loader;
     }
 
+    protected TabLoader getTabLoader(Reader reader) throws IOException
+    {
+        TabLoader loader = new TabLoader(reader, _hasHeaders);
+        loader.setInferTypes(false);
+
+        return loader;
+    }
+
     protected Map<String, PropertyDescriptor> getPropertyMap(Map<String, DomainProperty> importMap)
     {
         Map<String, PropertyDescriptor> map = new CaseInsensitiveHashMap<>(importMap.size());
@@ -129,24 +141,41 @@ protected Map<String, PropertyDescriptor> getPropertyMap(Map<String, DomainPrope
         return map;
     }
 
+    /**
+     * Returns the cached import rules for this protocol's results domain.  These are looked up once per parser, rather than checking the domain on each call.
+     */
+    protected AssayRowSchema getRowSchema(ExpProtocol protocol)
+    {
+        if (_protocol == null || protocol.getRowId() != _protocol.getRowId())
+            return AssayRowSchema.get(AssayService.get().getProvider(protocol), protocol, RESULT_FIELD);
+
+        if (_rowSchema == null)
+            _rowSchema = AssayRowSchema.get(AssayService.get().getProvider(protocol), protocol, RESULT_FIELD);
+
+        return _rowSchema;
+    }
+
     public List<Map<String, Object>> parseResultFile(ImportContext context, ExpProtocol protocol) throws BatchValidationException
     {
-        AssayProvider provider = AssayService.get().getProvider(protocol);
-        Domain dataDomain = provider.getResultsDomain(protocol);
-        Map<String, DomainProperty> importMap = dataDomain.createImportMap(false);
-        Map<String, PropertyDescriptor> propertyNameToDescriptor = getPropertyMap(importMap);
+        AssayRowSchema schema = getRowSchema(protocol);
 
-        try
+        //rows are streamed from the file through TabLoader, so the raw file is never held in memory
+        List<Map<String, Object>> rows = new ArrayList<>();
+        try (Reader reader = getRawFileReader(context))
         {
-            String sb = readRawFile(context);
+            TabLoader loader = getTabLoader(reader);
+            configureColumns(schema.getPropertyMap(), loader);
             context.getErrors().confirmNoErrors();
-            TabLoader loader = getTabLoader(sb);
-            configureColumns(propertyNameToDescriptor, loader);
-            List<Map<String, Object>> rows = loader.load();
-            List<String> resultFieldNames = inferResultFields(importMap);
-            for (String resultFieldName : resultFieldNames)
+
+            try (CloseableIterator<Map<String, Object>> it = loader.iterator())
             {
-                rows = processOORIndicators(resultFieldName, rows, propertyNameToDescriptor, context);
+                while (it.hasNext())
+                {
+                    Map<String, Object> row = it.next();
+                    schema.processOORIndicators(row, context.getErrors());
+
+                    rows.add(row);
+                }
             }
 
             context.getErrors().confirmNoErrors();
@@ -157,138 +186,45 @@ public List<Map<String, Object>> parseResultFile(ImportContext context, ExpProto
         }
         catch (IOException e)
         {
-            context.getErrors().addError(e.getMessage());
-            throw context.getErrors().getErrors();
+            throw getReadError(e, context);
         }
-    }
-
-    private List<String> inferResultFields(Map<String, DomainProperty> importMap)
-    {
-        boolean hasResultCol = false;
-        List<String> ret = new ArrayList<>();
-        for (String name : importMap.keySet())
+        catch (RuntimeException e)
         {
-            DomainProperty dp = importMap.get(name);
-            if (RESULT_FIELD.equalsIgnoreCase(dp.getName()))
-            {
-                hasResultCol = true;
-            }
+            //TabLoader's iterator rethrows read errors unchecked
+            BatchValidationException bve = ExceptionUtils.throwableOfType(e, BatchValidationException.class);
+            if (bve != null)
+                throw bve;
 
-            if (LaboratoryService.ASSAYRESULT_CONCEPT_URI.equalsIgnoreCase(dp.getConceptURI()))
-            {
-                ret.add(dp.getName());
-            }
+            throw e;
         }
-
-        if (hasResultCol && ret.isEmpty())
-        {
-            ret.add(RESULT_FIELD);
-        }
-
-        return ret;
-    }
-
-    private List<Map<String, Object>> processOORIndicators(String resultFieldName, List<Map<String, Object>> rows, Map<String, PropertyDescriptor> propertyNameToDescriptor, ImportContext context)
-    {
-        if (!propertyNameToDescriptor.containsKey(getResultOORName(resultFieldName)))
-            return rows;
-
-        Pattern p = Pattern.compile("^(<|>).*");
-
-        for (Map<String, Object> row : rows)
-        {
-            Object resultObj = row.get(resultFieldName);
-            if (resultObj != null && resultObj instanceof String resultString)
-            {
-                if (p.matcher(resultString).matches())
-                {
-                    String oor = resultString.substring(0, 1);
-                    resultString = resultString.substring(1);
-                    row.put(getResultOORName(resultFieldName), oor);
-                }
-
-                try
-                {
-                    Double result = Double.parseDouble(resultString);
-                    row.put(resultFieldName, result);
-                }
-                catch (NumberFormatException e)
-                {
-                    context.getErrors().addError("Improper number format: " + resultString);
-                }
-            }
-        }
-
-        return rows;
     }
 
     protected List<Map<String, Object>> processRowsFromFile(List<Map<String, Object>> rows, ImportContext context) throws BatchValidationException
     {
-        ListIterator<Map<String, Object>> rowsIter = rows.listIterator();
-        while (rowsIter.hasNext())
+        for (Map<String, Object> row : rows)
         {
-            Map<String, Object> row = rowsIter.next();
             appendPromotedResultFields(row, context);
         }
 
         return rows;
     }
 
+    /**
+     * Checks each row against the results domain, using the cached AssayRowSchema.  Values are checked but not converted, since the rows are also
+     * used for the preview and the saved file.  See AssayRowSchema.checkRow() for which values are converted again.
+     */
     protected void performDefaultChecks(List<Map<String, Object>> rows, ImportContext context) throws BatchValidationException
     {
-        ParserErrors errors = context.getErrors();
-
-        Domain dataDomain = getProvider().getResultsDomain(getProtocol());
-        Map<String, DomainProperty> importMap = dataDomain.createImportMap(false);
-        Map<String, PropertyDescriptor> propertyNameToDescriptor = getPropertyMap(importMap);
+        AssayRowSchema schema = getRowSchema(getProtocol());
 
         int idx = 0;
         for (Map<String, Object> row : rows)
         {
             idx++;
-            for (String name : propertyNameToDescriptor.keySet())
-            {
-                if (row.containsKey(name))
-                {
-                    PropertyDescriptor pd = propertyNameToDescriptor.get(name);
-                    if (pd.isRequired() && row.get(name) == null)
-                    {
-                        errors.addError("Row " + getRowIdx(row, idx) + ": missing required field '" + pd.getLabel() + "'");
-                        continue;
-                    }
-
-                    try
-                    {
-                        ConvertHelper.convert(row.get(name), pd.getJavaClass());
-                    }
-                    catch (ConversionException e)
-                    {
-                        errors.addError("Row " + getRowIdx(row, idx) + ": unable to convert value: '" + row.get(name).toString() + "' to type " + pd.getJdbcType());
-                        continue;
-                    }
-                }
-            }
-
-            String category = "category";
-            if (row.containsKey(category) && StringUtils.trimToNull((String)row.get(category)) != null)
-            {
-                String errorMsg = "Row " + idx + ": unknown sample category: " + row.get(category);
-                try
-                {
-                    DefaultAssayImportMethod.SAMPLE_CATEGORY cat = DefaultAssayImportMethod.SAMPLE_CATEGORY.getEnum((String)row.get(category));
-                    if (cat == null)
-                    {
-                        errors.addError(errorMsg);
-                    }
-                }
-                catch (IllegalArgumentException e)
-                {
-                    errors.addError(errorMsg);
-                }
-            }
+            schema.checkRow(row, getRowIdx(row, idx), context.getErrors());
         }
 
-        errors.confirmNoErrors();
+        context.getErrors().confirmNoErrors();
     }
 
     protected void appendPromotedResultFields(Map<String, Object> row, ImportContext context)
@@ -307,33 +243,25 @@ protected void appendPromotedResultFields(Map<String, Object> row, ImportContext
     }
 
     /**
-     * Reads the raw input file and converts it to a regular TSV file before passing to TabLoader
-     * This allows subclasses to transform the input data
-     * @return
+     * Returns a reader over the input file, converted to a regular TSV file before passing to TabLoader.
+     * Lines are converted as TabLoader consumes them, so memory is bounded by the line size rather than the file size.
+     * This allows subclasses to transform the input data, and is preferred over readRawFile().
      */
-    protected String readRawFile(ImportContext context) throws BatchValidationException
+    protected Reader getRawFileReader(ImportContext context) throws BatchValidationException
     {
-        try (StringWriter sw = new StringWriter(); CSVWriter out = new CSVWriter(sw, '\t'))
+        try
         {
-            // replace "n/a" with "0"
-            for (List<String> line : getFileLines(context.getFile()))
+            return new TsvLineReader(getFileLineIterator(context.getFile()))
             {
-                List<String> cells = new ArrayList<>();
-                for (Object cell : line)
+                @Override
+                protected void writeLine(List<String> line, int lineIdx, CSVWriter out)
                 {
-                    if (cell != null && "n\\a".equalsIgnoreCase(cell.toString()))
-                    {
-                        cell = "0";
-                    }
+                    if (StringUtils.isEmpty(StringUtils.join(line)))
+                        return;
 
-                    cells.add(cell == null ? null : cell.toString());
+                    out.writeNext(line.toArray(new String[0]));
                 }
-
-                if (!StringUtils.isEmpty(StringUtils.join(line)))
-                    out.writeNext(line.toArray(new String[line.size()]));
-            }
-
-            return sw.toString();
+            };
         }
         catch (IOException e)
         {
@@ -342,9 +270,35 @@ protected String readRawFile(ImportContext context) throws BatchValidationExcept
         }
     }
 
-    private String getResultOORName(String colName)
+    /**
+     * Reads the raw input file and converts it to a regular TSV file before passing to TabLoader
+     * @deprecated this holds the entire file in memory.  Override getRawFileReader() instead.
+     */
+    @Deprecated
+    protected String readRawFile(ImportContext context) throws BatchValidationException
     {
-        return colName + "OORIndicator";
+        try (Reader reader = getRawFileReader(context))
+        {
+            return IOUtils.toString(reader);
+        }
+        catch (IOException e)
+        {
+            throw getReadError(e, context);
+        }
+    }
+
+    /**
+     * Validation errors raised while a line is transformed, such as an invalid header, reach the reader's caller wrapped in an IOException.
+     * These are returned as thrown, so their field errors are kept.  Other errors are added to the context's errors.
+     */
+    private BatchValidationException getReadError(IOException e, ImportContext context)
+    {
+        BatchValidationException bve = ExceptionUtils.throwableOfType(e, BatchValidationException.class);
+        if (bve != null)
+            return bve;
+
+        context.getErrors().addError(e.getMessage());
+        return context.getErrors().getErrors();
     }
 
     protected void configureColumns(Map<String, PropertyDescriptor> propertyNameToDescriptor, TabLoader loader) throws IOException
@@ -356,7 +310,7 @@ protected void configureColumns(Map<String, PropertyDescriptor> propertyNameToDe
             if (pd != null)
             {
                 column.clazz = pd.getPropertyType().getJavaType();
-                if (propertyNameToDescriptor.containsKey(getResultOORName(pd.getName())))
+                if (propertyNameToDescriptor.containsKey(AssayRowSchema.getOORName(pd.getName())))
                     column.clazz = String.class;
 
                 if (!columnName.equals(pd.getName()))
@@ -392,6 +346,16 @@ public JSONObject getPreview(JSONObject json, File file, String fileName, ViewCo
 
         context.getErrors().confirmNoErrors();
 
+        //keep the validated rows, so saving this same upload does not need to parse it again
+        try
+        {
+            ret.put(AssayImportSessionCache.TOKEN_PROPERTY, AssayImportSessionCache.get().put(context, getSessionKey(), rows));
+        }
+        catch (IOException e)
+        {
+            _log.warn("Unable to store assay import session, the file will be parsed again on save", e);
+        }
+
         return ret;
     }
 
@@ -447,19 +411,12 @@ protected void validateRows(List<Map<String, Object>> rows, ImportContext contex
     {
         ParserErrors errors = context.getErrors();
 
-        Domain resultDomain = _provider.getResultsDomain(_protocol);
+        AssayRowSchema schema = getRowSchema(_protocol);
         int idx = 0;
         for (Map<String, Object> row : rows)
         {
             idx++; //1-based counter
-            CaseInsensitiveHashMap<Object> map = new CaseInsensitiveHashMap<>(row);
-            for (DomainProperty dp : resultDomain.getProperties())
-            {
-                if (dp.isRequired() && (!map.containsKey(dp.getName()) || map.get(dp.getName()) == null))
-                {
-                    errors.addError("Row " + getRowIdx(row, idx) + ": Missing required field " + dp.getLabel());
-                }
-            }
+            schema.checkRequiredFields(row, getRowIdx(row, idx), errors);
         }
 
         errors.confirmNoErrors();
@@ -496,7 +453,11 @@ public Pair<ExpExperiment, ExpRun> saveBatch(JSONObject json, File file, String
 
         try
         {
-            return LaboratoryService.get().saveAssayBatch(parseResults(context), json, file, ctx, _provider, _protocol);
+            List<Map<String, Object>> rows = AssayImportSessionCache.get().take(context, getSessionKey());
+            if (rows == null)
+                rows = parseResults(context);
+
+            return LaboratoryService.get().saveAssayBatch(rows, json, file, ctx, _provider, _protocol);
         }
         catch (ValidationException e)
         {
@@ -505,6 +466,11 @@ public Pair<ExpExperiment, ExpRun> saveBatch(JSONObject json, File file, String
         }
     }
 
+    private AssayImportSessionCache.SessionKey getSessionKey()
+    {
+        return new AssayImportSessionCache.SessionKey(_protocol.getRowId(), _method.getName());
+    }
+
     protected boolean mergeTemplateRow(String keyProperty, Map<String, Map<String, Object>> templateRows, Map<String, Object> map, ImportContext context)
     {
         return mergeTemplateRow(keyProperty, templateRows, map, context, false);
@@ -628,23 +594,76 @@ protected Integer getRowIdx(Map<String, Object> map, int rowIdx)
             return rowIdx;
     }
 
-    private static final FileType EXCEL_TYPE = new FileType(Arrays.asList(".xlsx", ".xls"), ".xlsx", false);
+    /**
+     * The 0-based index of the sheet read from excel files
+     */
+    protected int getExcelSheetIndex()
+    {
+        return 0;
+    }
 
     /**
      * Parses either an excel or text file
      */
     public List<List<String>> getFileLines(File file) throws IOException
     {
-        if (EXCEL_TYPE.isType(file))
+        List<List<String>> ret = new ArrayList<>();
+        try (CloseableIterator<List<String>> it = getFileLineIterator(file))
+        {
+            it.forEachRemaining(ret::add);
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Iterates the lines of either an excel or text file.  Text files are read incrementally.
+     */
+    protected CloseableIterator<List<String>> getFileLineIterator(File file) throws IOException
+    {
+        //the format is inferred from the leading bytes, so text files are never handed to the excel parsers
+        BufferedAssayInput input = BufferedAssayInput.open(file);
+        if (input.getFormat() == BufferedAssayInput.Format.text)
+        {
+            return new CSVLineIterator(new CSVReader(input.getReader(), input.getDelimiter()));
+        }
+
+        input.close();
+        CloseableIterator<List<String>> ret = getExcelLineIterator(file, input.getFormat());
+        if (ret != null)
+            return ret;
+
+        return getTextLineIterator(file);
+    }
+
+    @Nullable
+    private CloseableIterator<List<String>> getExcelLineIterator(File file, BufferedAssayInput.Format format)
+    {
+        if (format == BufferedAssayInput.Format.xlsx)
         {
             try
             {
-                JSONArray arr = ExcelFactory.convertExcelToJSON(file, true);
-                List<List<String>> ret = new ArrayList<>();
-                if (arr.length() == 0)
-                    return ret;
+                return new XlsxLineIterator(file, getExcelSheetIndex());
+            }
+            catch (IOException e)
+            {
+                //not a valid xlsx file, fall through to the other parsers
+                _log.debug("Unable to stream file as xlsx: " + file.getName(), e);
+            }
+        }
 
-                JSONObject sheet = arr.getJSONObject(0);
+        //legacy .xls files are not streamed
+        try
+        {
+            JSONArray arr = ExcelFactory.convertExcelToJSON(file, true);
+            List<List<String>> ret = new ArrayList<>();
+            if (arr.length() > getExcelSheetIndex())
+            {
+                JSONObject sheet = arr.getJSONObject(getExcelSheetIndex());
                 JSONArray jsonArr = sheet.getJSONArray("data");
                 IntStream.range(0,jsonArr.length()).forEach(i -> {
                     List<String> line = new ArrayList<>();
@@ -655,55 +674,130 @@ public List<List<String>> getFileLines(File file) throws IOException
 
                     ret.add(line);
                 });
-
-                return ret;
             }
-            catch (InvalidFormatException | IOException e)
+
+            return new CloseableIterator<>()
             {
-                //non-excel file, ignore
-            }
+                private final Iterator<List<String>> _it = ret.iterator();
+
+                @Override
+                public boolean hasNext()
+                {
+                    return _it.hasNext();
+                }
+
+                @Override
+                public List<String> next()
+                {
+                    return _it.next();
+                }
+
+                @Override
+                public void close()
+                {
+
+                }
+            };
+        }
+        catch (InvalidFormatException | IOException e)
+        {
+            //non-excel file, ignore
+            return null;
+        }
+    }
+
+    private CSVLineIterator getTextLineIterator(File file) throws IOException
+    {
+        BufferedAssayInput input = BufferedAssayInput.open(file);
+        if (input.getReader() != null)
+        {
+            return new CSVLineIterator(new CSVReader(input.getReader(), input.getDelimiter()));
         }
 
-        return parseTextFile(file);
+        //binary content that could not be parsed as excel.  this matches the prior behavior of reading it as text
+        input.close();
+        return new CSVLineIterator(new CSVReader(Readers.getReader(file), '\t'));
     }
 
     protected List<List<String>> parseTextFile(File file) throws IOException
     {
         List<List<String>> ret = new ArrayList<>();
-        try (CSVReader reader = new CSVReader(Readers.getReader(file), inferDelimiter(file)))
+        try (CSVLineIterator it = getTextLineIterator(file))
         {
-            String[] line;
-            while ((line = reader.readNext()) != null)
-            {
-                ret.add(Arrays.asList(line));
-            }
+            it.forEachRemaining(ret::add);
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
         }
 
         return ret;
     }
 
+    /**
+     * @deprecated the delimiter is now inferred from the same stream used to parse the file.  See BufferedAssayInput.
+     */
+    @Deprecated
     protected char inferDelimiter(File f) throws IOException
     {
-        int tabCount = 0;
-        int commaCount = 0;
-        try (BufferedReader reader = Readers.getReader(f))
+        try (BufferedAssayInput input = BufferedAssayInput.open(f))
         {
-            String line;
-            int lineCount = 0;
-            while (null != (line = reader.readLine()))
+            return input.getDelimiter();
+        }
+    }
+
+    /**
+     * Reads one line ahead from the CSVReader, so lines can be consumed as an iterator
+     */
+    private static class CSVLineIterator implements CloseableIterator<List<String>>
+    {
+        private final CSVReader _reader;
+        private String[] _next;
+
+        public CSVLineIterator(CSVReader reader) throws IOException
+        {
+            _reader = reader;
+            try
+            {
+                _next = reader.readNext();
+            }
+            catch (IOException | RuntimeException e)
             {
-                if (StringUtils.isEmpty(line))
-                    continue;
+                //the caller never receives the iterator, so it cannot close the file
+                reader.close();
+                throw e;
+            }
+        }
 
-                commaCount += line.split(",").length - 1;
-                tabCount += line.split("\t").length - 1;
+        @Override
+        public boolean hasNext()
+        {
+            return _next != null;
+        }
+
+        @Override
+        public List<String> next()
+        {
+            if (_next == null)
+                throw new NoSuchElementException();
 
-                lineCount++;
-                if (lineCount > 20)
-                    break;
+            List<String> ret = Arrays.asList(_next);
+            try
+            {
+                _next = _reader.readNext();
             }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+
+            return ret;
         }
 
-        return commaCount > tabCount ? ',' : '\t';
+        @Override
+        public void close() throws IOException
+        {
+            _reader.close();
+        }
     }
 }
@@ -49,6 +49,11 @@ public void addError(String msg, Level level)
             _errors.add(Pair.of(msg, level));
     }
 
+    public Level getThreshold()
+    {
+        return _threshold;
+    }
+
     public int getErrorCount()
     {
         return _errors.size();
@@ -15,7 +15,6 @@
  */
 package org.labkey.api.laboratory.assay;
 
-import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
 import org.apache.commons.lang3.StringUtils;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
@@ -25,9 +24,7 @@
 import org.labkey.api.security.User;
 import org.labkey.api.util.Pair;
 
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -51,66 +48,77 @@ public PivotingAssayParser(PivotingImportMethod method, Container c, User u, int
         _pivotMethod = method;
     }
 
+    /**
+     * Unpivots each wide input line into one row per result column as TabLoader reads it, so only the current input line is held in memory.
+     */
     @Override
-    protected String readRawFile(ImportContext context) throws BatchValidationException
+    protected Reader getRawFileReader(ImportContext context) throws BatchValidationException
     {
-        try (StringWriter sw = new StringWriter(); CSVWriter out = new CSVWriter(sw, '\t'))
-        {
-            DomainProperty valueCol = _pivotMethod.getValueColumn(_protocol);
-            DomainProperty pivotCol = _pivotMethod.getPivotColumn(_protocol);
-            Map<Integer, String> resultCols = null;
-            Integer rowIdx = 0;
+        DomainProperty valueCol = _pivotMethod.getValueColumn(_protocol);
+        DomainProperty pivotCol = _pivotMethod.getPivotColumn(_protocol);
 
-            for (List<String> line : getFileLines(context.getFile()))
+        try
+        {
+            return new TsvLineReader(getFileLineIterator(context.getFile()))
             {
-                if (rowIdx == 0)
-                {
-                    resultCols = inspectHeader(line, context);
-                }
+                private Map<Integer, String> _resultCols = null;
 
-                List<String> rowBase = new ArrayList<>();
-                List<Pair<String, String>> otherFields = new ArrayList<>();
-                int cellIdx = 0;
-                for (String cell : line)
+                @Override
+                protected void writeLine(List<String> line, int lineIdx, CSVWriter out) throws IOException
                 {
-                    if (resultCols.containsKey(cellIdx))
+                    if (lineIdx == 0)
                     {
-                        if (!StringUtils.isEmpty(cell))
-                            otherFields.add(Pair.of(resultCols.get(cellIdx), cell));
+                        try
+                        {
+                            _resultCols = inspectHeader(line, context);
+                        }
+                        catch (BatchValidationException e)
+                        {
+                            //Reader can only throw IOException.  DefaultAssayParser.parseResultFile() unwraps this, so the field errors are kept.
+                            throw new IOException(e.getMessage(), e);
+                        }
                     }
-                    else
+
+                    List<String> rowBase = new ArrayList<>();
+                    List<Pair<String, String>> otherFields = new ArrayList<>();
+                    int cellIdx = 0;
+                    for (String cell : line)
                     {
-                        rowBase.add(cell);
+                        if (_resultCols.containsKey(cellIdx))
+                        {
+                            if (!StringUtils.isEmpty(cell))
+                                otherFields.add(Pair.of(_resultCols.get(cellIdx), cell));
+                        }
+                        else
+                        {
+                            rowBase.add(cell);
+                        }
+                        cellIdx++;
                     }
-                    cellIdx++;
-                }
 
-                if (rowIdx > 0)
-                {
-                    for (Pair<String, String> pair : otherFields)
+                    if (lineIdx > 0)
                     {
-                        List<String> row = new ArrayList<>();
-                        row.addAll(rowBase);
-                        row.add(pair.first);
-                        row.add(pair.second);
-                        row.add(rowIdx.toString());
-                        out.writeNext(row.toArray(new String[row.size()]));
+                        String rowIdx = String.valueOf(lineIdx);
+                        for (Pair<String, String> pair : otherFields)
+                        {
+                            List<String> row = new ArrayList<>(rowBase.size() + 3);
+                            row.addAll(rowBase);
+                            row.add(pair.first);
+                            row.add(pair.second);
+                            row.add(rowIdx);
+                            out.writeNext(row.toArray(new String[0]));
+                        }
+                    }
+                    else
+                    {
+                        List<String> row = new ArrayList<>(rowBase);
+                        row.add(pivotCol.getLabel());
+                        row.add(valueCol.getLabel());
+                        row.add("_rowIdx");
+                        out.writeNext(row.toArray(new String[0]));
                     }
                 }
-                else
-                {
-                    List<String> row = new ArrayList<>();
-                    row.addAll(rowBase);
-                    row.add(pivotCol.getLabel());
-                    row.add(valueCol.getLabel());
-                    row.add("_rowIdx");
-                    out.writeNext(row.toArray(new String[row.size()]));
-                }
-
-                rowIdx++;
-            }
-
-            return sw.toString();
+            };
         }
         catch (IOException e)
         {
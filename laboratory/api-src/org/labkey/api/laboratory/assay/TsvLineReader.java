@@ -0,0 +1,89 @@
+package org.labkey.api.laboratory.assay;
+
+import au.com.bytecode.opencsv.CSVWriter;
+import org.labkey.api.iterator.CloseableIterator;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Presents a stream of parsed lines as TSV text, which allows the lines to be consumed by TabLoader
+ * without first writing the entire file into a String.  Only the current line is held in memory.
+ * Subclasses can override writeLine() to transform, skip or expand each incoming line.
+ */
+public class TsvLineReader extends Reader
+{
+    private final CloseableIterator<List<String>> _lines;
+    private final StringWriter _buffer = new StringWriter();
+    private final CSVWriter _out = new CSVWriter(_buffer, '\t');
+    private String _current = "";
+    private int _pos = 0;
+    private int _lineIdx = 0;
+
+    public TsvLineReader(CloseableIterator<List<String>> lines)
+    {
+        _lines = lines;
+    }
+
+    /**
+     * Writes the TSV output for a single input line.  This may write zero or more rows.
+     * @param lineIdx the 0-based index of this line in the input
+     */
+    protected void writeLine(List<String> line, int lineIdx, CSVWriter out) throws IOException
+    {
+        out.writeNext(line.toArray(new String[0]));
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException
+    {
+        if (len == 0)
+            return 0;
+
+        while (_pos >= _current.length())
+        {
+            if (!nextLine())
+                return -1;
+        }
+
+        int toCopy = Math.min(len, _current.length() - _pos);
+        _current.getChars(_pos, _pos + toCopy, cbuf, off);
+        _pos += toCopy;
+
+        return toCopy;
+    }
+
+    private boolean nextLine() throws IOException
+    {
+        try
+        {
+            if (!_lines.hasNext())
+                return false;
+
+            List<String> line = _lines.next();
+            _buffer.getBuffer().setLength(0);
+            writeLine(line, _lineIdx, _out);
+            _out.flush();
+            _lineIdx++;
+
+            _current = _buffer.toString();
+            _pos = 0;
+
+            return true;
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _out.close();
+        _lines.close();
+    }
+}
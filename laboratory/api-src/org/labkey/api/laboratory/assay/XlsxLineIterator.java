@@ -0,0 +1,236 @@
+package org.labkey.api.laboratory.assay;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.labkey.api.iterator.CloseableIterator;
+import org.xml.sax.SAXException;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates the rows of a single sheet from an .xlsx file by pulling events from the sheet XML, rather than loading the workbook.
+ * Only the selected sheet is opened, and each row is returned as the formatted string value of its cells.
+ */
+public class XlsxLineIterator implements CloseableIterator<List<String>>
+{
+    private final OPCPackage _pkg;
+    private final ReadOnlySharedStringsTable _sharedStrings;
+    private final StylesTable _styles;
+    private final DataFormatter _formatter = new DataFormatter();
+    private final InputStream _sheetStream;
+    private final XMLStreamReader _xml;
+    private List<String> _next;
+
+    public XlsxLineIterator(File file, int sheetIdx) throws IOException
+    {
+        _pkg = openPackage(file);
+        try
+        {
+            XSSFReader reader = new XSSFReader(_pkg);
+            _sharedStrings = new ReadOnlySharedStringsTable(_pkg);
+            _styles = reader.getStylesTable();
+
+            InputStream selected = null;
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator)reader.getSheetsData();
+            int idx = 0;
+            while (sheets.hasNext())
+            {
+                //NOTE: each sheet's stream is opened on demand, so skipped sheets are not read
+                InputStream is = sheets.next();
+                if (idx == sheetIdx)
+                {
+                    selected = is;
+                    break;
+                }
+
+                is.close();
+                idx++;
+            }
+
+            if (selected == null)
+                throw new IOException("Workbook does not contain sheet: " + (sheetIdx + 1));
+
+            _sheetStream = selected;
+            _xml = XMLHelper.newXMLInputFactory().createXMLStreamReader(_sheetStream);
+            _next = readNextRow();
+        }
+        catch (OpenXML4JException | SAXException | XMLStreamException e)
+        {
+            _pkg.revert();
+            throw new IOException(e);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            _pkg.revert();
+            throw e;
+        }
+    }
+
+    private static OPCPackage openPackage(File file) throws IOException
+    {
+        try
+        {
+            return OPCPackage.open(file, PackageAccess.READ);
+        }
+        catch (OpenXML4JException | RuntimeException e)
+        {
+            throw new IOException("Unable to open file as xlsx: " + file.getName(), e);
+        }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return _next != null;
+    }
+
+    @Override
+    public List<String> next()
+    {
+        if (_next == null)
+            throw new NoSuchElementException();
+
+        List<String> ret = _next;
+        try
+        {
+            _next = readNextRow();
+        }
+        catch (XMLStreamException e)
+        {
+            throw new UncheckedIOException(new IOException(e));
+        }
+
+        return ret;
+    }
+
+    private List<String> readNextRow() throws XMLStreamException
+    {
+        while (_xml.hasNext())
+        {
+            if (_xml.next() == XMLStreamConstants.START_ELEMENT && "row".equals(_xml.getLocalName()))
+                return readRow();
+        }
+
+        return null;
+    }
+
+    private List<String> readRow() throws XMLStreamException
+    {
+        List<String> line = new ArrayList<>();
+        while (_xml.hasNext())
+        {
+            int event = _xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT && "c".equals(_xml.getLocalName()))
+            {
+                String ref = _xml.getAttributeValue(null, "r");
+                String type = _xml.getAttributeValue(null, "t");
+                String style = _xml.getAttributeValue(null, "s");
+
+                //empty cells are omitted from the XML, so pad using the cell reference
+                if (ref != null)
+                {
+                    int colIdx = new CellReference(ref).getCol();
+                    while (line.size() < colIdx)
+                        line.add(null);
+                }
+
+                line.add(readCell(type, style));
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT && "row".equals(_xml.getLocalName()))
+            {
+                break;
+            }
+        }
+
+        return line;
+    }
+
+    private String readCell(String type, String style) throws XMLStreamException
+    {
+        String value = null;
+        while (_xml.hasNext())
+        {
+            int event = _xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+            {
+                //inline strings can be split across several runs
+                if ("v".equals(_xml.getLocalName()))
+                    value = _xml.getElementText();
+                else if ("t".equals(_xml.getLocalName()))
+                    value = (value == null ? "" : value) + _xml.getElementText();
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT && "c".equals(_xml.getLocalName()))
+            {
+                break;
+            }
+        }
+
+        return formatValue(value, type, style);
+    }
+
+    private String formatValue(String value, String type, String style)
+    {
+        if (value == null)
+            return null;
+
+        if (type == null || "n".equals(type))
+        {
+            int formatIndex = 0;
+            String formatString = null;
+            if (style != null)
+            {
+                XSSFCellStyle cellStyle = _styles.getStyleAt(Integer.parseInt(style));
+                formatIndex = cellStyle.getDataFormat();
+                formatString = cellStyle.getDataFormatString();
+            }
+
+            if (formatString == null)
+                formatString = BuiltinFormats.getBuiltinFormat(formatIndex);
+
+            return _formatter.formatRawCellContents(Double.parseDouble(value), formatIndex, formatString);
+        }
+
+        return switch (type)
+        {
+            case "s" -> _sharedStrings.getItemAt(Integer.parseInt(value)).getString();
+            case "b" -> "0".equals(value) ? "FALSE" : "TRUE";
+            default -> value;
+        };
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            _xml.close();
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException(e);
+        }
+        finally
+        {
+            _sheetStream.close();
+            _pkg.revert();
+        }
+    }
+}
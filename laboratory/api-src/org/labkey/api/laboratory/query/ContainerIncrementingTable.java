@@ -9,8 +9,8 @@
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerFilter;
 import org.labkey.api.data.ContainerManager;
-import org.labkey.api.data.PropertyManager;
-import org.labkey.api.data.PropertyManager.WritablePropertyMap;
+import org.labkey.api.data.DbSequence;
+import org.labkey.api.data.DbSequenceManager;
 import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
@@ -19,6 +19,9 @@
 import org.labkey.api.dataiterator.DataIteratorContext;
 import org.labkey.api.dataiterator.LoggingDataIterator;
 import org.labkey.api.dataiterator.SimpleTranslator;
+import org.labkey.api.laboratory.LaboratoryService;
+import org.labkey.api.ldk.table.PrefetchingDataIterator;
+import org.labkey.api.ldk.table.UniqueKeyChecker;
 import org.labkey.api.query.DuplicateKeyException;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.InvalidKeyException;
@@ -31,8 +34,8 @@
 import org.labkey.api.query.ValidationException;
 import org.labkey.api.security.User;
 
-import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -40,6 +43,7 @@
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * User: bimber
@@ -50,7 +54,13 @@ public class ContainerIncrementingTable extends SimpleUserSchema.SimpleTable
 {
     private final String _incrementingCol;
     private static final String SELF_ASSIGNED_COL = "_selfAssignedId_";
-    private static final String PROPERT_CATEGORY_BASE = "laboratory.tableRowId";
+    public static final String PROPERT_CATEGORY_BASE = "laboratory.tableRowId";
+    public static final int DEFAULT_ID_BATCH_SIZE = 1000;
+
+    //tracks the series that have been checked against the table's existing rows since server startup
+    private static final Set<String> _syncedSequences = ConcurrentHashMap.newKeySet();
+
+    private int _idBatchSize = DEFAULT_ID_BATCH_SIZE;
 
     public ContainerIncrementingTable(UserSchema us, TableInfo st, ContainerFilter cf, String incrementingCol)
     {
@@ -77,6 +87,23 @@ public String getIncrementingCol()
         return _incrementingCol;
     }
 
+    public int getIdBatchSize()
+    {
+        return _idBatchSize;
+    }
+
+    /**
+     * Sets the number of IDs reserved from the DB sequence at a time.  Unused IDs from a reserved block are skipped on server restart.
+     */
+    public ContainerIncrementingTable setIdBatchSize(int idBatchSize)
+    {
+        if (idBatchSize < 1)
+            throw new IllegalArgumentException("Batch size must be at least 1");
+
+        _idBatchSize = idBatchSize;
+        return this;
+    }
+
     @Override
     public QueryUpdateService getUpdateService()
     {
@@ -109,26 +136,17 @@ protected Map<String, Object> insertRow(User user, Container container, Map<Stri
             }
             else
             {
-                rowId = getCurrentId(container);
-                assert rowId != null;
-                rowId++;
-
+                rowId = getNextId(container);
                 row.put(_incrementingCol, rowId);
             }
 
             Map<String, Object> ret = super.insertRow(user, container, row);
+            LaboratoryService.get().invalidateSummaryCounts(container);
 
             //if the incoming row has a self-assigned ID, and that ID is higher than the table's existing value, we update the table
             if (hasSelfAssignedId)
             {
-                Integer currentValue = getCurrentId(container);
-                Integer rowValue = (Integer)row.get(_incrementingCol);
-                if (currentValue == null || currentValue < rowValue)
-                    saveId(container, rowValue);
-            }
-            else if (rowId != null)
-            {
-                saveId(container, rowId);
+                getSequence(container).ensureMinimum(rowId);
             }
 
             return  ret;
@@ -143,7 +161,19 @@ protected Map<String, Object> updateRow(User user, Container container, Map<Stri
             if (oldValue != null && newValue != null && !oldValue.equals(newValue))
                 throw new ValidationException("Cannot change the value of the column: " + _incrementingCol);
 
-            return super.updateRow(user, container, row, oldRow, configParameters);
+            Map<String, Object> ret = super.updateRow(user, container, row, oldRow, configParameters);
+            LaboratoryService.get().invalidateSummaryCounts(container);
+
+            return ret;
+        }
+
+        @Override
+        protected Map<String, Object> deleteRow(User user, Container container, Map<String, Object> oldRowMap) throws QueryUpdateServiceException, SQLException, InvalidKeyException
+        {
+            Map<String, Object> ret = super.deleteRow(user, container, oldRowMap);
+            LaboratoryService.get().invalidateSummaryCounts(container);
+
+            return ret;
         }
     }
 
@@ -165,29 +195,67 @@ else if (value instanceof Double)
         }
     }
 
+    /**
+     * @return the current value of the DB sequence for this container.  IDs are reserved in blocks of getIdBatchSize(), so this is the end of the
+     * most recently reserved block rather than the last ID assigned, and can be up to that many IDs ahead of the highest ID in the table.
+     * Resetting the series to this value with saveId() is therefore safe, since it cannot reissue an ID that has already been reserved.
+     */
     @NotNull
     public Integer getCurrentId(Container c)
     {
-        //lookup from propertyManager
+        return (int)getSequence(c).current();
+    }
+
+    public int getNextId(Container c)
+    {
+        return (int)getSequence(c).next();
+    }
+
+    /**
+     * Resets the series for this container to the supplied value.  This is intended for admin use, and unlike the normal increment path it can move the series backwards.
+     */
+    public void saveId(Container c, Integer value)
+    {
         Container target = c.isWorkbook() ? c.getParent() : c;
-        Map<String, String> props = PropertyManager.getProperties(target, PROPERT_CATEGORY_BASE);
-        if (props.containsKey(getPropertyKey()))
-        {
-            return Integer.parseInt(props.get(getPropertyKey()));
-        }
-        else
+        String name = getSequenceName(getPropertyKey());
+
+        //drop any block reserved by this server so the next ID is drawn from the new value
+        DbSequenceManager.invalidatePreallocatingSequence(target, name, 0);
+        DbSequenceManager.get(target, name).setSequenceValue(value);
+    }
+
+    /**
+     * The rowIDs increment using a single DB sequence per parent container, defined as parent + child workbooks.
+     * IDs are reserved in blocks, so concurrent imports (including imports on other servers in a cluster) do not collide.
+     */
+    private DbSequence getSequence(Container c)
+    {
+        Container target = c.isWorkbook() ? c.getParent() : c;
+        DbSequence seq = DbSequenceManager.getPreallocatingSequence(target, getSequenceName(getPropertyKey()), 0, _idBatchSize);
+
+        //the first time a series is used after startup, ensure it is not behind rows that were inserted before it existed.
+        //it is only marked as synced once this succeeds, so a failed check is repeated on the next use.  concurrent checks are harmless
+        String key = target.getId() + "||" + getPropertyKey();
+        if (!_syncedSequences.contains(key))
         {
-            Integer id = findHighestId(target);
-            return id == null ? 0 : id;
+            Integer highestId = findHighestId(target);
+            if (highestId != null && highestId > 0)
+                seq.ensureMinimum(highestId);
+
+            _syncedSequences.add(key);
         }
+
+        return seq;
     }
 
-    public void saveId(Container c, Integer value)
+    public static String getSequenceName(String propertyKey)
     {
-        Container target = c.isWorkbook() ? c.getParent() : c;
-        WritablePropertyMap map = PropertyManager.getWritableProperties(target, PROPERT_CATEGORY_BASE, true);
-        map.put(getPropertyKey(), value.toString());
-        map.save();
+        return PROPERT_CATEGORY_BASE + "||" + propertyKey;
+    }
+
+    public static void migrateLegacyId(Container c, String propertyKey, int value)
+    {
+        DbSequenceManager.get(c, getSequenceName(propertyKey)).ensureMinimum(value);
     }
 
     private String getPropertyKey()
@@ -239,6 +307,10 @@ private boolean hasRowWithId(Container c, Integer rowId)
     public DataIteratorBuilder persistRows(DataIteratorBuilder data, DataIteratorContext context)
     {
         data = new IteratingDataIteratorBuilder(data, context);
+
+        //the stored row counts are removed again once the import commits
+        LaboratoryService.get().invalidateSummaryCounts(getContainer());
+
         return super.persistRows(data, context);
     }
 
@@ -268,30 +340,43 @@ public DataIterator getDataIterator(DataIteratorContext context)
             final String containerColName = getContainerFilterColumn();
             final IncrementIdGenerator idGen = new IncrementIdGenerator();
 
-            final SimpleTranslator it = new SimpleTranslator(input, context)
-            {
-                @Override
-                public void close() throws IOException
-                {
-                    super.close();
-                    if (!_context.getErrors().hasErrors())
-                        idGen.commit();
-                }
-            };
-
             final Map<String, Integer> inputColMap = new HashMap<String, Integer>();
             for (int idx = 1; idx <= input.getColumnCount(); idx++)
             {
                 ColumnInfo col = input.getColumnInfo(idx);
                 if (StringUtils.equalsIgnoreCase(_incrementingCol, col.getName()))
-                {
                     inputColMap.put(_incrementingCol, idx);
-                    continue;
-                }
+                else if (StringUtils.equalsIgnoreCase(containerColName, col.getName()))
+                    inputColMap.put(containerColName, idx);
+            }
+
+            //the self-assigned IDs of each batch of rows are checked against the table together, rather than once per row
+            if (inputColMap.containsKey(_incrementingCol))
+            {
+                final int idIdx = inputColMap.get(_incrementingCol);
+                final Integer containerIdx = inputColMap.get(containerColName);
+                input = new PrefetchingDataIterator(input, rows -> {
+                    Map<Container, List<Object>> ids = new HashMap<>();
+                    for (Object[] row : rows)
+                    {
+                        if (row[idIdx] instanceof Integer)
+                            ids.computeIfAbsent(getTargetContainer(containerIdx == null ? null : row[containerIdx]), x -> new ArrayList<>()).add(row[idIdx]);
+                    }
+
+                    ids.forEach(idGen::prefetch);
 
-                if (StringUtils.equalsIgnoreCase(getContainerFilterColumn(), col.getName()))
+                    //if a self-assigned ID is higher than the existing value we have for this table, we increment to that value, once per batch
+                    ids.forEach((c, batchIds) -> idGen.incrementId(c, batchIds.stream().mapToInt(x -> (Integer)x).max().getAsInt()));
+                });
+            }
+
+            final SimpleTranslator it = new SimpleTranslator(input, context);
+            for (int idx = 1; idx <= input.getColumnCount(); idx++)
+            {
+                ColumnInfo col = input.getColumnInfo(idx);
+                if (StringUtils.equalsIgnoreCase(_incrementingCol, col.getName()))
                 {
-                    inputColMap.put(getContainerFilterColumn(), idx);
+                    continue;
                 }
 
                 it.addColumn(idx);
@@ -304,20 +389,7 @@ public void close() throws IOException
                 @Override
                 public Object call() throws Exception
                 {
-                    Container c = null;
-                    if (inputColMap.containsKey(containerColName))
-                    {
-                        String containerId = (String)it.getInputColumnValue(inputColMap.get(containerColName));
-                        if (containerId != null)
-                            c = ContainerManager.getForId(containerId);
-                    }
-
-                    if (c == null)
-                    {
-                        c = getContainer();
-                    }
-
-                    assert c != null;
+                    Container c = getTargetContainer(inputColMap.containsKey(containerColName) ? it.getInputColumnValue(inputColMap.get(containerColName)) : null);
 
                     //allow self-assigned IDs.
                     Integer rowId = null;
@@ -333,8 +405,7 @@ public Object call() throws Exception
                                 if (idGen.hasRowWithId(c, rowId))
                                     _context.getErrors().addRowError(new ValidationException("A record is already present with ID: " + rowId));
 
-                                //NOTE: if the self-assigned ID is higher than the existing value we have for this table, we increment to that value
-                                idGen.incrementId(c, rowId);
+                                //NOTE: the sequence was already moved past this ID when its batch was read
                             }
                         }
                     }
@@ -350,14 +421,31 @@ public Object call() throws Exception
         }
     }
 
+    private Container getTargetContainer(@Nullable Object containerId)
+    {
+        Container c = null;
+        if (containerId != null)
+            c = ContainerManager.getForId((String)containerId);
+
+        if (c == null)
+        {
+            c = getContainer();
+        }
+
+        assert c != null;
+
+        return c;
+    }
+
     /**
-     * The rowIDs should increment using a single sequence per parent container, defined as parent + child workbooks
-     * Currently this sequence is stored in property manager; however, we should migrate this to DbSequenceManager once implemented
+     * The rowIDs increment using a single sequence per parent container, defined as parent + child workbooks.
+     * IDs are drawn from the table's DB sequence as rows are processed, so there is nothing to save once the import completes.
      */
     private class IncrementIdGenerator
     {
-        private final Map<Container, Integer> _idMap = new HashMap<Container, Integer>();
-        private final Map<Container, Set<Integer>> _existingIdsMap = new HashMap<Container, Set<Integer>>();
+        //the self-assigned IDs encountered in this import, and the checker for IDs already in the table, for each parent container
+        private final Map<Container, Set<Integer>> _importedIds = new HashMap<>();
+        private final Map<Container, UniqueKeyChecker> _checkers = new HashMap<>();
 
         public IncrementIdGenerator()
         {
@@ -365,75 +453,48 @@ public IncrementIdGenerator()
         }
 
         public int getNextId(Container c)
-        {
-            Container target = c.isWorkbook() ? c.getParent() : c;
-            Integer key = getCurrentRowId(target);
-
-            key++;
-            _idMap.put(target, key);
-
-            return key;
-        }
-
-        public Integer getCurrentRowId(Container c)
         {
             if (c == null)
                 throw new IllegalArgumentException("Container cannot be null");
 
-            Container target = c.isWorkbook() ? c.getParent() : c;
-
-            Integer key;
-            if (_idMap.containsKey(target))
-            {
-                key = _idMap.get(target);
-            }
-            else
-            {
-                key = getCurrentId(c);
-            }
-
-            return key;
+            return ContainerIncrementingTable.this.getNextId(c);
         }
 
-        public void commit()
+        /**
+         * Checks these IDs against the table in chunked IN queries, so that hasRowWithId() does not query once per row
+         */
+        public void prefetch(Container c, List<Object> rowIds)
         {
-            for (Container c : _idMap.keySet())
-            {
-                saveId(c, _idMap.get(c));
-            }
+            getChecker(c).prefetch(rowIds);
         }
 
         public boolean hasRowWithId(Container c, Integer rowId)
         {
             Container target = c.isWorkbook() ? c.getParent() : c;
 
-            Set<Integer> set = _existingIdsMap.get(target);
-            if (set == null)
-                set = new HashSet<Integer>();
-
-            //if we have already tested this ID, it is assumed to exist
-            if (set.contains(rowId))
+            //if we have already encountered this ID in the import, it is assumed to exist
+            if (!_importedIds.computeIfAbsent(target, x -> new HashSet<>()).add(rowId))
                 return true;
 
-            //if we have not encountered this ID, query the table to determine if there is an existing row
-            TableInfo ti = QueryService.get().getUserSchema(getUserSchema().getUser(), target, _rootTable.getSchema().getName()).getTable(_rootTable.getName());
-            assert ti != null;
+            return getChecker(target).exists(rowId);
+        }
 
-            TableSelector ts = new TableSelector(ti, Collections.singleton(_incrementingCol), new SimpleFilter(FieldKey.fromString(_incrementingCol), rowId, CompareType.EQUAL), null);
+        private UniqueKeyChecker getChecker(Container c)
+        {
+            Container target = c.isWorkbook() ? c.getParent() : c;
 
-            //place the rowId in the set, in case we encounter it again
-            set.add(rowId);
-            _existingIdsMap.put(target, set);
+            return _checkers.computeIfAbsent(target, x -> {
+                TableInfo ti = QueryService.get().getUserSchema(getUserSchema().getUser(), target, _rootTable.getSchema().getName()).getTable(_rootTable.getName());
+                assert ti != null;
 
-            return ts.getRowCount() != 0;
+                return new UniqueKeyChecker(ti, _incrementingCol, null);
+            });
         }
 
         public void incrementId(Container c, Integer rowId)
         {
-            Container target = c.isWorkbook() ? c.getParent() : c;
-            Integer existingId = getCurrentRowId(target);
-            if (rowId > existingId)
-                _idMap.put(target, rowId);
+            //NOTE: ensureMinimum is a no-op if the sequence is already ahead of this value
+            getSequence(c).ensureMinimum(rowId);
         }
     }
 }
@@ -78,6 +78,24 @@ function beforeUpsert(row, errors){
     }
 }
 
+//keep the server-level freezer occupancy index current, so later imports do not need to re-read the freezer
+function afterInsert(row, errors){
+    if (!row.dateremoved)
+        freezerHelper.onSampleSaved(n(row.location), n(row.freezer), n(row.cane), n(row.box), n(row.box_row), n(row.box_column), n(row.rowid));
+}
+
+function afterUpdate(row, oldRow, errors){
+    if (oldRow && !oldRow.dateremoved)
+        freezerHelper.onSampleRemoved(n(oldRow.location), n(oldRow.freezer), n(oldRow.cane), n(oldRow.box), n(oldRow.box_row), n(oldRow.box_column), n(oldRow.rowid));
+
+    if (!row.dateremoved)
+        freezerHelper.onSampleSaved(n(row.location), n(row.freezer), n(row.cane), n(row.box), n(row.box_row), n(row.box_column), n(row.rowid || (oldRow && oldRow.rowid)));
+}
+
+function afterDelete(row, errors){
+    freezerHelper.onSampleRemoved(n(row.location), n(row.freezer), n(row.cane), n(row.box), n(row.box_row), n(row.box_column), n(row.rowid));
+}
+
 //when passing undefined to java code, it is converted to a string, so we ensure we have NULL instead
 function n(val){
     return LABKEY.ExtAdapter.isEmpty(val) ? null : val;
@@ -0,0 +1 @@
+SELECT core.executeJavaUpgradeCode('migrateContainerIncrementingIds');
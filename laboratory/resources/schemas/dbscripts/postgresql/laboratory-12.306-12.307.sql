@@ -0,0 +1,17 @@
+CREATE TABLE laboratory.data_sources (
+  rowid serial,
+  container entityid NOT NULL,
+  category varchar(100) NOT NULL,
+  sourcekey varchar(4000) NOT NULL,
+  targetcontainer entityid,
+  definition text,
+  createdby int,
+  created timestamp,
+
+  CONSTRAINT pk_data_sources PRIMARY KEY (rowid)
+);
+
+CREATE INDEX IDX_data_sources_container_category ON laboratory.data_sources (container, category);
+CREATE INDEX IDX_data_sources_category_targetcontainer ON laboratory.data_sources (category, targetcontainer);
+
+SELECT core.executeJavaUpgradeCode('migrateDataSources');
@@ -0,0 +1 @@
+EXEC core.executeJavaUpgradeCode 'migrateContainerIncrementingIds';
@@ -0,0 +1,18 @@
+CREATE TABLE laboratory.data_sources (
+  rowid int identity(1,1),
+  container entityid NOT NULL,
+  category varchar(100) NOT NULL,
+  sourcekey varchar(4000) NOT NULL,
+  targetcontainer entityid,
+  definition nvarchar(max),
+  createdby int,
+  created datetime,
+
+  CONSTRAINT pk_data_sources PRIMARY KEY (rowid)
+);
+
+CREATE INDEX IDX_data_sources_container_category ON laboratory.data_sources (container, category);
+CREATE INDEX IDX_data_sources_category_targetcontainer ON laboratory.data_sources (category, targetcontainer);
+GO
+
+EXEC core.executeJavaUpgradeCode 'migrateDataSources';
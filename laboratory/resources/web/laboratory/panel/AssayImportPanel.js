@@ -349,6 +349,10 @@ Ext4.define('Laboratory.panel.AssayImportPanel', {
         var json = this.getJson();
         json.errorLevel = btn.errorLevel;
 
+        //allows the server to reuse the rows parsed during preview, if the file and fields are unchanged
+        if (btn.doUpload && this.importToken)
+            json.importToken = this.importToken;
+
         this.down('#jsonData').setValue(Ext4.encode(json));
         this.form.submit();
     },
@@ -383,6 +387,8 @@ Ext4.define('Laboratory.panel.AssayImportPanel', {
     },
 
     generatePreview: function(results){
+        this.importToken = results.importToken;
+
         var panel = this.down('#resultsPreview');
         if (panel){
             panel.destroy();
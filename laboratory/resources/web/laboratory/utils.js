@@ -45,6 +45,7 @@ Laboratory.Utils = new function(){
                 }),
                 success: function(response){
                     var json = Ext4.decode(response.responseText);
+                    Laboratory.Utils.reportDegradedProviders(json);
                     if (config.success)
                         config.success.call((config.scope || this), json);
                 }
@@ -53,6 +54,19 @@ Laboratory.Utils = new function(){
             return LABKEY.Ajax.request(requestConfig);
         },
 
+        /**
+         * Warns the user if any DataProviders failed or timed out, in which case their items are missing from the response
+         * @private
+         */
+        reportDegradedProviders: function(json){
+            if (!json || !json.degradedProviders || !json.degradedProviders.length)
+                return;
+
+            var msg = 'Some items could not be loaded because these sources failed or took too long to respond: ' + json.degradedProviders.join(', ') + '.  Reload the page to try again.';
+            console.warn(msg);
+            Ext4.Msg.alert('Warning', msg);
+        },
+
         /**
          * A helper to return the row count(s) from an array of queries.  It is designed to assist with the creation of
          * overview or summary UI. The primary advantage is that it provides a single callback when all operations are complete.
@@ -142,6 +156,7 @@ Laboratory.Utils = new function(){
         /**
          * Returns a list of navItems summarizing data saved in this container
          * @param {Array} [providers] Optional.  An array of dataprovider names to include.  If null, all providers will be returned.
+         * @param {Boolean} [liveCounts] Optional.  If true, exact row counts will be calculated rather than using the most recent stored counts.
          * @param {function} success The success callback
          * @param {function} failure The failure callback
          * @param {Object} scope The scope of the callbacks
@@ -153,11 +168,19 @@ Laboratory.Utils = new function(){
             if (config.providers)
                 params.providers = config.providers
 
+            if (config.liveCounts)
+                params.liveCounts = true;
+
             var requestConfig = {
                 url : LABKEY.ActionURL.buildURL('laboratory', 'getDataSummary', config.containerPath),
                 method : 'POST',
                 jsonData: params,
-                success: LABKEY.Utils.getCallbackWrapper(LABKEY.Utils.getOnSuccess(config), config.scope),
+                success: LABKEY.Utils.getCallbackWrapper(function(results){
+                    Laboratory.Utils.reportDegradedProviders(results);
+                    var onSuccess = LABKEY.Utils.getOnSuccess(config);
+                    if (onSuccess)
+                        onSuccess.apply(this, arguments);
+                }, config.scope),
                 failure: LDK.Utils.getErrorCallback({
                     callback: config.failure
                 })
@@ -391,6 +414,9 @@ Laboratory.Utils = new function(){
          * @param {boolean} config.includeTotals
          * @param config.success Success callback
          * @param config.scope Scope for the callback
+         * @param config.includeSiteSummary Includes a site-wide summary.  Only available for site admins
+         * @param config.siteSummaryOffset The number of folders to skip in the site-wide summary, which are ordered by path
+         * @param config.siteSummaryMaxFolders The maximum number of folders to include in the site-wide summary.  If provided, siteSummaryTotalFolders is also returned
          */
         getDemographicsSources: function(config){
             config = config || {};
@@ -402,6 +428,12 @@ Laboratory.Utils = new function(){
             if (config.includeSiteSummary)
                 params.includeSiteSummary = config.includeSiteSummary;
 
+            if (config.siteSummaryOffset)
+                params.siteSummaryOffset = config.siteSummaryOffset;
+
+            if (config.siteSummaryMaxFolders)
+                params.siteSummaryMaxFolders = config.siteSummaryMaxFolders;
+
             return LABKEY.Ajax.request({
                 url : LABKEY.ActionURL.buildURL('laboratory', 'getDemographicsSources', config.containerPath),
                 method : 'POST',
@@ -421,6 +453,8 @@ Laboratory.Utils = new function(){
          * @param config.success Success callback
          * @param config.scope Scope for the callback
          * @param config.includeSiteSummary Includes a site-wide summary.  Only available for site admins
+         * @param config.siteSummaryOffset The number of folders to skip in the site-wide summary, which are ordered by path
+         * @param config.siteSummaryMaxFolders The maximum number of folders to include in the site-wide summary.  If provided, siteSummaryTotalFolders is also returned
          */
         getAdditionalDataSources: function(config){
             config = config || {};
@@ -432,6 +466,12 @@ Laboratory.Utils = new function(){
             if (config.includeSiteSummary)
                 params.includeSiteSummary = config.includeSiteSummary;
 
+            if (config.siteSummaryOffset)
+                params.siteSummaryOffset = config.siteSummaryOffset;
+
+            if (config.siteSummaryMaxFolders)
+                params.siteSummaryMaxFolders = config.siteSummaryMaxFolders;
+
             return LABKEY.Ajax.request({
                 url : LABKEY.ActionURL.buildURL('laboratory', 'getAdditionalDataSources', config.containerPath),
                 method : 'POST',
@@ -8,20 +8,15 @@
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
+import org.labkey.api.ldk.table.QueryCache;
 import org.labkey.api.query.QueryAction;
 import org.labkey.api.query.QueryDefinition;
-import org.labkey.api.query.QueryException;
 import org.labkey.api.query.QueryService;
 import org.labkey.api.query.UserSchema;
 import org.labkey.api.security.User;
 import org.labkey.api.security.permissions.ReadPermission;
 import org.springframework.dao.DataIntegrityViolationException;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 /**
  * User: bimber
  * Date: 1/18/13
@@ -35,7 +30,6 @@
     private final String _label;
     protected static final String DELIM = "<>";
     protected static final Logger _log = LogManager.getLogger(AbstractDataSource.class);
-    private final Map<String, TableInfo> _cachedTables = new HashMap<>();
     
     public AbstractDataSource(String label, @Nullable String containerId, String schemaName, String queryName)
     {
@@ -78,23 +72,19 @@ protected QueryDefinition getQueryDef(Container c, User u)
         return qd;
     }
 
+    /**
+     * The table is resolved through the request's QueryCache, so it is built once per request rather than on every call
+     */
     public TableInfo getTableInfo(Container c, User u)
     {
-        String key = getTargetContainer(c).getId() + "||" + u.getUserId();
-        if (_cachedTables.containsKey(key))
-        {
-            return _cachedTables.get(key);
-        }
+        Container target = getContainer();
+        if (target == null)
+            target = c;
 
-        QueryDefinition qd = getQueryDef(c, u);
-        if (qd == null)
+        if (!target.hasPermission(u, ReadPermission.class))
             return null;
 
-        List<QueryException> errors = new ArrayList<>();
-        TableInfo ti = qd.getTable(errors,  true);
-        _cachedTables.put(key, ti);
-
-        return ti;
+        return QueryCache.getRequestCache().getTableInfo(target, u, _schemaName, _queryName);
     }
 
     @Nullable
@@ -0,0 +1,213 @@
+package org.labkey.laboratory;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.Sort;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.security.User;
+import org.labkey.api.security.permissions.ReadPermission;
+import org.labkey.api.util.PageFlowUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores the demographics and additional data sources registered in each folder in laboratory.data_sources, which replaced PropertyManager.
+ * Each row holds the serialized source along with the folder it is registered in and the folder it targets, both of which are indexed,
+ * so the sources of one folder or of the whole site can be found with a query rather than by scanning every property entry.
+ */
+public class DataSourceCatalog
+{
+    private static final DataSourceCatalog _instance = new DataSourceCatalog();
+
+    //the number of folders included in each query when reading the sources of the whole site
+    private static final int CONTAINER_BATCH_SIZE = 500;
+
+    private static final List<String> COLUMNS = Arrays.asList("container", "category", "sourcekey", "targetcontainer", "definition", "createdby", "created");
+
+    private DataSourceCatalog()
+    {
+
+    }
+
+    public static DataSourceCatalog get()
+    {
+        return _instance;
+    }
+
+    /**
+     * @return the serialized sources registered in this folder, keyed on the source key, in the order saved
+     */
+    public Map<String, String> getDefinitions(Container c, String category)
+    {
+        SimpleFilter filter = new SimpleFilter(FieldKey.fromString("container"), c.getId());
+        filter.addCondition(FieldKey.fromString("category"), category);
+
+        Map<String, String> ret = new LinkedHashMap<>();
+        new TableSelector(getTable(), PageFlowUtil.set("sourcekey", "definition"), filter, new Sort("rowid")).forEach(rs -> ret.put(rs.getString("sourcekey"), rs.getString("definition")));
+
+        return ret;
+    }
+
+    /**
+     * Replaces the sources registered in this folder
+     * @param definitions the serialized sources, keyed on the source key
+     */
+    public void saveDefinitions(Container c, User u, String category, Map<String, String> definitions)
+    {
+        TableInfo ti = getTable();
+        Date created = new Date();
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(ti.getSelectName()).append(" (").append(String.join(", ", COLUMNS)).append(") VALUES (");
+        sql.append(String.join(", ", COLUMNS.stream().map(x -> "?").toList())).append(")");
+
+        List<List<Object>> params = new ArrayList<>(definitions.size());
+        for (Map.Entry<String, String> entry : definitions.entrySet())
+        {
+            params.add(Arrays.<Object>asList(c.getId(), category, entry.getKey(), getTargetContainerId(entry.getValue()), entry.getValue(), u == null ? null : u.getUserId(), created));
+        }
+
+        try (DbScope.Transaction transaction = ti.getSchema().getScope().ensureTransaction())
+        {
+            new SqlExecutor(ti.getSchema()).execute(new SQLFragment("DELETE FROM " + ti.getSelectName() + " WHERE container = ? AND category = ?", c.getId(), category));
+            if (!params.isEmpty())
+                Table.batchExecute(ti.getSchema(), sql.toString(), params);
+
+            transaction.commit();
+        }
+    }
+
+    /**
+     * Finds the sources registered across the site, limited to those in folders this user can read and that target folders they can read.
+     * Each folder's permissions are checked once, and the sources of the readable folders are then read in batches.
+     * @return the serialized sources, keyed on the folder they are registered in and then on the source key
+     */
+    public Map<Container, Map<String, String>> getAllDefinitions(User u, String category)
+    {
+        return getAllDefinitions(u, category, 0, null);
+    }
+
+    /**
+     * As getAllDefinitions(User, String), but only reads one page of folders.  Folders are ordered by path, and a folder whose sources all
+     * target unreadable folders still counts toward the page, so the pages line up with getFolderCount().
+     * @param offset the number of readable folders to skip
+     * @param maxFolders the maximum number of folders to read, or null for all
+     */
+    public Map<Container, Map<String, String>> getAllDefinitions(User u, String category, int offset, @Nullable Integer maxFolders)
+    {
+        TableInfo ti = getTable();
+
+        List<Container> readable = getReadableContainers(u, category);
+        int end = maxFolders == null ? readable.size() : (int)Math.min((long)offset + maxFolders, readable.size());
+        readable = offset >= end ? Collections.emptyList() : readable.subList(offset, end);
+        if (readable.isEmpty())
+            return new LinkedHashMap<>();
+
+        Set<String> readableTargets = new HashSet<>();
+        for (String containerId : new SqlSelector(ti.getSchema(), new SQLFragment("SELECT DISTINCT targetcontainer FROM " + ti.getSelectName() + " WHERE category = ? AND targetcontainer IS NOT NULL", category)).getArrayList(String.class))
+        {
+            //NOTE: a source whose target no longer exists falls back to the folder it is registered in
+            Container c = ContainerManager.getForId(containerId);
+            if (c == null || c.hasPermission(u, ReadPermission.class))
+                readableTargets.add(containerId);
+        }
+
+        Map<Container, Map<String, String>> ret = new LinkedHashMap<>();
+        for (int i = 0; i < readable.size(); i += CONTAINER_BATCH_SIZE)
+        {
+            Map<String, Container> batch = new LinkedHashMap<>();
+            for (Container c : readable.subList(i, Math.min(i + CONTAINER_BATCH_SIZE, readable.size())))
+            {
+                batch.put(c.getId(), c);
+            }
+
+            SimpleFilter filter = new SimpleFilter(FieldKey.fromString("category"), category);
+            filter.addInClause(FieldKey.fromString("container"), batch.keySet());
+
+            //collect each batch first, so folders are returned in path order
+            Map<String, Map<String, String>> rows = new HashMap<>();
+            new TableSelector(ti, PageFlowUtil.set("container", "sourcekey", "targetcontainer", "definition"), filter, new Sort("rowid")).forEach(rs -> {
+                String targetContainer = rs.getString("targetcontainer");
+                if (targetContainer != null && !readableTargets.contains(targetContainer))
+                    return;
+
+                rows.computeIfAbsent(rs.getString("container"), x -> new LinkedHashMap<>()).put(rs.getString("sourcekey"), rs.getString("definition"));
+            });
+
+            for (Map.Entry<String, Container> entry : batch.entrySet())
+            {
+                if (rows.containsKey(entry.getKey()))
+                    ret.put(entry.getValue(), rows.get(entry.getKey()));
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return the number of readable folders with sources of this category, which getAllDefinitions() pages through
+     */
+    public int getFolderCount(User u, String category)
+    {
+        return getReadableContainers(u, category).size();
+    }
+
+    private List<Container> getReadableContainers(User u, String category)
+    {
+        TableInfo ti = getTable();
+
+        List<Container> readable = new ArrayList<>();
+        for (String containerId : new SqlSelector(ti.getSchema(), new SQLFragment("SELECT DISTINCT container FROM " + ti.getSelectName() + " WHERE category = ?", category)).getArrayList(String.class))
+        {
+            Container c = ContainerManager.getForId(containerId);
+            if (c != null && c.hasPermission(u, ReadPermission.class))
+                readable.add(c);
+        }
+
+        readable.sort(Comparator.comparing(Container::getPath, String.CASE_INSENSITIVE_ORDER));
+
+        return readable;
+    }
+
+    private String getTargetContainerId(String definition)
+    {
+        if (definition == null)
+            return null;
+
+        try
+        {
+            return StringUtils.trimToNull(new JSONObject(definition).optString("containerId"));
+        }
+        catch (JSONException e)
+        {
+            //malformed sources are retained, and are reported when they are read
+            return null;
+        }
+    }
+
+    private TableInfo getTable()
+    {
+        return LaboratorySchema.getInstance().getTable(LaboratorySchema.TABLE_DATA_SOURCES);
+    }
+}
@@ -0,0 +1,81 @@
+package org.labkey.laboratory;
+
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.security.User;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * A server-level registry of the demographics and additional data sources saved in each container.
+ * Validating a saved source builds its query, so the validated sources are held per container and user rather than being parsed from
+ * laboratory.data_sources on every call.  They are invalidated when the sources of a container are saved, and otherwise expire after a few
+ * minutes so that changes to permissions or to the underlying queries are picked up.  Only the parsed definitions are held here; the TableInfo
+ * for a source is resolved through the request's QueryCache, since it holds request state and must reflect edits to the query.
+ */
+public class DataSourceRegistry
+{
+    private static final DataSourceRegistry _instance = new DataSourceRegistry();
+
+    private final Cache<String, Set<? extends AbstractDataSource>> _sources = CacheManager.getStringKeyCache(5000, 5 * CacheManager.MINUTE, "Laboratory Data Sources");
+
+    private DataSourceRegistry()
+    {
+
+    }
+
+    public static DataSourceRegistry get()
+    {
+        return _instance;
+    }
+
+    /**
+     * @param category the PropertyManager category the sources are saved under
+     * @param loader parses and validates the sources saved in this container, if they are not cached
+     * @return a copy of the sources, which callers may modify
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends AbstractDataSource> Set<T> getSources(String category, Container c, User u, Supplier<Set<T>> loader)
+    {
+        String key = getSourcesPrefix(category, c) + u.getUserId();
+        Set<T> sources = (Set<T>)_sources.get(key);
+        if (sources == null)
+        {
+            sources = Collections.unmodifiableSet(loader.get());
+            _sources.put(key, sources);
+        }
+
+        return new HashSet<>(sources);
+    }
+
+    /**
+     * Removes the sources saved in this container under this category.  If a transaction is active, this is repeated after commit.
+     */
+    public void invalidate(String category, Container c)
+    {
+        String prefix = getSourcesPrefix(category, c);
+        Runnable r = () -> _sources.removeUsingFilter(key -> key.startsWith(prefix));
+        r.run();
+
+        DbScope scope = DbScope.getLabKeyScope();
+        if (scope.isTransactionActive())
+        {
+            scope.getCurrentTransaction().addCommitTask(r, DbScope.CommitTaskOption.POSTCOMMIT);
+        }
+    }
+
+    public void clear()
+    {
+        _sources.clear();
+    }
+
+    private String getSourcesPrefix(String category, Container c)
+    {
+        return category + "||" + c.getId() + "||";
+    }
+}
@@ -4,7 +4,6 @@
 import org.json.JSONObject;
 import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.Container;
-import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.laboratory.AbstractDataProvider;
 import org.labkey.api.laboratory.DetailsUrlWithoutLabelNavItem;
@@ -58,7 +57,7 @@ public ActionURL getInstructionsUrl(Container c, User u)
 
     private List<NavItem> getItems(Container c, User u, LaboratoryService.NavItemCategory itemType)
     {
-        QueryCache cache = new QueryCache();
+        QueryCache cache = QueryCache.getRequestCache();
         List<NavItem> items = new ArrayList<>();
         if (c.getActiveModules().contains(getOwningModule()))
         {
@@ -221,7 +220,7 @@ public List<NavItem> getSubjectIdSummary(Container c, User u, String subjectId)
                 if (ci != null)
                 {
                     QueryCountNavItem item = new QueryCountNavItem(this, ti.getSchema().getName(), ti.getName(), source.getItemType(), source.getReportCategory(), source.getLabel());
-                    item.setFilter(new SimpleFilter(ci.getFieldKey(), subjectId));
+                    item.setSubjectFilter(ci.getFieldKey(), subjectId);
                     items.add(item);
                 }
             }
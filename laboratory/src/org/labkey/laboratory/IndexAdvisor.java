@@ -0,0 +1,181 @@
+package org.labkey.laboratory;
+
+import org.apache.commons.lang3.StringUtils;
+import org.labkey.api.ldk.IndexUsage;
+import org.labkey.api.ldk.LDKService;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the indexes requested through LaboratoryService.registerTableIndex and registerAssayResultsIndex against the index usage recorded by LDK.
+ * A missing index is recommended if its table is frequently scanned, or if SQL Server reports a missing index with the same leading column.
+ * An existing index is recommended for removal if it has not been read over at least MIN_OBSERVATION_DAYS.  Each recommendation includes the
+ * writes per day to the table, since each of these must also update the index.
+ */
+public class IndexAdvisor
+{
+    private static final IndexAdvisor _instance = new IndexAdvisor();
+
+    public static final int MIN_OBSERVATION_DAYS = 7;
+    public static final double MIN_SEQ_SCANS_PER_DAY = 100;
+
+    //used when there is only one snapshot, in which case the counters are the totals since the statistics were reset
+    public static final long MIN_SEQ_SCANS = 1000;
+
+    private IndexAdvisor()
+    {
+
+    }
+
+    public static IndexAdvisor get()
+    {
+        return _instance;
+    }
+
+    public List<Recommendation> getRecommendations(int days)
+    {
+        Map<String, IndexUsage> tableUsage = new HashMap<>();
+        Map<String, IndexUsage> indexUsage = new HashMap<>();
+        Map<String, List<IndexUsage>> missingIndexes = new HashMap<>();
+        for (IndexUsage usage : LDKService.get().getIndexUsage(days))
+        {
+            String tableKey = getKey(usage.getSchemaName(), usage.getTableName());
+            switch (usage.getRowType())
+            {
+                case IndexUsage.TYPE_TABLE -> tableUsage.put(tableKey, usage);
+                case IndexUsage.TYPE_INDEX -> indexUsage.put(getKey(tableKey, usage.getIndexName()), usage);
+                case IndexUsage.TYPE_MISSING -> missingIndexes.computeIfAbsent(tableKey, x -> new ArrayList<>()).add(usage);
+            }
+        }
+
+        List<Recommendation> ret = new ArrayList<>();
+        for (IndexBuilder.TableIndexes table : LaboratoryManager.get().getRegisteredIndexes())
+        {
+            String tableKey = getKey(table.getSchema().getName(), table.getTable().getName());
+            IndexUsage tableStats = tableUsage.get(tableKey);
+            if (tableStats == null)
+                continue;
+
+            for (IndexBuilder.IndexDefinition index : table.getIndexes())
+            {
+                Recommendation r = new Recommendation(table.getSchema().getName(), table.getTable().getName(), index);
+                r._periodDays = tableStats.getPeriodDays();
+
+                if (index.isExists())
+                {
+                    IndexUsage stats = indexUsage.get(getKey(tableKey, index.getIndexName()));
+                    if (stats == null || stats.getReads() > 0 || stats.getPeriodDays() < MIN_OBSERVATION_DAYS)
+                        continue;
+
+                    r._action = "drop";
+                    r._reads = stats.getReads();
+                    r._sizeBytes = stats.getSizeBytes();
+                    r._writesPerDay = stats.getWrites() / stats.getPeriodDays();
+                    r._reason = "Not used in " + Math.round(stats.getPeriodDays()) + " days";
+                    ret.add(r);
+                }
+                else
+                {
+                    List<String> reasons = new ArrayList<>();
+                    r._seqScans = tableStats.getSeqScans();
+                    r._statementCalls = tableStats.getStatementCalls();
+                    r._writesPerDay = tableStats.getPeriodDays() >= 1 ? tableStats.getWrites() / tableStats.getPeriodDays() : null;
+
+                    boolean frequentlyScanned = tableStats.getPeriodDays() >= 1 ? tableStats.getSeqScans() / tableStats.getPeriodDays() >= MIN_SEQ_SCANS_PER_DAY : tableStats.getSeqScans() >= MIN_SEQ_SCANS;
+                    if (frequentlyScanned)
+                        reasons.add("Table scanned " + tableStats.getSeqScans() + " times" + (tableStats.getStatementCalls() == null ? "" : ", with " + tableStats.getStatementCalls() + " statement calls"));
+
+                    String leadingColumn = StringUtils.substringBefore(index.getColumns().get(0), " ");
+                    for (IndexUsage missing : missingIndexes.getOrDefault(tableKey, new ArrayList<>()))
+                    {
+                        String missingLeadingColumn = StringUtils.substringBefore(StringUtils.substringBefore(missing.getMissingIndexColumns(), ";"), ",");
+                        if (leadingColumn.equalsIgnoreCase(missingLeadingColumn))
+                        {
+                            reasons.add("SQL Server reports a missing index on: " + missing.getMissingIndexColumns());
+                            r._improvementMeasure = (r._improvementMeasure == null ? 0 : r._improvementMeasure) + (missing.getImprovementMeasure() == null ? 0 : missing.getImprovementMeasure());
+                        }
+                    }
+
+                    if (reasons.isEmpty())
+                        continue;
+
+                    r._action = "add";
+                    r._reason = StringUtils.join(reasons, "; ");
+                    ret.add(r);
+                }
+            }
+        }
+
+        ret.sort(Comparator.comparing(Recommendation::getAction).thenComparing(Recommendation::getSchemaName).thenComparing(Recommendation::getTableName));
+
+        return ret;
+    }
+
+    private String getKey(String... parts)
+    {
+        return StringUtils.join(parts, ".").toLowerCase();
+    }
+
+    public static class Recommendation
+    {
+        private final String _schemaName;
+        private final String _tableName;
+        private final IndexBuilder.IndexDefinition _index;
+
+        private String _action;
+        private String _reason;
+        private double _periodDays;
+        private Long _reads = null;
+        private Long _seqScans = null;
+        private Long _statementCalls = null;
+        private Double _improvementMeasure = null;
+        private Double _writesPerDay = null;
+        private Long _sizeBytes = null;
+
+        public Recommendation(String schemaName, String tableName, IndexBuilder.IndexDefinition index)
+        {
+            _schemaName = schemaName;
+            _tableName = tableName;
+            _index = index;
+        }
+
+        public String getAction()
+        {
+            return _action;
+        }
+
+        public String getSchemaName()
+        {
+            return _schemaName;
+        }
+
+        public String getTableName()
+        {
+            return _tableName;
+        }
+
+        public Map<String, Object> toMap()
+        {
+            Map<String, Object> ret = new HashMap<>();
+            ret.put("action", _action);
+            ret.put("schemaName", _schemaName);
+            ret.put("tableName", _tableName);
+            ret.put("indexName", _index.getIndexName());
+            ret.put("columns", StringUtils.join(_index.getColumns(), ", ") + (_index.getIncludedColumns() == null ? "" : " include: " + StringUtils.join(_index.getIncludedColumns(), ", ")));
+            ret.put("reason", _reason);
+            ret.put("periodDays", _periodDays);
+            ret.put("reads", _reads);
+            ret.put("seqScans", _seqScans);
+            ret.put("statementCalls", _statementCalls);
+            ret.put("improvementMeasure", _improvementMeasure);
+            ret.put("writesPerDay", _writesPerDay);
+            ret.put("sizeBytes", _sizeBytes);
+
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package org.labkey.laboratory;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.labkey.api.data.DbSchema;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.security.User;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.ShutdownListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the indexes requested by modules in the background, so that large assay result tables are not locked for the length of the build.
+ * Postgres indexes are built with CREATE INDEX CONCURRENTLY, and SQL Server indexes with ONLINE = ON where the edition supports it.
+ * Indexes on different tables are built in parallel, while those on the same table are built one at a time.  The progress and duration of
+ * each index in the most recent job is retained for display.
+ */
+public class IndexBuilder implements ShutdownListener
+{
+    private static final Logger _log = LogManager.getLogger(IndexBuilder.class);
+    private static final IndexBuilder _instance = new IndexBuilder();
+
+    private static final int MAX_THREADS = 4;
+
+    private final ExecutorService _executor = Executors.newFixedThreadPool(MAX_THREADS, r -> {
+        Thread t = new Thread(r, "Laboratory Index Builder");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Job _currentJob = null;
+
+    private IndexBuilder()
+    {
+        ContextListener.addShutdownListener(this);
+    }
+
+    public static IndexBuilder get()
+    {
+        return _instance;
+    }
+
+    /**
+     * Starts building these indexes in the background
+     * @throws IllegalStateException if a previous job is still running
+     */
+    public synchronized Job start(User u, List<TableIndexes> tables)
+    {
+        if (_currentJob != null && !_currentJob.isComplete())
+            throw new IllegalStateException("An index build is already running");
+
+        Job job = new Job(u, tables);
+        _currentJob = job;
+
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[tables.size()];
+        for (int i = 0; i < tables.size(); i++)
+        {
+            TableIndexes table = tables.get(i);
+            futures[i] = CompletableFuture.runAsync(() -> buildIndexes(table), _executor);
+        }
+
+        CompletableFuture.allOf(futures).whenComplete((r, e) -> {
+            if (e != null)
+                _log.error("Index build task failed", e);
+
+            job._finished = new Date();
+            _log.info("Finished index build started by " + (u == null ? "unknown" : u.getDisplayName(null)) + " in " + (job._finished.getTime() - job._started.getTime()) + "ms");
+        });
+
+        return job;
+    }
+
+    public synchronized Job getCurrentJob()
+    {
+        return _currentJob;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "Laboratory Index Builder";
+    }
+
+    @Override
+    public void shutdownPre()
+    {
+        //no new builds are started, but those running are allowed to finish until shutdown begins
+        _executor.shutdown();
+    }
+
+    @Override
+    public void shutdownStarted()
+    {
+        _executor.shutdownNow();
+    }
+
+    private void buildIndexes(TableIndexes table)
+    {
+        for (IndexDefinition index : table.getIndexes())
+        {
+            index._state = IndexState.running;
+            index._started = new Date();
+            long start = System.currentTimeMillis();
+            try
+            {
+                if (index.isExists() && index.isRebuild())
+                {
+                    dropIndex(table.getSchema(), table.getTable(), index.getIndexName());
+                }
+
+                index._online = createIndex(table.getSchema(), table.getTable(), index);
+                index._state = IndexState.complete;
+            }
+            catch (Exception e)
+            {
+                _log.error("Unable to create index: " + index.getIndexName() + " on table: " + table.getSchema().getName() + "." + table.getTable().getName(), e);
+                index._state = IndexState.failed;
+                index._message = e.getMessage();
+
+                //NOTE: a failed concurrent build on postgres leaves behind an invalid index, which would otherwise be reported as present.
+                //the build can also fail because a valid index of this name already exists, which must be kept
+                if (table.getSchema().getSqlDialect().isPostgreSQL())
+                {
+                    try
+                    {
+                        if (isInvalidIndex(table.getSchema(), index.getIndexName()))
+                            dropIndex(table.getSchema(), table.getTable(), index.getIndexName());
+                    }
+                    catch (Exception e2)
+                    {
+                        _log.error("Unable to remove invalid index: " + index.getIndexName(), e2);
+                    }
+                }
+            }
+            finally
+            {
+                index._duration = System.currentTimeMillis() - start;
+            }
+        }
+    }
+
+    /**
+     * @return true if the index was built online
+     */
+    private boolean createIndex(DbSchema schema, TableInfo realTable, IndexDefinition index)
+    {
+        String columns = StringUtils.join(index.getColumns(), ", ");
+        boolean online;
+        String sqlString;
+        if (schema.getSqlDialect().isSqlServer())
+        {
+            online = supportsOnlineIndexes(schema);
+            sqlString = "CREATE INDEX " + index.getIndexName() + " ON " + realTable.getSelectName() + "(" + columns + ")";
+            if (index.getIncludedColumns() != null)
+                sqlString += " INCLUDE (" + StringUtils.join(index.getIncludedColumns(), ", ") + ") ";
+
+            sqlString += " WITH (DATA_COMPRESSION = ROW" + (online ? ", ONLINE = ON" : "") + ")";
+        }
+        else
+        {
+            //NOTE: this cannot run inside a transaction
+            online = true;
+            sqlString = "CREATE INDEX CONCURRENTLY " + index.getIndexName() + " ON " + realTable.getSelectName() + "(" + columns + ")";
+        }
+
+        new SqlExecutor(schema).execute(new SQLFragment(sqlString));
+
+        return online;
+    }
+
+    private void dropIndex(DbSchema schema, TableInfo realTable, String indexName)
+    {
+        String sqlString;
+        if (schema.getSqlDialect().isSqlServer())
+        {
+            sqlString = "DROP INDEX IF EXISTS " + indexName + " ON " + realTable.getSelectName();
+        }
+        else
+        {
+            sqlString = "DROP INDEX CONCURRENTLY IF EXISTS " + schema.getName() + "." + indexName;
+        }
+
+        new SqlExecutor(schema).execute(new SQLFragment(sqlString));
+    }
+
+    /**
+     * @return true if postgres has an index of this name that is marked invalid, such as one left by a failed CREATE INDEX CONCURRENTLY
+     */
+    private boolean isInvalidIndex(DbSchema schema, String indexName)
+    {
+        SQLFragment sql = new SQLFragment("SELECT i.indisvalid FROM pg_index i JOIN pg_class c ON (c.oid = i.indexrelid) JOIN pg_namespace n ON (n.oid = c.relnamespace) WHERE n.nspname = ? AND c.relname = ?", schema.getName().toLowerCase(), indexName.toLowerCase());
+        Boolean valid = new SqlSelector(schema, sql).getObject(Boolean.class);
+
+        return valid != null && !valid;
+    }
+
+    /**
+     * Online index operations are limited to the Enterprise (and Developer) editions, Azure SQL Database and Azure SQL Managed Instance
+     */
+    private boolean supportsOnlineIndexes(DbSchema schema)
+    {
+        Integer edition = new SqlSelector(schema, new SQLFragment("SELECT CAST(SERVERPROPERTY('EngineEdition') AS INT)")).getObject(Integer.class);
+
+        return edition != null && (edition == 3 || edition == 5 || edition == 8);
+    }
+
+    public enum IndexState
+    {
+        pending,
+        running,
+        complete,
+        failed
+    }
+
+    /**
+     * The indexes to build on one table, which are built in order
+     */
+    public static class TableIndexes
+    {
+        private final DbSchema _schema;
+        private final TableInfo _table;
+        private final List<IndexDefinition> _indexes = new ArrayList<>();
+
+        public TableIndexes(DbSchema schema, TableInfo table)
+        {
+            _schema = schema;
+            _table = table;
+        }
+
+        public DbSchema getSchema()
+        {
+            return _schema;
+        }
+
+        public TableInfo getTable()
+        {
+            return _table;
+        }
+
+        public List<IndexDefinition> getIndexes()
+        {
+            return _indexes;
+        }
+    }
+
+    public static class IndexDefinition
+    {
+        private final String _indexName;
+        private final List<String> _columns;
+        private final String[] _includedColumns;
+        private final boolean _exists;
+        private final boolean _rebuild;
+
+        private volatile IndexState _state = IndexState.pending;
+        private volatile Date _started = null;
+        private volatile Long _duration = null;
+        private volatile boolean _online = false;
+        private volatile String _message = null;
+
+        /**
+         * @param columns the columns to index, including any sort direction
+         * @param exists whether the index is already present
+         * @param rebuild whether an existing index should be dropped and created again
+         */
+        public IndexDefinition(String indexName, List<String> columns, String[] includedColumns, boolean exists, boolean rebuild)
+        {
+            _indexName = indexName;
+            _columns = Collections.unmodifiableList(columns);
+            _includedColumns = includedColumns;
+            _exists = exists;
+            _rebuild = rebuild;
+        }
+
+        public String getIndexName()
+        {
+            return _indexName;
+        }
+
+        public List<String> getColumns()
+        {
+            return _columns;
+        }
+
+        public String[] getIncludedColumns()
+        {
+            return _includedColumns;
+        }
+
+        public boolean isExists()
+        {
+            return _exists;
+        }
+
+        public boolean isRebuild()
+        {
+            return _rebuild;
+        }
+
+        public IndexState getState()
+        {
+            return _state;
+        }
+    }
+
+    public static class Job
+    {
+        private final User _user;
+        private final List<TableIndexes> _tables;
+        private final Date _started = new Date();
+        private volatile Date _finished = null;
+
+        public Job(User user, List<TableIndexes> tables)
+        {
+            _user = user;
+            _tables = tables;
+        }
+
+        public boolean isComplete()
+        {
+            return _finished != null;
+        }
+
+        public Map<String, Object> toMap()
+        {
+            Map<String, Object> ret = new HashMap<>();
+            ret.put("startedBy", _user == null ? null : _user.getDisplayName(null));
+            ret.put("started", _started);
+            ret.put("finished", _finished);
+            ret.put("complete", isComplete());
+
+            List<Map<String, Object>> indexes = new ArrayList<>();
+            for (TableIndexes table : _tables)
+            {
+                for (IndexDefinition index : table.getIndexes())
+                {
+                    Map<String, Object> map = new HashMap<>();
+                    map.put("schemaName", table.getSchema().getName());
+                    map.put("tableName", table.getTable().getName());
+                    map.put("indexName", index.getIndexName());
+                    map.put("columns", StringUtils.join(index.getColumns(), ", "));
+                    map.put("state", index._state.name());
+                    map.put("started", index._started);
+                    map.put("duration", index._duration);
+                    map.put("online", index._online);
+                    map.put("message", index._message);
+                    indexes.add(map);
+                }
+            }
+            ret.put("indexes", indexes);
+
+            return ret;
+        }
+    }
+}
@@ -19,6 +19,7 @@
 import org.labkey.api.security.User;
 import org.labkey.api.security.permissions.InsertPermission;
 import org.labkey.api.view.HttpView;
+import org.labkey.laboratory.query.FreezerOccupancyIndex;
 import org.labkey.laboratory.query.LaboratoryWorkbooksTable;
 import org.labkey.laboratory.query.WorkbookModel;
 
@@ -72,6 +73,14 @@ public void containerCreated(Container c, User user)
         }
     }
 
+    @Override
+    public void containerDeleted(Container c, User user)
+    {
+        super.containerDeleted(c, user);
+
+        FreezerOccupancyIndex.get().invalidate(c);
+    }
+
     @Override
     public void containerMoved(Container c, Container oldParent, User u)
     {
@@ -53,6 +53,9 @@
 import org.labkey.api.laboratory.LaboratoryService;
 import org.labkey.api.laboratory.LaboratoryUrls;
 import org.labkey.api.laboratory.NavItem;
+import org.labkey.api.laboratory.NavItemSettingsCache;
+import org.labkey.api.laboratory.QueryCountNavItem;
+import org.labkey.api.laboratory.SummaryNavItem;
 import org.labkey.api.laboratory.TabbedReportItem;
 import org.labkey.api.laboratory.assay.AbstractAssayDataProvider;
 import org.labkey.api.laboratory.assay.AssayDataProvider;
@@ -60,6 +63,7 @@
 import org.labkey.api.laboratory.assay.AssayParser;
 import org.labkey.api.laboratory.query.ContainerIncrementingTable;
 import org.labkey.api.laboratory.security.LaboratoryAdminPermission;
+import org.labkey.api.ldk.LDKService;
 import org.labkey.api.module.Module;
 import org.labkey.api.module.ModuleHtmlView;
 import org.labkey.api.module.ModuleLoader;
@@ -76,6 +80,7 @@
 import org.labkey.api.security.permissions.InsertPermission;
 import org.labkey.api.security.permissions.ReadPermission;
 import org.labkey.api.security.permissions.UpdatePermission;
+import org.labkey.api.util.DateUtil;
 import org.labkey.api.util.ErrorRenderer;
 import org.labkey.api.util.ExceptionUtil;
 import org.labkey.api.util.JsonUtil;
@@ -101,9 +106,11 @@
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 
 public class LaboratoryController extends SpringActionController
@@ -165,7 +172,7 @@ public void validateCommand(Object form, Errors errors)
         @Override
         public @NotNull URLHelper getSuccessURL(Object form)
         {
-            return getContainer().getStartURL(getUser());
+            return new ActionURL(LaboratoryModule.CONTROLLER_NAME, "indexBuildStatus", getContainer());
         }
 
         @Override
@@ -177,6 +184,7 @@ public ModelAndView getConfirmView(Object form, BindException errors) throws Exc
             List<String> msgs = LaboratoryManager.get().createIndexes(getUser(), false, false);
             msg.append(StringUtils.join(msgs, "<br>"));
 
+            msg.append("<p>Indexes will be built in the background.  Where the database supports it they are built online, so the tables remain writable.");
             msg.append("<p>Do you want to continue?");
 
             return new HtmlView(msg.toString());
@@ -185,11 +193,86 @@ public ModelAndView getConfirmView(Object form, BindException errors) throws Exc
         @Override
         public boolean handlePost(Object form, BindException errors) throws Exception
         {
-            LaboratoryManager.get().createIndexes(getUser(), true, true);
+            try
+            {
+                LaboratoryManager.get().createIndexes(getUser(), true, true);
+            }
+            catch (IllegalStateException e)
+            {
+                errors.reject(ERROR_MSG, e.getMessage());
+                return false;
+            }
+
             return true;
         }
     }
 
+    @RequiresPermission(AdminOperationsPermission.class)
+    public class GetIndexBuildStatusAction extends ReadOnlyApiAction<Object>
+    {
+        @Override
+        public ApiResponse execute(Object form, BindException errors) throws Exception
+        {
+            Map<String, Object> results = new HashMap<>();
+
+            IndexBuilder.Job job = IndexBuilder.get().getCurrentJob();
+            results.put("job", job == null ? null : job.toMap());
+            results.put("success", true);
+
+            return new ApiSimpleResponse(results);
+        }
+    }
+
+    @RequiresPermission(AdminOperationsPermission.class)
+    public class GetIndexRecommendationsAction extends ReadOnlyApiAction<IndexRecommendationsForm>
+    {
+        @Override
+        public ApiResponse execute(IndexRecommendationsForm form, BindException errors) throws Exception
+        {
+            Map<String, Object> results = new HashMap<>();
+
+            int days = form.getDays() == null ? 30 : form.getDays();
+            List<Map<String, Object>> recommendations = new ArrayList<>();
+            for (IndexAdvisor.Recommendation r : IndexAdvisor.get().getRecommendations(days))
+            {
+                recommendations.add(r.toMap());
+            }
+
+            results.put("days", days);
+            results.put("recommendations", recommendations);
+            results.put("success", true);
+
+            return new ApiSimpleResponse(results);
+        }
+    }
+
+    @RequiresPermission(AdminOperationsPermission.class)
+    public class SnapshotIndexUsageAction extends MutatingApiAction<Object>
+    {
+        @Override
+        public ApiResponse execute(Object form, BindException errors) throws Exception
+        {
+            LDKService.get().snapshotIndexUsage();
+
+            return new ApiSimpleResponse("success", true);
+        }
+    }
+
+    public static class IndexRecommendationsForm
+    {
+        private Integer _days;
+
+        public Integer getDays()
+        {
+            return _days;
+        }
+
+        public void setDays(Integer days)
+        {
+            _days = days;
+        }
+    }
+
     public static class PlanExptRunForm
     {
         private Integer _assayId;
@@ -308,7 +391,7 @@ public void validateCommand(SetTableIncrementForm form, Errors errors)
         public ModelAndView getConfirmView(SetTableIncrementForm form, BindException errors) throws Exception
         {
             StringBuilder sb = new StringBuilder();
-            sb.append("This allows you to reset the current value for an auto-incrementing table<br><br>");
+            sb.append("This allows you to reset the current value for an auto-incrementing table.  IDs are reserved in blocks, so the value shown is the end of the most recently reserved block, which can be ahead of the highest ID in the table.<br><br>");
             sb.append("<table style='border-collapse: collapse;'>");
 
             String schema = form.getSchemaName() == null ? "" : form.getSchemaName();
@@ -1149,7 +1232,13 @@ public ApiResponse execute(DataSourcesForm form, BindException errors)
             {
                 if (getUser().hasSiteAdminPermission())
                 {
-                    Map<Container, Set<DemographicsSource>> map = service.getAllDemographicsSources(getUser());
+                    if (form.getSiteSummaryOffset() < 0 || (form.getSiteSummaryMaxFolders() != null && form.getSiteSummaryMaxFolders() < 1))
+                    {
+                        errors.reject(ERROR_MSG, "Invalid site summary offset or maxFolders");
+                        return null;
+                    }
+
+                    Map<Container, Set<DemographicsSource>> map = service.getAllDemographicsSources(getUser(), form.getSiteSummaryOffset(), form.getSiteSummaryMaxFolders());
                     Map<String, JSONArray> siteSummary = new HashMap<String, JSONArray>();
                     for (Container c : map.keySet())
                     {
@@ -1166,6 +1255,10 @@ public ApiResponse execute(DataSourcesForm form, BindException errors)
                     }
 
                     results.put("siteSummary", siteSummary);
+
+                    //the total lets clients page through the folders using siteSummaryOffset and siteSummaryMaxFolders
+                    if (form.getSiteSummaryMaxFolders() != null)
+                        results.put("siteSummaryTotalFolders", DataSourceCatalog.get().getFolderCount(getUser(), LaboratoryServiceImpl.DEMOGRAPHICS_PROPERTY_CATEGORY));
                 }
                 else
                 {
@@ -1226,7 +1319,13 @@ public ApiResponse execute(DataSourcesForm form, BindException errors)
             {
                 if (getUser().hasSiteAdminPermission())
                 {
-                    Map<Container, Set<AdditionalDataSource>> map = service.getAllAdditionalDataSources(getUser());
+                    if (form.getSiteSummaryOffset() < 0 || (form.getSiteSummaryMaxFolders() != null && form.getSiteSummaryMaxFolders() < 1))
+                    {
+                        errors.reject(ERROR_MSG, "Invalid site summary offset or maxFolders");
+                        return null;
+                    }
+
+                    Map<Container, Set<AdditionalDataSource>> map = service.getAllAdditionalDataSources(getUser(), form.getSiteSummaryOffset(), form.getSiteSummaryMaxFolders());
                     Map<String, JSONArray> siteSummary = new HashMap<String, JSONArray>();
                     for (Container c : map.keySet())
                     {
@@ -1243,6 +1342,10 @@ public ApiResponse execute(DataSourcesForm form, BindException errors)
                     }
 
                     results.put("siteSummary", siteSummary);
+
+                    //the total lets clients page through the folders using siteSummaryOffset and siteSummaryMaxFolders
+                    if (form.getSiteSummaryMaxFolders() != null)
+                        results.put("siteSummaryTotalFolders", DataSourceCatalog.get().getFolderCount(getUser(), LaboratoryServiceImpl.DATASOURCE_PROPERTY_CATEGORY));
                 }
                 else
                 {
@@ -1276,6 +1379,8 @@ public ApiResponse execute(DataSourcesForm form, BindException errors)
     {
         private boolean _includeTotals;
         private boolean _includeSiteSummary;
+        private int _siteSummaryOffset = 0;
+        private Integer _siteSummaryMaxFolders = null;
 
         public boolean isIncludeTotals()
         {
@@ -1296,6 +1401,26 @@ public void setIncludeSiteSummary(boolean includeSiteSummary)
         {
             _includeSiteSummary = includeSiteSummary;
         }
+
+        public int getSiteSummaryOffset()
+        {
+            return _siteSummaryOffset;
+        }
+
+        public void setSiteSummaryOffset(int siteSummaryOffset)
+        {
+            _siteSummaryOffset = siteSummaryOffset;
+        }
+
+        public Integer getSiteSummaryMaxFolders()
+        {
+            return _siteSummaryMaxFolders;
+        }
+
+        public void setSiteSummaryMaxFolders(Integer siteSummaryMaxFolders)
+        {
+            _siteSummaryMaxFolders = siteSummaryMaxFolders;
+        }
     }
 
     @RequiresPermission(LaboratoryAdminPermission.class)
@@ -1590,6 +1715,7 @@ public ApiResponse execute(JsonDataForm form, BindException errors)
             }
 
             map.save();
+            NavItemSettingsCache.get().invalidate(getContainer());
 
             results.put("success", true);
             return new ApiSimpleResponse(results);
@@ -1624,6 +1750,7 @@ public ApiResponse execute(JsonDataForm form, BindException errors)
             }
 
             map.save();
+            NavItemSettingsCache.get().invalidate(getContainer());
 
             results.put("success", true);
             return new ApiSimpleResponse(results);
@@ -1731,11 +1858,13 @@ public class GetDataItemsAction extends MutatingApiAction<GetDataItemsForm>
         public ApiResponse execute(GetDataItemsForm form, BindException errors)
         {
             Map<String, Object> results = new HashMap<>();
+            Set<String> degradedProviders = new TreeSet<>();
+            LaboratoryServiceImpl service = LaboratoryServiceImpl.get();
 
             if (form.getTypes() == null || ArrayUtils.contains(form.getTypes(), LaboratoryService.NavItemCategory.samples.name()))
             {
                 List<JSONObject> json = new ArrayList<>();
-                for (NavItem item : LaboratoryService.get().getSampleItems(getContainer(), getUser()))
+                for (NavItem item : service.getSampleItems(getContainer(), getUser(), degradedProviders))
                 {
                     ensureModuleActive(item);
 
@@ -1748,7 +1877,7 @@ public ApiResponse execute(GetDataItemsForm form, BindException errors)
             if (form.getTypes() == null || ArrayUtils.contains(form.getTypes(), LaboratoryService.NavItemCategory.data.name()))
             {
                 List<JSONObject> json = new ArrayList<>();
-                for (NavItem item : LaboratoryService.get().getDataItems(getContainer(), getUser()))
+                for (NavItem item : service.getDataItems(getContainer(), getUser(), degradedProviders))
                 {
                     ensureModuleActive(item);
 
@@ -1761,7 +1890,7 @@ public ApiResponse execute(GetDataItemsForm form, BindException errors)
             if (form.getTypes() == null || ArrayUtils.contains(form.getTypes(), LaboratoryService.NavItemCategory.settings.name()))
             {
                 List<JSONObject> json = new ArrayList<>();
-                for (NavItem item : LaboratoryService.get().getSettingsItems(getContainer(), getUser()))
+                for (NavItem item : service.getSettingsItems(getContainer(), getUser(), degradedProviders))
                 {
                     ensureModuleActive(item);
 
@@ -1774,7 +1903,7 @@ public ApiResponse execute(GetDataItemsForm form, BindException errors)
             if (form.getTypes() == null || ArrayUtils.contains(form.getTypes(), LaboratoryService.NavItemCategory.reports.name()))
             {
                 List<JSONObject> json = new ArrayList<>();
-                for (NavItem item : LaboratoryService.get().getReportItems(getContainer(), getUser()))
+                for (NavItem item : service.getReportItems(getContainer(), getUser(), degradedProviders))
                 {
                     ensureModuleActive(item);
 
@@ -1787,7 +1916,7 @@ public ApiResponse execute(GetDataItemsForm form, BindException errors)
             if (form.getTypes() == null || ArrayUtils.contains(form.getTypes(), LaboratoryService.NavItemCategory.tabbedReports.name()))
             {
                 List<JSONObject> json = new ArrayList<>();
-                for (NavItem item : LaboratoryService.get().getTabbedReportItems(getContainer(), getUser()))
+                for (NavItem item : service.getTabbedReportItems(getContainer(), getUser(), degradedProviders))
                 {
                     ensureModuleActive(item);
 
@@ -1800,7 +1929,7 @@ public ApiResponse execute(GetDataItemsForm form, BindException errors)
             if (form.getTypes() == null || ArrayUtils.contains(form.getTypes(), LaboratoryService.NavItemCategory.misc.name()))
             {
                 List<JSONObject> json = new ArrayList<>();
-                for (NavItem item : LaboratoryService.get().getMiscItems(getContainer(), getUser()))
+                for (NavItem item : service.getMiscItems(getContainer(), getUser(), degradedProviders))
                 {
                     ensureModuleActive(item);
 
@@ -1810,6 +1939,8 @@ public ApiResponse execute(GetDataItemsForm form, BindException errors)
                 results.put(LaboratoryService.NavItemCategory.misc.name(), json);
             }
 
+            //providers that failed or timed out are omitted from the results above
+            results.put("degradedProviders", new ArrayList<>(degradedProviders));
             results.put("success", true);
 
             return new ApiSimpleResponse(results);
@@ -1937,36 +2068,54 @@ public ApiResponse execute(DataSummaryForm form, BindException errors)
                 }
             }
 
-            Map<String, List<NavItem>> items = new HashMap<>();
-            for (DataProvider dp : providers)
+            Set<String> degradedProviders = new TreeSet<>();
+            List<SummaryNavItem> summaryItems = LaboratoryServiceImpl.get().getProviderItems(providers, "summary items", dp -> dp.getSummary(getContainer(), getUser()), degradedProviders);
+
+            Map<String, List<SummaryNavItem>> items = new HashMap<>();
+            for (SummaryNavItem item : summaryItems)
             {
-                for (NavItem item : dp.getSummary(getContainer(), getUser()))
-                {
-                    List<NavItem> list = items.get(item.getItemType().name());
-                    if (list == null)
-                        list = new ArrayList<>();
+                List<SummaryNavItem> list = items.get(item.getItemType().name());
+                if (list == null)
+                    list = new ArrayList<>();
 
-                    list.add(item);
+                list.add(item);
 
-                    items.put(item.getItemType().name(), list);
-                }
+                items.put(item.getItemType().name(), list);
             }
 
-            for (List<NavItem> list : items.values())
+            for (List<SummaryNavItem> list : items.values())
             {
                 LaboratoryService.get().sortNavItems(list);
             }
 
+            SummaryCountStore store = SummaryCountStore.get();
             for (String key : items.keySet())
             {
                 List<JSONObject> jsonItems = new ArrayList<JSONObject>();
-                for (NavItem item : items.get(key))
+                for (SummaryNavItem item : items.get(key))
                 {
-                    jsonItems.add(item.toJSON(getContainer(), getUser()));
+                    //other item types calculate their count in toJSON(), so they are always counted live and have no stored count to report
+                    if (!(item instanceof QueryCountNavItem qc))
+                    {
+                        jsonItems.add(item.toJSON(getContainer(), getUser()));
+                        continue;
+                    }
+
+                    //unless exact counts are requested, use the stored count, which may be up to SummaryCountStore.STALE_MILLIS old
+                    SummaryCountStore.Entry count = form.isLiveCounts() ? store.refresh(getContainer(), getUser(), qc) : store.getCount(getContainer(), getUser(), qc);
+                    qc.setRowCount(count.getCount());
+
+                    JSONObject json = qc.toJSON(getContainer(), getUser());
+                    json.put("countDate", count.getCountDate());
+                    json.put("isStale", count.isStale());
+                    json.put("tooltip", "Counted: " + DateUtil.formatDateTime(getContainer(), count.getCountDate()));
+                    jsonItems.add(json);
                 }
                 results.put(key, jsonItems);
             }
 
+            results.put("degradedProviders", new ArrayList<>(degradedProviders));
+
             return new ApiSimpleResponse(results);
         }
     }
@@ -1974,6 +2123,17 @@ public ApiResponse execute(DataSummaryForm form, BindException errors)
     public static class DataSummaryForm
     {
         String[] dataProviders;
+        boolean _liveCounts = false;
+
+        public boolean isLiveCounts()
+        {
+            return _liveCounts;
+        }
+
+        public void setLiveCounts(boolean liveCounts)
+        {
+            _liveCounts = liveCounts;
+        }
 
         public String[] getDataProviders()
         {
@@ -2019,43 +2179,8 @@ public ApiResponse execute(SubjectSummaryForm form, BindException errors)
                 }
             }
 
-            Map<String, Object> results = new HashMap<>();
-            for (String subjectId : form.getSubjectIds())
-            {
-                Map<String, List<NavItem>> items = new HashMap<>();
-
-                for (DataProvider dp : providers)
-                {
-                    for (NavItem item : dp.getSubjectIdSummary(getContainer(), getUser(), subjectId))
-                    {
-                        List<NavItem> list = items.get(item.getItemType().name());
-                        if (list == null)
-                            list = new ArrayList<>();
-
-                        list.add(item);
-
-                        items.put(item.getItemType().name(), list);
-                    }
-                }
-
-                for (List<NavItem> list : items.values())
-                {
-                    LaboratoryService.get().sortNavItems(list);
-                }
-
-                Map<String, List<JSONObject>> finalItems = new HashMap<>();
-                for (String key : items.keySet())
-                {
-                    List<JSONObject> jsonItems = new ArrayList<>();
-                    for (NavItem item : items.get(key))
-                    {
-                        jsonItems.add(item.toJSON(getContainer(), getUser()));
-                    }
-                    finalItems.put(key, jsonItems);
-                }
-
-                results.put(subjectId, finalItems);
-            }
+            SubjectIdSummaryBuilder builder = new SubjectIdSummaryBuilder(getContainer(), getUser());
+            Map<String, Object> results = builder.build(providers, new ArrayList<>(new LinkedHashSet<>(Arrays.asList(form.getSubjectIds()))));
 
             Map<String, Object> apiResult = new HashMap<>();
             apiResult.put("results", results);
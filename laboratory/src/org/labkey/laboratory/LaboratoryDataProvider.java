@@ -20,7 +20,6 @@
 import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
-import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.laboratory.AbstractDataProvider;
 import org.labkey.api.laboratory.DetailsUrlWithoutLabelNavItem;
@@ -89,7 +88,7 @@ public List<NavItem> getDataNavItems(Container c, User u)
     public List<NavItem> getSampleNavItems(Container c, User u)
     {
         List<NavItem> items = new ArrayList<>();
-        QueryCache cache = new QueryCache();
+        QueryCache cache = QueryCache.getRequestCache();
         if (c.getActiveModules().contains(getOwningModule()))
         {
             items.add(new QueryImportNavItem(this, LaboratoryModule.SCHEMA_NAME, "Samples", LaboratoryService.NavItemCategory.samples, "Samples", cache));
@@ -105,7 +104,7 @@ public List<NavItem> getSampleNavItems(Container c, User u)
     public List<NavItem> getReportItems(Container c, User u)
     {
         List<NavItem> items = new ArrayList<>();
-        QueryCache cache = new QueryCache();
+        QueryCache cache = QueryCache.getRequestCache();
         if (c.getActiveModules().contains(getOwningModule()))
         {
             String reportCategory = "Samples"; //note, this is how they appear in the reports panel
@@ -296,7 +295,7 @@ public List<NavItem> getSubjectIdSummary(Container c, User u, String subjectId)
                         {
                             QueryCountNavItem qc = new QueryCountNavItem(this, item.getSchema(), item.getQuery(), item.getItemType(), item.getReportCategory(), item.getLabel());
                             qc.setQueryCache(item.getQueryCache());
-                            qc.setFilter(new SimpleFilter(ci.getFieldKey(), subjectId));
+                            qc.setSubjectFilter(ci.getFieldKey(), subjectId);
                             items.add(qc);
                         }
                     }
@@ -311,7 +310,7 @@ public List<NavItem> getSubjectIdSummary(Container c, User u, String subjectId)
     public List<TabbedReportItem> getTabbedReportItems(Container c, User u)
     {
         List<TabbedReportItem> items = new ArrayList<>();
-        QueryCache cache = new QueryCache();
+        QueryCache cache = QueryCache.getRequestCache();
 
         NavItem nav = new QueryImportNavItem(this, LaboratoryModule.SCHEMA_NAME, "Samples", LaboratoryService.NavItemCategory.samples, "Samples", cache);
         TabbedReportItem item = new QueryTabbedReportItem(cache, this, LaboratoryModule.SCHEMA_NAME, "Samples", "Samples", "Samples");
@@ -27,6 +27,7 @@
 import org.labkey.api.data.CompareType;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.CoreSchema;
 import org.labkey.api.data.DbSchema;
 import org.labkey.api.data.DbSchemaType;
 import org.labkey.api.data.DbScope;
@@ -34,7 +35,7 @@
 import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.Sort;
-import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.SqlSelector;
 import org.labkey.api.data.Table;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
@@ -60,6 +61,7 @@
 import org.labkey.laboratory.query.LaboratoryWorkbooksTable;
 import org.labkey.laboratory.query.WorkbookModel;
 
+import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -75,6 +77,7 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * User: bimber
@@ -87,9 +90,19 @@
     public static final String DEFAULT_WORKBOOK_FOLDERTYPE_PROPNAME = "DefaultWorkbookFolderType";
     private static final Logger _log = LogManager.getLogger(LaboratoryManager.class);
 
+    //locks held while a parent container's workbooks are registered.  Parents are spread over a fixed number of locks, so this does not grow with the number of containers.
+    private static final int WORKBOOK_LOCK_COUNT = 64;
+    private final Object[] _workbookLocks = new Object[WORKBOOK_LOCK_COUNT];
+
+    //the number of parent containers included in each query for unregistered workbooks
+    private static final int PARENT_BATCH_SIZE = 500;
+
     private LaboratoryManager()
     {
-
+        for (int i = 0; i < WORKBOOK_LOCK_COUNT; i++)
+        {
+            _workbookLocks[i] = new Object();
+        }
     }
 
     public static LaboratoryManager get()
@@ -97,7 +110,7 @@ public static LaboratoryManager get()
         return _instance;
     }
 
-    public synchronized void initLaboratoryWorkbook(Container c, User u)
+    public void initLaboratoryWorkbook(Container c, User u)
     {
         if (!c.isWorkbook())
         {
@@ -107,78 +120,141 @@ public synchronized void initLaboratoryWorkbook(Container c, User u)
         recursivelyInitWorkbooksForContainer(u, c);
     }
 
-    public synchronized void recursivelyInitWorkbooksForContainer(User u, Container c)
+    /**
+     * Registers every workbook in this container and its descendants that lacks a row in laboratory.workbooks, for containers where the
+     * laboratory module is enabled.  Unregistered workbooks of those containers are found with one query per PARENT_BATCH_SIZE parents, and
+     * inserted in batches grouped by parent.  Parents are locked separately, so registering workbooks in one project does not usually block another.
+     */
+    public void recursivelyInitWorkbooksForContainer(User u, Container c)
     {
         if (u == null || !c.hasPermission(u, InsertPermission.class))
         {
             return;
         }
 
-        TableInfo workbookDbTable = DbSchema.get(LaboratoryModule.SCHEMA_NAME, DbSchemaType.Module).getTable(LaboratorySchema.TABLE_WORKBOOKS);
-        List<WorkbookModel> rows = new ArrayList<>();
+        Set<String> eligibleParents = new HashSet<>();
+        Set<String> eligibleWorkbooks = new HashSet<>();
+        if (c.isWorkbook())
+        {
+            if (isLabModuleEnabled(c))
+                eligibleWorkbooks.add(c.getId());
+        }
+        else
+        {
+            collectEligibleParents(c, eligibleParents);
+        }
 
-        doInitWorkbooksForContainer(workbookDbTable, c, rows);
+        if (eligibleParents.isEmpty() && eligibleWorkbooks.isEmpty())
+        {
+            return;
+        }
 
-        if (!rows.isEmpty())
+        //group by parent, so each parent's batch is inserted under that parent's lock
+        Map<String, List<WorkbookModel>> rowsByParent = new TreeMap<>();
+        List<Container> unregistered = getUnregisteredWorkbooks(eligibleParents, eligibleWorkbooks);
+        sortContainers(unregistered);
+        for (Container wb : unregistered)
         {
-            try (DbScope.Transaction t = workbookDbTable.getSchema().getScope().ensureTransaction())
+            rowsByParent.computeIfAbsent(wb.getParent().getId(), id -> new ArrayList<>()).add(WorkbookModel.createNew(wb));
+        }
+
+        for (Map.Entry<String, List<WorkbookModel>> entry : rowsByParent.entrySet())
+        {
+            synchronized (_workbookLocks[Math.floorMod(entry.getKey().hashCode(), WORKBOOK_LOCK_COUNT)])
             {
-                rows.forEach(wb -> Table.insert(u, workbookDbTable, wb));
-                t.commit();
+                insertWorkbooks(entry.getKey(), entry.getValue());
             }
         }
     }
 
-    private void doInitWorkbooksForContainer(TableInfo workbookDbTable, Container c, List<WorkbookModel> rows)
+    private boolean isLabModuleEnabled(Container c)
     {
-        boolean labModuleEnabled = c.getActiveModules().contains(ModuleLoader.getInstance().getModule(LaboratoryModule.class));
+        return c.getActiveModules().contains(ModuleLoader.getInstance().getModule(LaboratoryModule.class));
+    }
 
-        if (labModuleEnabled && c.isWorkbook())
+    /**
+     * Collects this container and its non-workbook descendants whose workbooks should be registered
+     */
+    private void collectEligibleParents(Container c, Set<String> eligibleParents)
+    {
+        if (isLabModuleEnabled(c))
         {
-            prepareToInitLaboratoryWorkbook(workbookDbTable, c, rows);
-            return;
+            eligibleParents.add(c.getId());
         }
 
-        Set<String> childIdsPresent = new HashSet<>();
-        if (labModuleEnabled)
+        for (Container child : c.getChildren())
         {
-            childIdsPresent.addAll(new TableSelector(workbookDbTable, PageFlowUtil.set(LaboratoryWorkbooksTable.WORKBOOK_COL), new SimpleFilter(FieldKey.fromString(LaboratoryWorkbooksTable.PARENT_COL), c.getId()), null).getArrayList(String.class));
+            if (!child.isWorkbook())
+            {
+                collectEligibleParents(child, eligibleParents);
+            }
         }
+    }
 
-        List<Container> children = c.getChildren();
-        sortContainers(children);
-        for (Container child : children)
+    /**
+     * @return the workbooks without a row in laboratory.workbooks that are either children of these parents, or are one of these workbooks
+     */
+    private List<Container> getUnregisteredWorkbooks(Set<String> parentIds, Set<String> workbookIds)
+    {
+        List<String> ids = new ArrayList<>();
+        List<String> parents = new ArrayList<>(parentIds);
+        for (int i = 0; i < parents.size(); i += PARENT_BATCH_SIZE)
         {
-            if (childIdsPresent.contains(child.getId()))
-            {
-                continue;
-            }
+            ids.addAll(getUnregisteredWorkbookIds("c.Parent", parents.subList(i, Math.min(i + PARENT_BATCH_SIZE, parents.size()))));
+        }
 
-            if (child.isWorkbook())
-            {
-                if (labModuleEnabled)
-                {
-                    prepareToInitLaboratoryWorkbook(workbookDbTable, child, rows);
-                }
-            }
-            else
+        if (!workbookIds.isEmpty())
+        {
+            ids.addAll(getUnregisteredWorkbookIds("c.EntityId", new ArrayList<>(workbookIds)));
+        }
+
+        List<Container> ret = new ArrayList<>();
+        for (String id : ids)
+        {
+            Container wb = ContainerManager.getForId(id);
+            if (wb != null && wb.getParent() != null)
             {
-                doInitWorkbooksForContainer(workbookDbTable, child, rows);
+                ret.add(wb);
             }
         }
+
+        return ret;
     }
 
-    private void prepareToInitLaboratoryWorkbook(TableInfo workbookDbTable, Container c, List<WorkbookModel> rows)
+    private List<String> getUnregisteredWorkbookIds(String filterCol, List<String> values)
     {
-        if (!c.isWorkbook())
+        TableInfo containers = CoreSchema.getInstance().getTableInfoContainers();
+        TableInfo workbookDbTable = LaboratorySchema.getInstance().getTable(LaboratorySchema.TABLE_WORKBOOKS);
+
+        SQLFragment sql = new SQLFragment("SELECT c.EntityId FROM ").append(containers.getSelectName()).append(" c WHERE c.Type = ?").add("workbook");
+        sql.append(" AND ").append(filterCol).append(" IN (").append(StringUtils.join(Collections.nCopies(values.size(), "?"), ", ")).append(")").addAll(values);
+        sql.append(" AND NOT EXISTS (SELECT 1 FROM ").append(workbookDbTable.getSelectName()).append(" w WHERE w.container = c.EntityId)");
+
+        return new SqlSelector(containers.getSchema(), sql).getArrayList(String.class);
+    }
+
+    /**
+     * Inserts these rows in one batch.  Rows registered by another thread since they were selected are skipped.
+     */
+    private void insertWorkbooks(String parentId, List<WorkbookModel> rows)
+    {
+        DbSchema schema = LaboratorySchema.getInstance().getSchema();
+        TableInfo workbookDbTable = schema.getTable(LaboratorySchema.TABLE_WORKBOOKS);
+
+        String sql = "INSERT INTO " + workbookDbTable.getSelectName() + " (" + LaboratoryWorkbooksTable.WORKBOOK_ID_COl + ", " + LaboratoryWorkbooksTable.WORKBOOK_COL + ", " + LaboratoryWorkbooksTable.PARENT_COL + ", " + LaboratoryWorkbooksTable.CONTAINER_ROWID_COL + ")" +
+                " SELECT ?, ?, ?, ? WHERE NOT EXISTS (SELECT 1 FROM " + workbookDbTable.getSelectName() + " w WHERE w." + LaboratoryWorkbooksTable.WORKBOOK_COL + " = ?)";
+
+        List<List<?>> params = new ArrayList<>(rows.size());
+        for (WorkbookModel wb : rows)
         {
-            return;
+            Container c = ContainerManager.getForId(wb.getContainer());
+            params.add(Arrays.asList(wb.getWorkbookId(), wb.getContainer(), parentId, c == null ? null : c.getRowId(), wb.getContainer()));
         }
 
-        TableSelector ts = new TableSelector(workbookDbTable, new SimpleFilter(FieldKey.fromString(LaboratoryWorkbooksTable.WORKBOOK_COL), c.getId()), null);
-        if (!ts.exists())
+        try (DbScope.Transaction t = schema.getScope().ensureTransaction())
         {
-            rows.add(WorkbookModel.createNew(c));
+            Table.batchExecute(schema, sql, params);
+            t.commit();
         }
     }
 
@@ -488,11 +564,35 @@ public void initContainerIncrementingTableIds(Container c, User u, String schema
         }
     }
 
+    /**
+     * Compares the indexes requested by modules against those present.  If commitChanges is true, the missing indexes are built by
+     * IndexBuilder in the background; otherwise the changes that would be made are returned.
+     */
     public List<String> createIndexes(User u, boolean commitChanges, boolean rebuildIndexes)
     {
         List<String> messages = new ArrayList<>();
+        List<IndexBuilder.TableIndexes> tables = getIndexPlan(messages, commitChanges, rebuildIndexes);
+        if (commitChanges && !tables.isEmpty())
+        {
+            IndexBuilder.get().start(u, tables);
+        }
 
-        try (DbScope.Transaction transaction = ExperimentService.get().ensureTransaction())
+        return messages;
+    }
+
+    /**
+     * @return every index requested by modules, including those already present, grouped by table
+     */
+    public List<IndexBuilder.TableIndexes> getRegisteredIndexes()
+    {
+        return getIndexPlan(new ArrayList<>(), false, true);
+    }
+
+    private List<IndexBuilder.TableIndexes> getIndexPlan(List<String> messages, boolean commitChanges, boolean rebuildIndexes)
+    {
+        List<IndexBuilder.TableIndexes> tables = new ArrayList<>();
+
+        try
         {
             //add indexes to assays first
             Map<String, List<List<String>>> assayIndexes = LaboratoryServiceImpl.get().getAssayIndexes();
@@ -517,7 +617,7 @@ public List<String> createIndexes(User u, boolean commitChanges, boolean rebuild
                     continue;
                 }
 
-                processIndexes(assayResultSchema, realTable, indexes, distinctIndexes, messages, commitChanges, rebuildIndexes);
+                processIndexes(assayResultSchema, realTable, indexes, distinctIndexes, messages, tables, commitChanges, rebuildIndexes);
             }
 
             Map<String, Map<String, List<List<String>>>> tableIndexes = LaboratoryServiceImpl.get().getTableIndexes();
@@ -539,22 +639,36 @@ public List<String> createIndexes(User u, boolean commitChanges, boolean rebuild
                         continue;
                     }
 
-                    processIndexes(schema, ti, tableIndexes.get(schemaName).get(queryName), distinctIndexes, messages, commitChanges, rebuildIndexes);
+                    processIndexes(schema, ti, tableIndexes.get(schemaName).get(queryName), distinctIndexes, messages, tables, commitChanges, rebuildIndexes);
                 }
             }
-
-            transaction.commit();
         }
         catch (SQLException e)
         {
             throw new RuntimeSQLException(e);
         }
 
-        return messages;
+        return tables;
     }
 
-    private void processIndexes(DbSchema schema, TableInfo realTable, List<List<String>> indexes, Set<String> distinctIndexes, List<String> messages, boolean commitChanges, boolean rebuildIndexes) throws SQLException
+    private void processIndexes(DbSchema schema, TableInfo realTable, List<List<String>> indexes, Set<String> distinctIndexes, List<String> messages, List<IndexBuilder.TableIndexes> tables, boolean commitChanges, boolean rebuildIndexes) throws SQLException
     {
+        IndexBuilder.TableIndexes toBuild = new IndexBuilder.TableIndexes(schema, realTable);
+
+        //the existing indexes are read once per table, rather than once per requested index
+        Set<String> indexNames = new CaseInsensitiveHashSet();
+        try (Connection con = schema.getScope().getConnection())
+        {
+            DatabaseMetaData meta = con.getMetaData();
+            try (ResultSet rs = meta.getIndexInfo(schema.getScope().getDatabaseName(), schema.getName(), realTable.getName(), false, false))
+            {
+                while (rs.next())
+                {
+                    indexNames.add(rs.getString("INDEX_NAME"));
+                }
+            }
+        }
+
         for (List<String> indexCols : indexes)
         {
             boolean missingCols = false;
@@ -604,76 +718,39 @@ private void processIndexes(DbSchema schema, TableInfo realTable, List<List<Stri
                 throw new RuntimeException("An index has already been created with the name: " + indexName);
             distinctIndexes.add(indexName);
 
-            Set<String> indexNames = new CaseInsensitiveHashSet();
-            DatabaseMetaData meta = schema.getScope().getConnection().getMetaData();
-
-            try (ResultSet rs = meta.getIndexInfo(schema.getScope().getDatabaseName(), schema.getName(), realTable.getName(), false, false))
-            {
-                while (rs.next())
-                {
-                    indexNames.add(rs.getString("INDEX_NAME"));
-                }
-            }
-
             boolean exists = indexNames.contains(indexName);
-            if (exists && rebuildIndexes)
+            if (exists && !rebuildIndexes)
             {
-                if (commitChanges)
-                {
-                    dropIndex(schema, realTable, indexName, cols, realTable.getName(), messages);
-                }
-                else
-                {
-                    messages.add("Will drop/recreate index on column(s): " + StringUtils.join(cols, ", ") + " for table: " + schema.getName() + "." + realTable.getName());
-                }
-                exists = false;
+                continue;
             }
 
-            if (!exists)
+            List<String> columns = new ArrayList<>();
+            for (String name : cols)
             {
-                if (commitChanges)
-                {
-                    List<String> columns = new ArrayList<>();
-                    for (String name : cols)
-                    {
-                        if (schema.getSqlDialect().isSqlServer() && directionMap.containsKey(name))
-                            name += " " + directionMap.get(name);
+                if (schema.getSqlDialect().isSqlServer() && directionMap.containsKey(name))
+                    name += " " + directionMap.get(name);
 
-                        columns.add(name);
-                    }
+                columns.add(name);
+            }
+            toBuild.getIndexes().add(new IndexBuilder.IndexDefinition(indexName, columns, includedCols, exists, rebuildIndexes));
 
-                    createIndex(schema, realTable, realTable.getName(), indexName, columns, includedCols, messages);
-                }
-                else
-                {
-                    messages.add("Missing index on column(s): " + StringUtils.join(indexCols, ", ") + (includedCols != null ? " include: " + StringUtils.join(includedCols, ",") : "") + " for table: " + schema.getName() + "." + realTable.getName());
-                }
+            if (commitChanges)
+            {
+                messages.add((exists ? "Rebuilding" : "Creating") + " index on column(s): " + StringUtils.join(columns, ", ") + " for table: " + schema.getName() + "." + realTable.getName());
+            }
+            else if (exists)
+            {
+                messages.add("Will drop/recreate index on column(s): " + StringUtils.join(cols, ", ") + " for table: " + schema.getName() + "." + realTable.getName());
+            }
+            else
+            {
+                messages.add("Missing index on column(s): " + StringUtils.join(indexCols, ", ") + (includedCols != null ? " include: " + StringUtils.join(includedCols, ",") : "") + " for table: " + schema.getName() + "." + realTable.getName());
             }
         }
-    }
 
-    private void createIndex(DbSchema schema, TableInfo realTable, String tableName, String indexName, List<String> columns, String[] includedCols, List<String> messages)
-    {
-        messages.add("Creating index on column(s): " + StringUtils.join(columns, ", ") + " for table: " + schema.getName() + "." + tableName);
-        String sqlString = "CREATE INDEX " + indexName + " ON " + realTable.getSelectName() + "(" + StringUtils.join(columns, ", ") + ")";
-        if (schema.getSqlDialect().isSqlServer())
+        if (!toBuild.getIndexes().isEmpty())
         {
-            if (includedCols != null)
-                sqlString += " INCLUDE (" + StringUtils.join(includedCols, ", ") + ") ";
-
-            sqlString += " WITH (DATA_COMPRESSION = ROW)";
+            tables.add(toBuild);
         }
-        SQLFragment sql = new SQLFragment(sqlString);
-        SqlExecutor se = new SqlExecutor(schema);
-        se.execute(sql);
-    }
-
-    private void dropIndex(DbSchema schema, TableInfo realTable, String indexName, List<String> cols, String tableName, List<String> messages)
-    {
-        messages.add("Dropping index on column(s): " + StringUtils.join(cols, ", ") + " for table: " + schema.getName() + "." + tableName);
-        String sqlString = "DROP INDEX " + indexName + " ON " + realTable.getSelectName();
-        SQLFragment sql = new SQLFragment(sqlString);
-        SqlExecutor se = new SqlExecutor(schema);
-        se.execute(sql);
     }
 }
@@ -76,7 +76,7 @@ public String getName()
     @Override
     public @Nullable Double getSchemaVersion()
     {
-        return 12.305;
+        return 12.307;
     }
 
     @Override
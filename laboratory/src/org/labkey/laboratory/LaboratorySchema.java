@@ -37,6 +37,7 @@
     public static final String TABLE_SAMPLE_TYPE = "sample_type";
     public static final String TABLE_WORKBOOKS = "workbooks";
     public static final String TABLE_WORKBOOK_TAGS = "workbook_tags";
+    public static final String TABLE_DATA_SOURCES = "data_sources";
     public static final String TABLE_ASSAY_RUN_TEMPLATES = "assay_run_templates";
 
     public static LaboratorySchema getInstance()
@@ -25,7 +25,6 @@
 import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.Container;
-import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.PropertyManager;
 import org.labkey.api.data.PropertyManager.WritablePropertyMap;
 import org.labkey.api.data.TableCustomizer;
@@ -44,14 +43,15 @@
 import org.labkey.api.laboratory.assay.AssayDataProvider;
 import org.labkey.api.laboratory.assay.SimpleAssayDataProvider;
 import org.labkey.api.ldk.table.ButtonConfigFactory;
+import org.labkey.api.ldk.table.QueryCache;
 import org.labkey.api.module.Module;
 import org.labkey.api.module.ModuleLoader;
 import org.labkey.api.module.ModuleProperty;
 import org.labkey.api.pipeline.PipelineService;
 import org.labkey.api.query.ValidationException;
 import org.labkey.api.security.User;
-import org.labkey.api.security.permissions.ReadPermission;
 import org.labkey.api.util.Pair;
+import org.labkey.api.view.HttpView;
 import org.labkey.api.view.ViewContext;
 import org.labkey.laboratory.assay.AssayHelper;
 import org.labkey.laboratory.query.DefaultAssayCustomizer;
@@ -59,16 +59,31 @@
 import org.labkey.vfs.FileLike;
 
 import java.io.File;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * User: bimber
@@ -84,12 +99,23 @@ public class LaboratoryServiceImpl extends LaboratoryService
     private final Map<String, Map<String, List<ButtonConfigFactory>>> _assayButtons = new CaseInsensitiveHashMap<>();
     private final Map<String, DataProvider> _dataProviders = new HashMap<>();
     private final Map<String, Map<String, List<Pair<Module, Class<? extends TableCustomizer>>>>> _tableCustomizers = new CaseInsensitiveHashMap<>();
+    private final Map<String, List<CustomizerEntry>> _customizerIndex = new ConcurrentHashMap<>();
     private final List<DemographicsProvider> _demographicsProviders = new ArrayList<>();
 
     public static final String DEMOGRAPHICS_PROPERTY_CATEGORY = "laboratory.demographicsSource";
     public static final String DATASOURCE_PROPERTY_CATEGORY = "laboratory.additionalDataSource";
     public static final String URL_DATASOURCE_PROPERTY_CATEGORY = "laboratory.urlDataSource";
 
+    public static final int PROVIDER_THREADS = 8;
+    public static final int PROVIDER_TIMEOUT_SECONDS = 20;
+    public static final long PROVIDER_QUEUE_MILLIS = 1000;
+
+    private final ExecutorService _providerExecutor = Executors.newFixedThreadPool(PROVIDER_THREADS, r -> {
+        Thread t = new Thread(r, "Laboratory DataProvider");
+        t.setDaemon(true);
+        return t;
+    });
+
     private LaboratoryServiceImpl()
     {
 
@@ -227,11 +253,12 @@ public Pair<ExpExperiment, ExpRun> saveAssayBatch(List<Map<String, Object>> resu
     @Override
     public List<NavItem> getSettingsItems(Container c, User u)
     {
-        List<NavItem> items = new ArrayList<>();
-        for (DataProvider dp : getDataProviders())
-        {
-            items.addAll(dp.getSettingsItems(c, u));
-        }
+        return getSettingsItems(c, u, null);
+    }
+
+    public List<NavItem> getSettingsItems(Container c, User u, @Nullable Collection<String> degradedProviders)
+    {
+        List<NavItem> items = getProviderItems(getDataProviders(), "settings items", dp -> dp.getSettingsItems(c, u), degradedProviders);
         sortNavItems(items);
         return Collections.unmodifiableList(items);
     }
@@ -239,10 +266,12 @@ public List<NavItem> getSettingsItems(Container c, User u)
     @Override
     public List<NavItem> getSampleItems(Container c, User u)
     {
-        List<NavItem> navItems = new ArrayList<>();
-        for (DataProvider dp : getDataProviders()){
-            navItems.addAll(dp.getSampleNavItems(c, u));
-        }
+        return getSampleItems(c, u, null);
+    }
+
+    public List<NavItem> getSampleItems(Container c, User u, @Nullable Collection<String> degradedProviders)
+    {
+        List<NavItem> navItems = getProviderItems(getDataProviders(), "sample items", dp -> dp.getSampleNavItems(c, u), degradedProviders);
         sortNavItems(navItems);
         return Collections.unmodifiableList(navItems);
     }
@@ -250,10 +279,12 @@ public List<NavItem> getSampleItems(Container c, User u)
     @Override
     public List<NavItem> getMiscItems(Container c, User u)
     {
-        List<NavItem> navItems = new ArrayList<>();
-        for (DataProvider dp : getDataProviders()){
-            navItems.addAll(dp.getMiscItems(c, u));
-        }
+        return getMiscItems(c, u, null);
+    }
+
+    public List<NavItem> getMiscItems(Container c, User u, @Nullable Collection<String> degradedProviders)
+    {
+        List<NavItem> navItems = getProviderItems(getDataProviders(), "misc items", dp -> dp.getMiscItems(c, u), degradedProviders);
         sortNavItems(navItems);
         return Collections.unmodifiableList(navItems);
     }
@@ -261,10 +292,12 @@ public List<NavItem> getMiscItems(Container c, User u)
     @Override
     public List<NavItem> getReportItems(Container c, User u)
     {
-        List<NavItem> navItems = new ArrayList<>();
-        for (DataProvider dp : getDataProviders()){
-            navItems.addAll(dp.getReportItems(c, u));
-        }
+        return getReportItems(c, u, null);
+    }
+
+    public List<NavItem> getReportItems(Container c, User u, @Nullable Collection<String> degradedProviders)
+    {
+        List<NavItem> navItems = getProviderItems(getDataProviders(), "report items", dp -> dp.getReportItems(c, u), degradedProviders);
         sortNavItems(navItems);
 
         return Collections.unmodifiableList(navItems);
@@ -273,16 +306,139 @@ public List<NavItem> getReportItems(Container c, User u)
     @Override
     public List<NavItem> getDataItems(Container c, User u)
     {
-        List<NavItem> navItems = new ArrayList<>();
-        for (DataProvider dp : LaboratoryService.get().getDataProviders())
-        {
-            navItems.addAll(dp.getDataNavItems(c, u));
-        }
+        return getDataItems(c, u, null);
+    }
+
+    public List<NavItem> getDataItems(Container c, User u, @Nullable Collection<String> degradedProviders)
+    {
+        List<NavItem> navItems = getProviderItems(getDataProviders(), "data items", dp -> dp.getDataNavItems(c, u), degradedProviders);
 
         sortNavItems(navItems);
         return Collections.unmodifiableList(navItems);
     }
 
+    /**
+     * Calls each DataProvider concurrently on a shared, bounded executor and combines the results.  The caller is expected to sort them.
+     * Each call runs with a ViewContext for the current user, container and URL, and shares the request's QueryCache.  A call that has not started
+     * within PROVIDER_QUEUE_MILLIS, because the executor is busy with other requests, is run on the calling thread instead.
+     * A provider that throws, or does not finish within PROVIDER_TIMEOUT_SECONDS of its call starting, is logged and skipped,
+     * and its name is added to degradedProviders if provided.
+     */
+    public <T extends NavItem> List<T> getProviderItems(Collection<DataProvider> providers, String description, Function<DataProvider, List<? extends T>> fn, @Nullable Collection<String> degradedProviders)
+    {
+        List<T> ret = new ArrayList<>();
+        if (providers.isEmpty())
+            return ret;
+
+        ViewContext context = HttpView.hasCurrentView() ? HttpView.currentContext() : null;
+        QueryCache queryCache = QueryCache.getRequestCache();
+
+        Map<DataProvider, ProviderCall<T>> calls = new LinkedHashMap<>();
+        for (DataProvider dp : providers)
+        {
+            ProviderCall<T> call = new ProviderCall<>(() -> fn.apply(dp));
+            call._future = _providerExecutor.submit(() -> {
+                if (!call.claim())
+                    return null;
+
+                if (context == null)
+                    return call._work.get();
+
+                try (ViewContext.StackResetter ignored = ViewContext.pushMockViewContext(context.getUser(), context.getContainer(), context.getActionURL()))
+                {
+                    QueryCache.setRequestCache(queryCache);
+                    return call._work.get();
+                }
+            });
+            calls.put(dp, call);
+        }
+
+        for (DataProvider dp : calls.keySet())
+        {
+            ProviderCall<T> call = calls.get(dp);
+            try
+            {
+                if (!call.awaitStart(PROVIDER_QUEUE_MILLIS) && call.claim())
+                {
+                    //the executor is saturated, so this provider is run here rather than waiting for a thread
+                    ret.addAll(call._work.get());
+                    continue;
+                }
+
+                long remaining = call._started + (PROVIDER_TIMEOUT_SECONDS * 1000L) - System.currentTimeMillis();
+                ret.addAll(call._future.get(Math.max(0, remaining), TimeUnit.MILLISECONDS));
+            }
+            catch (TimeoutException e)
+            {
+                call._future.cancel(true);
+                _log.warn("DataProvider " + dp.getName() + " did not return " + description + " within " + PROVIDER_TIMEOUT_SECONDS + " seconds of starting, and was skipped");
+                if (degradedProviders != null)
+                    degradedProviders.add(dp.getName());
+            }
+            catch (ExecutionException e)
+            {
+                _log.error("Error getting " + description + " from DataProvider: " + dp.getName(), e.getCause());
+                if (degradedProviders != null)
+                    degradedProviders.add(dp.getName());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                calls.values().forEach(c -> c._future.cancel(true));
+                break;
+            }
+            catch (Exception e)
+            {
+                _log.error("Error getting " + description + " from DataProvider: " + dp.getName(), e);
+                if (degradedProviders != null)
+                    degradedProviders.add(dp.getName());
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * One call to a DataProvider, which is run either by the executor or by the calling thread, whichever claims it first
+     */
+    private static class ProviderCall<T>
+    {
+        private final Supplier<List<? extends T>> _work;
+        private final CountDownLatch _startLatch = new CountDownLatch(1);
+        private final AtomicBoolean _claimed = new AtomicBoolean(false);
+        private volatile long _started = 0;
+        private Future<List<? extends T>> _future;
+
+        public ProviderCall(Supplier<List<? extends T>> work)
+        {
+            _work = work;
+        }
+
+        public boolean claim()
+        {
+            if (!_claimed.compareAndSet(false, true))
+                return false;
+
+            _started = System.currentTimeMillis();
+            _startLatch.countDown();
+            return true;
+        }
+
+        /**
+         * @return true if the call was claimed within this time
+         */
+        public boolean awaitStart(long millis) throws InterruptedException
+        {
+            return _startLatch.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void invalidateSummaryCounts(Container c)
+    {
+        SummaryCountStore.get().invalidate(c);
+    }
+
     @Override
     public DataProvider getDataProvider(String name)
     {
@@ -378,15 +534,18 @@ public TableCustomizer getAssayTableCustomizer()
 
     public Set<DemographicsSource> getDemographicsSources(Container c, User u) throws IllegalArgumentException
     {
-        Set<DemographicsSource> qds = new HashSet<>();
-
         Container target = c.isWorkbookOrTab() ? c.getParent() : c;
-        Map<String, String> properties = PropertyManager.getProperties(target, DEMOGRAPHICS_PROPERTY_CATEGORY);
-        for (String key : properties.keySet())
+        return DataSourceRegistry.get().getSources(DEMOGRAPHICS_PROPERTY_CATEGORY, target, u, () -> parseDemographicsSources(target, u, DataSourceCatalog.get().getDefinitions(target, DEMOGRAPHICS_PROPERTY_CATEGORY)));
+    }
+
+    private Set<DemographicsSource> parseDemographicsSources(Container c, User u, Map<String, String> definitions)
+    {
+        Set<DemographicsSource> qds = new HashSet<>();
+        for (String key : definitions.keySet())
         {
             try
             {
-                DemographicsSource source = DemographicsSource.getFromPropertyManager(target, u, key, properties.get(key));
+                DemographicsSource source = DemographicsSource.getFromPropertyManager(c, u, key, definitions.get(key));
                 if (source != null)
                 {
                     qds.add(source);
@@ -404,8 +563,7 @@ public Set<DemographicsSource> getDemographicsSources(Container c, User u) throw
     public void setDemographicsSources(Container c, User u, Set<DemographicsSource> sources) throws IllegalArgumentException
     {
         Container target = c.isWorkbookOrTab() ? c.getParent() : c;
-        WritablePropertyMap props = PropertyManager.getWritableProperties(target, DEMOGRAPHICS_PROPERTY_CATEGORY, true);
-        props.clear();
+        Map<String, String> definitions = new LinkedHashMap<>();
 
         Set<String> labels = new HashSet<>();
         for (DemographicsSource qd : sources)
@@ -417,40 +575,28 @@ public void setDemographicsSources(Container c, User u, Set<DemographicsSource>
 
             labels.add(name);
 
-            props.put(qd.getPropertyManagerKey(), qd.getPropertyManagerValue());
+            definitions.put(qd.getPropertyManagerKey(), qd.getPropertyManagerValue());
         }
-        props.save();
+        DataSourceCatalog.get().saveDefinitions(target, u, DEMOGRAPHICS_PROPERTY_CATEGORY, definitions);
+
+        DataSourceRegistry.get().invalidate(DEMOGRAPHICS_PROPERTY_CATEGORY, target);
     }
 
     //enforce read permission silently.  expect the action to limit this to admins
     public Map<Container, Set<AdditionalDataSource>> getAllAdditionalDataSources(User u) throws IllegalArgumentException
     {
-        Map<Container, Set<AdditionalDataSource>> map = new HashMap<>();
-        PropertyManager.PropertyEntry[] entries = PropertyManager.findPropertyEntries(null, null, DATASOURCE_PROPERTY_CATEGORY, null);
-        for (PropertyManager.PropertyEntry entry : entries)
-        {
-            Container c = ContainerManager.getForId(entry.getObjectId());
-            if (c == null || !c.hasPermission(u, ReadPermission.class))
-                continue;
-
-            Set<AdditionalDataSource> set = map.get(c);
-            if (set == null)
-                set = new HashSet<>();
-
-            AdditionalDataSource source = AdditionalDataSource.getFromPropertyManager(c, u, entry.getKey(), entry.getValue());
-            if (source == null)
-            {
-                continue;
-            }
-
-            Container targetContainer = source.getTargetContainer(c);
-            if (targetContainer == null || !targetContainer.hasPermission(u, ReadPermission.class))
-            {
-                continue;
-            }
+        return getAllAdditionalDataSources(u, 0, null);
+    }
 
-            set.add(source);
-            map.put(c, set);
+    //as above, for one page of the folders ordered by path.  see DataSourceCatalog.getAllDefinitions()
+    public Map<Container, Set<AdditionalDataSource>> getAllAdditionalDataSources(User u, int offset, @Nullable Integer maxFolders) throws IllegalArgumentException
+    {
+        Map<Container, Set<AdditionalDataSource>> map = new LinkedHashMap<>();
+        for (Map.Entry<Container, Map<String, String>> entry : DataSourceCatalog.get().getAllDefinitions(u, DATASOURCE_PROPERTY_CATEGORY, offset, maxFolders).entrySet())
+        {
+            Set<AdditionalDataSource> set = parseAdditionalDataSources(entry.getKey(), u, entry.getValue());
+            if (!set.isEmpty())
+                map.put(entry.getKey(), set);
         }
 
         return Collections.unmodifiableMap(map);
@@ -459,36 +605,18 @@ public Map<Container, Set<AdditionalDataSource>> getAllAdditionalDataSources(Use
     //enforce read permission silently.  expect the action to limit this to admins
     public Map<Container, Set<DemographicsSource>> getAllDemographicsSources(User u) throws IllegalArgumentException
     {
-        Map<Container, Set<DemographicsSource>> map = new HashMap<>();
-        PropertyManager.PropertyEntry[] entries = PropertyManager.findPropertyEntries(null, null, DEMOGRAPHICS_PROPERTY_CATEGORY, null);
-        for (PropertyManager.PropertyEntry entry : entries)
-        {
-            Container c = ContainerManager.getForId(entry.getObjectId());
-            if (c == null || !c.hasPermission(u, ReadPermission.class))
-            {
-                continue;
-            }
-
-            Set<DemographicsSource> set = map.get(c);
-            if (set == null)
-            {
-                set = new HashSet<>();
-            }
-
-            DemographicsSource source = DemographicsSource.getFromPropertyManager(c, u, entry.getKey(), entry.getValue());
-            if (source == null)
-            {
-                continue;
-            }
-
-            Container targetContainer = source.getTargetContainer(c);
-            if (targetContainer == null || !targetContainer.hasPermission(u, ReadPermission.class))
-            {
-                continue;
-            }
+        return getAllDemographicsSources(u, 0, null);
+    }
 
-            set.add(source);
-            map.put(c, set);
+    //as above, for one page of the folders ordered by path.  see DataSourceCatalog.getAllDefinitions()
+    public Map<Container, Set<DemographicsSource>> getAllDemographicsSources(User u, int offset, @Nullable Integer maxFolders) throws IllegalArgumentException
+    {
+        Map<Container, Set<DemographicsSource>> map = new LinkedHashMap<>();
+        for (Map.Entry<Container, Map<String, String>> entry : DataSourceCatalog.get().getAllDefinitions(u, DEMOGRAPHICS_PROPERTY_CATEGORY, offset, maxFolders).entrySet())
+        {
+            Set<DemographicsSource> set = parseDemographicsSources(entry.getKey(), u, entry.getValue());
+            if (!set.isEmpty())
+                map.put(entry.getKey(), set);
         }
 
         return Collections.unmodifiableMap(map);
@@ -519,15 +647,18 @@ public Set<URLDataSource> getURLDataSources(Container c, User u) throws IllegalA
 
     public Set<AdditionalDataSource> getAdditionalDataSources(Container c, User u) throws IllegalArgumentException
     {
-        Set<AdditionalDataSource> qds = new HashSet<>();
-
         Container target = c.isWorkbookOrTab() ? c.getParent() : c;
-        Map<String, String> properties = PropertyManager.getProperties(target, DATASOURCE_PROPERTY_CATEGORY);
-        for (String key : properties.keySet())
+        return DataSourceRegistry.get().getSources(DATASOURCE_PROPERTY_CATEGORY, target, u, () -> parseAdditionalDataSources(target, u, DataSourceCatalog.get().getDefinitions(target, DATASOURCE_PROPERTY_CATEGORY)));
+    }
+
+    private Set<AdditionalDataSource> parseAdditionalDataSources(Container c, User u, Map<String, String> definitions)
+    {
+        Set<AdditionalDataSource> qds = new HashSet<>();
+        for (String key : definitions.keySet())
         {
             try
             {
-                AdditionalDataSource source = AdditionalDataSource.getFromPropertyManager(target, u, key, properties.get(key));
+                AdditionalDataSource source = AdditionalDataSource.getFromPropertyManager(c, u, key, definitions.get(key));
                 if (source != null)
                     qds.add(source);
             }
@@ -556,24 +687,25 @@ public void setURLDataSources(Container c, User u, Set<URLDataSource> sources)
     public void setAdditionalDataSources(Container c, User u, Set<AdditionalDataSource> sources)
     {
         Container cc = c.isWorkbookOrTab() ? c.getParent() : c;
-        WritablePropertyMap props = PropertyManager.getWritableProperties(cc, DATASOURCE_PROPERTY_CATEGORY, true);
-        props.clear();
-
+        Map<String, String> definitions = new LinkedHashMap<>();
         for (AdditionalDataSource qd : sources)
         {
-            props.put(qd.getPropertyManagerKey(), qd.getPropertyManagerValue());
+            definitions.put(qd.getPropertyManagerKey(), qd.getPropertyManagerValue());
         }
-        props.save();
+        DataSourceCatalog.get().saveDefinitions(cc, u, DATASOURCE_PROPERTY_CATEGORY, definitions);
+
+        DataSourceRegistry.get().invalidate(DATASOURCE_PROPERTY_CATEGORY, cc);
     }
 
     @Override
     public List<TabbedReportItem> getTabbedReportItems(Container c, User u)
     {
-        List<TabbedReportItem> items = new ArrayList<>();
-        for (DataProvider dp : getDataProviders())
-        {
-            items.addAll(dp.getTabbedReportItems(c, u));
-        }
+        return getTabbedReportItems(c, u, null);
+    }
+
+    public List<TabbedReportItem> getTabbedReportItems(Container c, User u, @Nullable Collection<String> degradedProviders)
+    {
+        List<TabbedReportItem> items = getProviderItems(getDataProviders(), "tabbed report items", dp -> dp.getTabbedReportItems(c, u), degradedProviders);
         sortNavItems(items);
         return items;
     }
@@ -623,7 +755,7 @@ public Map<String, Map<String, List<List<String>>>> getTableIndexes()
     public static String ALL = "*";
 
     @Override
-    public void registerTableCustomizer(Module owner, Class<? extends TableCustomizer> customizerClass, String schemaName, String queryName)
+    public synchronized void registerTableCustomizer(Module owner, Class<? extends TableCustomizer> customizerClass, String schemaName, String queryName)
     {
         Map<String, List<Pair<Module, Class<? extends TableCustomizer>>>> schemaMap = _tableCustomizers.get(schemaName);
         if (schemaMap == null)
@@ -637,39 +769,112 @@ public void registerTableCustomizer(Module owner, Class<? extends TableCustomize
 
         schemaMap.put(queryName, list);
         _tableCustomizers.put(schemaName, schemaMap);
+
+        //resolved entries are rebuilt on demand from the new registrations
+        _customizerIndex.clear();
     }
 
     public List<TableCustomizer> getCustomizers(Container c, String schemaName, String queryName)
     {
-        List<TableCustomizer> list = new ArrayList<>();
+        List<CustomizerEntry> entries = getCustomizerEntries(schemaName, queryName);
+        if (entries.isEmpty())
+            return Collections.emptyList();
+
+        List<TableCustomizer> list = new ArrayList<>(entries.size());
         Set<Module> modules = c.getActiveModules();
+        for (CustomizerEntry entry : entries)
+        {
+            if (modules.contains(entry.getOwner()))
+            {
+                TableCustomizer tc = entry.getInstance();
+                if (tc != null)
+                    list.add(tc);
+            }
+        }
 
-        for (String sn : Arrays.asList(ALL, schemaName))
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @return the customizers registered against this schema and query, including wildcards, in the order they should be applied.
+     * These are resolved once per schema/query and reused until another customizer is registered.
+     */
+    private List<CustomizerEntry> getCustomizerEntries(String schemaName, String queryName)
+    {
+        String key = (schemaName == null ? "" : schemaName.toLowerCase()) + "||" + (queryName == null ? "" : queryName.toLowerCase());
+        List<CustomizerEntry> entries = _customizerIndex.get(key);
+        if (entries != null)
+            return entries;
+
+        synchronized (this)
         {
-            for (String qn : Arrays.asList(ALL, queryName))
+            List<CustomizerEntry> ret = new ArrayList<>();
+            for (String sn : Arrays.asList(ALL, schemaName))
             {
-                if (_tableCustomizers.containsKey(sn))
+                for (String qn : Arrays.asList(ALL, queryName))
                 {
-                    if (_tableCustomizers.get(sn).containsKey(qn))
+                    if (_tableCustomizers.containsKey(sn) && _tableCustomizers.get(sn).containsKey(qn))
                     {
                         for (Pair<Module, Class<? extends TableCustomizer>> pair : _tableCustomizers.get(sn).get(qn))
                         {
-                            if (modules.contains(pair.first))
-                            {
-                                TableCustomizer tc = instantiateCustomizer(pair.second);
-                                if (tc != null)
-                                    list.add(tc);
-                            }
+                            ret.add(new CustomizerEntry(pair.first, pair.second));
                         }
                     }
                 }
             }
+
+            entries = ret.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(ret);
+            _customizerIndex.put(key, entries);
         }
 
-        return Collections.unmodifiableList(list);
+        return entries;
+    }
+
+    private static class CustomizerEntry
+    {
+        private final Module _owner;
+        private final Class<? extends TableCustomizer> _customizerClass;
+        private final TableCustomizer _singleton;
+
+        public CustomizerEntry(Module owner, Class<? extends TableCustomizer> customizerClass)
+        {
+            _owner = owner;
+            _customizerClass = customizerClass;
+
+            //a customizer without instance fields cannot carry state between tables, so a single instance can be shared
+            _singleton = isStateless(customizerClass) ? instantiateCustomizer(customizerClass) : null;
+        }
+
+        public Module getOwner()
+        {
+            return _owner;
+        }
+
+        public TableCustomizer getInstance()
+        {
+            return _singleton != null ? _singleton : instantiateCustomizer(_customizerClass);
+        }
+
+        private static boolean isStateless(Class<?> clazz)
+        {
+            //NOTE: non-static inner classes hold a reference to their enclosing instance
+            if (clazz.getEnclosingClass() != null && !Modifier.isStatic(clazz.getModifiers()))
+                return false;
+
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass())
+            {
+                for (Field f : c.getDeclaredFields())
+                {
+                    if (!Modifier.isStatic(f.getModifiers()))
+                        return false;
+                }
+            }
+
+            return true;
+        }
     }
 
-    private TableCustomizer instantiateCustomizer(Class<? extends TableCustomizer> customizerClass)
+    private static TableCustomizer instantiateCustomizer(Class<? extends TableCustomizer> customizerClass)
     {
         try
         {
@@ -8,20 +8,26 @@
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.DbSequenceManager;
+import org.labkey.api.data.PropertyManager;
 import org.labkey.api.data.Selector;
 import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.Table;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
 import org.labkey.api.data.UpgradeCode;
+import org.labkey.api.laboratory.query.ContainerIncrementingTable;
 import org.labkey.api.module.ModuleContext;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.util.PageFlowUtil;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * User: bimber
@@ -138,4 +144,75 @@ public void exec(ResultSet object) throws SQLException
             //note: if IDs are equal or if DbSequenceManager is ahead of laboratory (which should not occur) no action needed.  the lab module code will now defer to DbSequenceManager, so we simply skip the missing block
         }
     }
+
+    /** called at 12.305-12.306 */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void migrateContainerIncrementingIds(final ModuleContext moduleContext)
+    {
+        //ContainerIncrementingTable previously stored the current ID per container in property manager.  copy these into DB sequences
+        Set<Container> migrated = new HashSet<>();
+        PropertyManager.PropertyEntry[] entries = PropertyManager.findPropertyEntries(null, null, ContainerIncrementingTable.PROPERT_CATEGORY_BASE, null);
+        for (PropertyManager.PropertyEntry entry : entries)
+        {
+            Container c = ContainerManager.getForId(entry.getObjectId());
+            if (c == null || StringUtils.trimToNull(entry.getValue()) == null)
+                continue;
+
+            try
+            {
+                int value = Integer.parseInt(entry.getValue());
+                _log.info("migrating ID series for: " + entry.getKey() + " in container: " + c.getPath() + ", to: " + value);
+                ContainerIncrementingTable.migrateLegacyId(c, entry.getKey(), value);
+                migrated.add(c);
+            }
+            catch (NumberFormatException e)
+            {
+                _log.error("Invalid value for ID series: " + entry.getKey() + " in container: " + c.getPath() + ", " + entry.getValue());
+            }
+        }
+
+        for (Container c : migrated)
+        {
+            PropertyManager.WritablePropertyMap map = PropertyManager.getWritableProperties(c, ContainerIncrementingTable.PROPERT_CATEGORY_BASE, false);
+            if (map != null)
+                map.delete();
+        }
+    }
+
+    /** called at 12.306-12.307 */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void migrateDataSources(final ModuleContext moduleContext)
+    {
+        //demographics and additional data sources were previously stored per container in property manager.  copy these into laboratory.data_sources
+        for (String category : Arrays.asList(LaboratoryServiceImpl.DEMOGRAPHICS_PROPERTY_CATEGORY, LaboratoryServiceImpl.DATASOURCE_PROPERTY_CATEGORY))
+        {
+            Map<Container, Map<String, String>> definitions = new LinkedHashMap<>();
+            PropertyManager.PropertyEntry[] entries = PropertyManager.findPropertyEntries(null, null, category, null);
+            for (PropertyManager.PropertyEntry entry : entries)
+            {
+                Container c = ContainerManager.getForId(entry.getObjectId());
+                if (c == null)
+                    continue;
+
+                definitions.computeIfAbsent(c, x -> new LinkedHashMap<>()).put(entry.getKey(), entry.getValue());
+            }
+
+            for (Container c : definitions.keySet())
+            {
+                try
+                {
+                    _log.info("migrating " + definitions.get(c).size() + " data sources of type: " + category + " in container: " + c.getPath());
+                    DataSourceCatalog.get().saveDefinitions(c, moduleContext.getUpgradeUser(), category, definitions.get(c));
+
+                    PropertyManager.WritablePropertyMap map = PropertyManager.getWritableProperties(c, category, false);
+                    if (map != null)
+                        map.delete();
+                }
+                catch (Exception e)
+                {
+                    _log.error("Error migrating data sources in container: " + c.getPath(), e);
+                }
+            }
+        }
+    }
 }
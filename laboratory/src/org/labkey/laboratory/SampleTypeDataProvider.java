@@ -19,7 +19,6 @@
 import org.json.JSONObject;
 import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.Container;
-import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.exp.api.ExpSampleType;
 import org.labkey.api.exp.api.SampleTypeService;
@@ -143,7 +142,7 @@ public List<NavItem> getSubjectIdSummary(Container c, User u, String subjectId)
                     if (ci != null)
                     {
                         QueryCountNavItem qc = new QueryCountNavItem(this, "Samples", st.getName(), LaboratoryService.NavItemCategory.samples, "Samples", st.getName());
-                        qc.setFilter(new SimpleFilter(FieldKey.fromString(ci.getName()), subjectId));
+                        qc.setSubjectFilter(FieldKey.fromString(ci.getName()), subjectId);
                         items.add(qc);
                     }
                 }
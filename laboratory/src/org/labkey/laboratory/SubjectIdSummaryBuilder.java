@@ -0,0 +1,268 @@
+package org.labkey.laboratory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.laboratory.DataProvider;
+import org.labkey.api.laboratory.LaboratoryService;
+import org.labkey.api.laboratory.NavItem;
+import org.labkey.api.laboratory.QueryCountNavItem;
+import org.labkey.api.security.User;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.ShutdownListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the per-subject data summary for a set of subject IDs.  Rather than counting each table once per subject, each DataProvider
+ * is asked for its summary items once, and the rows for all subjects are counted with one grouped query per table.
+ * These queries run on a pool shared by all requests, so no more than MAX_THREADS run at a time across the server.  Providers whose items cannot be counted this way are summarized per subject.
+ */
+public class SubjectIdSummaryBuilder
+{
+    private static final Logger _log = LogManager.getLogger(SubjectIdSummaryBuilder.class);
+
+    public static final int MAX_THREADS = 4;
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private static final ThreadPoolExecutor _executor = createExecutor();
+
+    private final Container _c;
+    private final User _u;
+
+    public SubjectIdSummaryBuilder(Container c, User u)
+    {
+        _c = c;
+        _u = u;
+    }
+
+    private static ThreadPoolExecutor createExecutor()
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "Laboratory Subject Summary");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+
+        ContextListener.addShutdownListener(new ShutdownListener()
+        {
+            @Override
+            public String getName()
+            {
+                return "Laboratory Subject Summary";
+            }
+
+            @Override
+            public void shutdownPre()
+            {
+                executor.shutdown();
+            }
+
+            @Override
+            public void shutdownStarted()
+            {
+                executor.shutdownNow();
+            }
+        });
+
+        return executor;
+    }
+
+    /**
+     * @return a map of each subject to its summary items, which are grouped by item type and converted to JSON
+     */
+    public Map<String, Object> build(Collection<DataProvider> providers, List<String> subjectIds)
+    {
+        Map<String, Object> results = new HashMap<>();
+        if (subjectIds.isEmpty())
+            return results;
+
+        Map<String, List<NavItem>> itemsBySubject = new LinkedHashMap<>();
+        for (String subjectId : subjectIds)
+        {
+            itemsBySubject.put(subjectId, new ArrayList<>());
+        }
+
+        Set<QueryCountNavItem> batched = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (DataProvider dp : providers)
+        {
+            //the items for the first subject act as a template for the others
+            List<NavItem> template = dp.getSubjectIdSummary(_c, _u, subjectIds.get(0));
+            if (isBatchable(template))
+            {
+                for (NavItem item : template)
+                {
+                    batched.add((QueryCountNavItem)item);
+                }
+
+                for (List<NavItem> items : itemsBySubject.values())
+                {
+                    items.addAll(template);
+                }
+            }
+            else
+            {
+                itemsBySubject.get(subjectIds.get(0)).addAll(template);
+                for (String subjectId : subjectIds.subList(1, subjectIds.size()))
+                {
+                    itemsBySubject.get(subjectId).addAll(dp.getSubjectIdSummary(_c, _u, subjectId));
+                }
+            }
+        }
+
+        Map<QueryCountNavItem, Map<String, Long>> counts = getCounts(batched, subjectIds);
+        for (String subjectId : subjectIds)
+        {
+            Map<String, List<NavItem>> items = new HashMap<>();
+            for (NavItem item : itemsBySubject.get(subjectId))
+            {
+                items.computeIfAbsent(item.getItemType().name(), k -> new ArrayList<>()).add(item);
+            }
+
+            Map<String, List<JSONObject>> finalItems = new HashMap<>();
+            for (String key : items.keySet())
+            {
+                List<NavItem> list = items.get(key);
+                LaboratoryService.get().sortNavItems(list);
+
+                List<JSONObject> jsonItems = new ArrayList<>();
+                for (NavItem item : list)
+                {
+                    //NOTE: batched items are shared between subjects, so point them at the current subject before serializing
+                    if (item instanceof QueryCountNavItem qc && batched.contains(qc))
+                    {
+                        qc.setSubjectFilter(qc.getSubjectFieldKey(), subjectId);
+                        qc.setRowCount(counts.containsKey(qc) ? getCount(counts.get(qc), subjectId) : null);
+                    }
+
+                    jsonItems.add(item.toJSON(_c, _u));
+                }
+                finalItems.put(key, jsonItems);
+            }
+
+            results.put(subjectId, finalItems);
+        }
+
+        return results;
+    }
+
+    private boolean isBatchable(List<NavItem> items)
+    {
+        for (NavItem item : items)
+        {
+            if (!(item instanceof QueryCountNavItem qc) || qc.getSubjectFieldKey() == null)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Counts rows per subject for each item.  Items whose query cannot be built, or whose query fails, are omitted and will
+     * fall back to counting one subject at a time.
+     */
+    private Map<QueryCountNavItem, Map<String, Long>> getCounts(Collection<QueryCountNavItem> items, List<String> subjectIds)
+    {
+        Map<QueryCountNavItem, Map<String, Long>> ret = new IdentityHashMap<>();
+        if (items.isEmpty())
+            return ret;
+
+        //build the SQL on this thread, since it depends on the request's query environment
+        Map<QueryCountNavItem, List<SqlSelector>> selectors = new IdentityHashMap<>();
+        for (QueryCountNavItem item : items)
+        {
+            List<SqlSelector> list = new ArrayList<>();
+            for (int i = 0; i < subjectIds.size(); i += MAX_IDS_PER_QUERY)
+            {
+                SqlSelector ss = item.getSubjectCountSelector(_c, _u, subjectIds.subList(i, Math.min(i + MAX_IDS_PER_QUERY, subjectIds.size())));
+                if (ss == null)
+                {
+                    list = null;
+                    break;
+                }
+                list.add(ss);
+            }
+
+            if (list != null)
+                selectors.put(item, list);
+        }
+
+        if (selectors.isEmpty())
+            return ret;
+
+        Map<QueryCountNavItem, Future<Map<String, Long>>> futures = new IdentityHashMap<>();
+        try
+        {
+            for (QueryCountNavItem item : selectors.keySet())
+            {
+                futures.put(item, _executor.submit(() -> {
+                    Map<String, Long> totals = new HashMap<>();
+                    for (SqlSelector ss : selectors.get(item))
+                    {
+                        ss.forEach(rs -> totals.merge(rs.getString("subjectid"), rs.getLong("total"), Long::sum));
+                    }
+
+                    return totals;
+                }));
+            }
+
+            for (QueryCountNavItem item : futures.keySet())
+            {
+                try
+                {
+                    ret.put(item, futures.get(item).get());
+                }
+                catch (ExecutionException e)
+                {
+                    _log.error("Error calculating subject counts for table " + item.getSchema() + "." + item.getQuery(), e.getCause());
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            //the pool is shared, so only this request's queries are stopped
+            for (Future<Map<String, Long>> f : futures.values())
+            {
+                f.cancel(true);
+            }
+        }
+
+        return ret;
+    }
+
+    private Long getCount(Map<String, Long> totals, String subjectId)
+    {
+        if (totals.containsKey(subjectId))
+            return totals.get(subjectId);
+
+        //NOTE: on case-insensitive databases, the stored value may differ in case from the requested ID
+        long total = 0;
+        for (Map.Entry<String, Long> e : totals.entrySet())
+        {
+            if (subjectId.equalsIgnoreCase(e.getKey()))
+                total += e.getValue();
+        }
+
+        return total;
+    }
+}
@@ -0,0 +1,208 @@
+package org.labkey.laboratory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.laboratory.AbstractNavItem;
+import org.labkey.api.laboratory.DataProvider;
+import org.labkey.api.laboratory.QueryCountNavItem;
+import org.labkey.api.laboratory.SummaryNavItem;
+import org.labkey.api.security.User;
+import org.labkey.api.security.UserManager;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Holds the most recent row count for each SummaryNavItem, keyed on the container, the user, the item's PropertyManager key and the scope of its query.
+ * Because the rows a user can see depend on their permissions, counts are never shared between users, and impersonated users are always counted live.
+ * Reads are served from the store.  Once a count is older than STALE_MILLIS it is still returned, and a refresh is queued in the background.  The refresh
+ * builds the item again from its DataProvider, rather than reusing the one from the original request.
+ * Counts for a container are removed when data is imported or rows are changed through the laboratory module, and are replaced whenever an exact count is requested.
+ */
+public class SummaryCountStore
+{
+    private static final Logger _log = LogManager.getLogger(SummaryCountStore.class);
+    private static final SummaryCountStore _instance = new SummaryCountStore();
+
+    public static final long STALE_MILLIS = 15 * 60 * 1000;
+
+    private final Cache<String, Entry> _cache = CacheManager.getStringKeyCache(20000, CacheManager.DAY, "Laboratory Summary Counts");
+    private final Map<String, Boolean> _pendingRefresh = new ConcurrentHashMap<>();
+    private final ExecutorService _refreshExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Laboratory Summary Counts");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private SummaryCountStore()
+    {
+
+    }
+
+    public static SummaryCountStore get()
+    {
+        return _instance;
+    }
+
+    /**
+     * Returns the stored count for this item, counting on the calling thread only if no count has been stored
+     */
+    public Entry getCount(Container c, User u, SummaryNavItem item)
+    {
+        if (u.isImpersonated())
+            return count(c, u, item);
+
+        String key = getCacheKey(c, u, item);
+        Entry existing = _cache.get(key);
+        if (existing == null)
+        {
+            return refresh(c, u, item);
+        }
+
+        if (existing.isStale() && _pendingRefresh.putIfAbsent(key, true) == null)
+        {
+            //only IDs are passed to the background task, so nothing from the original request is retained
+            String containerId = c.getId();
+            int userId = u.getUserId();
+            String providerName = item.getDataProvider() == null ? null : item.getDataProvider().getName();
+            String itemKey = key;
+            _refreshExecutor.execute(() -> {
+                try
+                {
+                    refreshInBackground(containerId, userId, providerName, itemKey);
+                }
+                catch (Exception e)
+                {
+                    _log.error("Unable to calculate row count for: " + itemKey, e);
+                }
+                finally
+                {
+                    _pendingRefresh.remove(itemKey);
+                }
+            });
+        }
+
+        return existing;
+    }
+
+    /**
+     * Counts the rows for this item and stores the result
+     */
+    public Entry refresh(Container c, User u, SummaryNavItem item)
+    {
+        Entry ret = count(c, u, item);
+        if (!u.isImpersonated())
+            _cache.put(getCacheKey(c, u, item), ret);
+
+        return ret;
+    }
+
+    private Entry count(Container c, User u, SummaryNavItem item)
+    {
+        Long total = item.getRowCount(c, u);
+        return new Entry(total == null ? 0L : total, new Date());
+    }
+
+    private void refreshInBackground(String containerId, int userId, String providerName, String key)
+    {
+        Container c = ContainerManager.getForId(containerId);
+        User u = UserManager.getUser(userId);
+        DataProvider dp = providerName == null ? null : LaboratoryServiceImpl.get().getDataProvider(providerName);
+        if (c == null || u == null || !u.isActive() || dp == null)
+        {
+            _cache.remove(key);
+            return;
+        }
+
+        for (SummaryNavItem item : dp.getSummary(c, u))
+        {
+            if (key.equals(getCacheKey(c, u, item)))
+            {
+                refresh(c, u, item);
+                return;
+            }
+        }
+
+        //the provider no longer supplies this item
+        _cache.remove(key);
+    }
+
+    /**
+     * Removes the stored counts for this container and, if it is a workbook, its parent.  If a transaction is active, this is repeated after commit.
+     */
+    public void invalidate(Container c)
+    {
+        Runnable r = () -> {
+            remove(c);
+            if (c.isWorkbook())
+                remove(c.getParent());
+        };
+        r.run();
+
+        DbScope scope = DbScope.getLabKeyScope();
+        if (scope.isTransactionActive())
+        {
+            scope.getCurrentTransaction().addCommitTask(r, DbScope.CommitTaskOption.POSTCOMMIT);
+        }
+    }
+
+    private void remove(Container c)
+    {
+        String prefix = c.getId() + "||";
+        _cache.removeUsingFilter(key -> key.startsWith(prefix));
+    }
+
+    public void clear()
+    {
+        _cache.clear();
+    }
+
+    private String getCacheKey(Container c, User u, SummaryNavItem item)
+    {
+        StringBuilder sb = new StringBuilder(c.getId()).append("||").append(u.getUserId()).append("||").append(item.getPropertyManagerKey());
+
+        //the same item may be counted against another container, or with a filter
+        if (item instanceof AbstractNavItem ni)
+            sb.append("||").append(ni.getTargetContainer(c).getId());
+
+        if (item instanceof QueryCountNavItem qc)
+            sb.append("||").append(qc.getFilterKey());
+
+        return sb.toString();
+    }
+
+    public static class Entry
+    {
+        private final long _count;
+        private final Date _countDate;
+
+        public Entry(long count, Date countDate)
+        {
+            _count = count;
+            _countDate = countDate;
+        }
+
+        public long getCount()
+        {
+            return _count;
+        }
+
+        public Date getCountDate()
+        {
+            return _countDate;
+        }
+
+        public boolean isStale()
+        {
+            return System.currentTimeMillis() - _countDate.getTime() > STALE_MILLIS;
+        }
+    }
+}
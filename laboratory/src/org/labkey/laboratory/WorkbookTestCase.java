@@ -5,6 +5,7 @@
 import org.junit.Before;
 import org.junit.Test;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.collections.CaseInsensitiveHashSet;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.DbSchema;
@@ -13,15 +14,24 @@
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
 import org.labkey.api.data.WorkbookContainerType;
+import org.labkey.api.laboratory.DataProvider;
+import org.labkey.api.laboratory.LaboratoryService;
+import org.labkey.api.laboratory.QueryCountNavItem;
 import org.labkey.api.module.Module;
 import org.labkey.api.module.ModuleLoader;
+import org.labkey.api.query.BatchValidationException;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryService;
+import org.labkey.api.security.User;
 import org.labkey.api.util.PageFlowUtil;
 import org.labkey.api.util.TestContext;
 import org.labkey.api.view.ActionURL;
 import org.labkey.api.view.ViewContext;
+import org.labkey.laboratory.query.FreezerOccupancyIndex;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -43,37 +53,41 @@ public void setUp() throws Exception
         {
             doInitialSetUp(PROJECT_NAME);
         }
+
+        Module module = ModuleLoader.getInstance().getModule(LaboratoryModule.class);
+        Assert.assertNotNull("Laboratory module not found", module);
+
+        Set<Module> active = new HashSet<>(_project.getActiveModules());
+        active.add(module);
+        _project.setActiveModules(active);
+    }
+
+    //set a mock request so QUS calls use our container instead of root
+    private ViewContext.StackResetter pushMockViewContext()
+    {
+        return ViewContext.pushMockViewContext(_context.getUser(), _project, new ActionURL("dummy", "dummy", _project));
     }
 
     @Test
     public void testCrossContainerBehaviorsForSimpleSchema() throws Exception
     {
-        Module module = ModuleLoader.getInstance().getModule(LaboratoryModule.class);
-        if (module != null)
+        //set values for required fields
+        Map<String, Object> extraRowValues = new HashMap<>();
+        extraRowValues.put("location", "DummyLocation");
+
+        //the ContainerListener will populate default rows.  clear them:
+        TableInfo sampleTypes = QueryService.get().getUserSchema(_context.getUser(), _project, LaboratoryModule.SCHEMA_NAME).getTable(LaboratorySchema.TABLE_SAMPLE_TYPE);
+        List<Map<String, Object>> toDelete = new ArrayList<>();
+        new TableSelector(sampleTypes, PageFlowUtil.set("rowId")).forEachResults(rs -> {
+            Map<String, Object> row = new CaseInsensitiveHashMap<>();
+            row.put("rowId", rs.getInt(FieldKey.fromString("rowId")));
+            toDelete.add(row);
+        });
+        sampleTypes.getUpdateService().deleteRows(_context.getUser(), _project, toDelete, Collections.emptyMap(), null);
+
+        try (ViewContext.StackResetter viewContextResetter = pushMockViewContext())
         {
-            Set<Module> active = new HashSet<>(_project.getActiveModules());
-            active.add(module);
-            _project.setActiveModules(active);
-
-            //set values for required fields
-            Map<String, Object> extraRowValues = new HashMap<>();
-            extraRowValues.put("location", "DummyLocation");
-
-            //the ContainerListener will populate default rows.  clear them:
-            TableInfo ti = QueryService.get().getUserSchema(_context.getUser(), _project, LaboratoryModule.SCHEMA_NAME).getTable(LaboratorySchema.TABLE_SAMPLE_TYPE);
-            List<Map<String, Object>> toDelete = new ArrayList<>();
-            new TableSelector(ti, PageFlowUtil.set("rowId")).forEachResults(rs -> {
-                Map<String, Object> row = new CaseInsensitiveHashMap<>();
-                row.put("rowId", rs.getInt(FieldKey.fromString("rowId")));
-                toDelete.add(row);
-            });
-            ti.getUpdateService().deleteRows(_context.getUser(), _project, toDelete, Collections.emptyMap(), null);
-
-            //set a mock request so QUS calls use our container instead of root
-            try (ViewContext.StackResetter viewContextResetter = ViewContext.pushMockViewContext(_context.getUser(), _project, new ActionURL("dummy", "dummy", _project)))
-            {
-                testCrossContainerBehaviors(_project, _workbooks, LaboratoryModule.SCHEMA_NAME, LaboratorySchema.TABLE_SAMPLE_TYPE, LaboratorySchema.TABLE_SAMPLES, "samplename", "sampletype", Arrays.asList("Value1", "Value2", "Value3", "Value4"), extraRowValues);
-            }
+            testCrossContainerBehaviors(_project, _workbooks, LaboratoryModule.SCHEMA_NAME, LaboratorySchema.TABLE_SAMPLE_TYPE, LaboratorySchema.TABLE_SAMPLES, "samplename", "sampletype", Arrays.asList("Value1", "Value2", "Value3", "Value4"), extraRowValues);
         }
 
         // Verify laboratory.workbooks rows get deleted:
@@ -87,6 +101,167 @@ public void testCrossContainerBehaviorsForSimpleSchema() throws Exception
         Assert.assertFalse("laboratory.workbooks row should have been deleted", ts.exists());
     }
 
+    @Test
+    public void testSummaryCountsArePerUser() throws Exception
+    {
+        User u = _context.getUser();
+        DataProvider dp = LaboratoryService.get().getDataProvider(LaboratoryDataProvider.NAME);
+        QueryCountNavItem item = new QueryCountNavItem(dp, LaboratoryModule.SCHEMA_NAME, LaboratorySchema.TABLE_SAMPLES, LaboratoryService.NavItemCategory.samples, "Samples", "Summary Count Test");
+        TableInfo ti = QueryService.get().getUserSchema(u, _project, LaboratoryModule.SCHEMA_NAME).getTable(LaboratorySchema.TABLE_SAMPLES);
+
+        try (ViewContext.StackResetter viewContextResetter = pushMockViewContext())
+        {
+            long initial = SummaryCountStore.get().refresh(_project, u, item).getCount();
+
+            Map<String, Object> row = new CaseInsensitiveHashMap<>();
+            row.put("samplename", "SummaryCountTest");
+            row.put("location", "DummyLocation");
+            BatchValidationException errors = new BatchValidationException();
+            ti.getUpdateService().insertRows(u, _project, Collections.singletonList(row), errors, null, null);
+            if (errors.hasErrors())
+                throw errors;
+
+            //the insert removes the stored count, so it is counted again
+            Assert.assertEquals("Summary count was not invalidated by the insert", initial + 1, SummaryCountStore.get().getCount(_project, u, item).getCount());
+
+            //a user who cannot read the folder must not be given the count stored for another user
+            Assert.assertEquals("Summary count was shared between users", 0L, SummaryCountStore.get().getCount(_project, User.guest, item).getCount());
+            Assert.assertEquals("Summary count for the original user changed", initial + 1, SummaryCountStore.get().getCount(_project, u, item).getCount());
+        }
+    }
+
+    @Test
+    public void testFreezerOccupancyIndex() throws Exception
+    {
+        User u = _context.getUser();
+        TableInfo ti = QueryService.get().getUserSchema(u, _project, LaboratoryModule.SCHEMA_NAME).getTable(LaboratorySchema.TABLE_SAMPLES);
+        String freezer = "OccupancyTestFreezer";
+        FreezerOccupancyIndex.Position position1 = FreezerOccupancyIndex.Position.of(null, null, "Box1", "1", "1");
+        FreezerOccupancyIndex.Position position2 = FreezerOccupancyIndex.Position.of(null, null, "Box1", "1", "2");
+
+        try (ViewContext.StackResetter viewContextResetter = pushMockViewContext())
+        {
+            //load the empty freezer, so the inserts below must update the shared index
+            Assert.assertNull("Position should be empty", FreezerOccupancyIndex.get().getOccupant(_project, ti, freezer, position1));
+
+            Map<String, Object> row = new CaseInsensitiveHashMap<>();
+            row.put("samplename", "OccupancyTest");
+            row.put("freezer", freezer);
+            row.put("box", "Box1");
+            row.put("box_row", "1");
+            row.put("box_column", "1");
+            BatchValidationException errors = new BatchValidationException();
+            List<Map<String, Object>> inserted = ti.getUpdateService().insertRows(u, _project, Collections.singletonList(row), errors, null, null);
+            if (errors.hasErrors())
+                throw errors;
+
+            Integer rowId = (Integer)inserted.get(0).get("rowid");
+            Assert.assertEquals("Index not updated after insert", rowId, FreezerOccupancyIndex.get().getOccupant(_project, ti, freezer, position1));
+
+            //a second sample cannot be placed in the same position
+            Map<String, Object> duplicate = new CaseInsensitiveHashMap<>(row);
+            duplicate.put("samplename", "OccupancyTest2");
+            errors = new BatchValidationException();
+            ti.getUpdateService().insertRows(u, _project, Collections.singletonList(duplicate), errors, null, null);
+            Assert.assertTrue("Sample should not be allowed in an occupied position", errors.hasErrors());
+
+            //moving the sample frees its old position
+            Map<String, Object> toUpdate = new CaseInsensitiveHashMap<>();
+            toUpdate.put("rowid", rowId);
+            toUpdate.put("box_column", "2");
+            Map<String, Object> oldKey = new CaseInsensitiveHashMap<>();
+            oldKey.put("rowid", rowId);
+            ti.getUpdateService().updateRows(u, _project, Collections.singletonList(toUpdate), Collections.singletonList(oldKey), null, null);
+            Assert.assertNull("Old position not cleared after update", FreezerOccupancyIndex.get().getOccupant(_project, ti, freezer, position1));
+            Assert.assertEquals("New position not set after update", rowId, FreezerOccupancyIndex.get().getOccupant(_project, ti, freezer, position2));
+
+            ti.getUpdateService().deleteRows(u, _project, Collections.singletonList(oldKey), Collections.emptyMap(), null);
+            Assert.assertNull("Position not cleared after delete", FreezerOccupancyIndex.get().getOccupant(_project, ti, freezer, position2));
+        }
+    }
+
+    @Test
+    public void testSelfAssignedIds() throws Exception
+    {
+        User u = _context.getUser();
+        TableInfo ti = QueryService.get().getUserSchema(u, _project, LaboratoryModule.SCHEMA_NAME).getTable(LaboratorySchema.TABLE_PEPTIDES);
+
+        try (ViewContext.StackResetter viewContextResetter = pushMockViewContext())
+        {
+            //sparse IDs, including one close to the largest integer, are accepted
+            BatchValidationException errors = new BatchValidationException();
+            ti.getUpdateService().insertRows(u, _project, Arrays.asList(getPeptide(7), getPeptide(1000000), getPeptide(2000000000)), errors, null, null);
+            if (errors.hasErrors())
+                throw errors;
+
+            //rows without an ID are assigned one after the highest self-assigned ID
+            List<Map<String, Object>> inserted = ti.getUpdateService().insertRows(u, _project, Collections.singletonList(getPeptide(null)), errors, null, null);
+            if (errors.hasErrors())
+                throw errors;
+
+            Assert.assertTrue("Assigned ID should follow the self-assigned IDs", (Integer)inserted.get(0).get("peptideId") > 2000000000);
+
+            //an ID already in the table is rejected
+            errors = new BatchValidationException();
+            ti.getUpdateService().insertRows(u, _project, Collections.singletonList(getPeptide(2000000000)), errors, null, null);
+            Assert.assertTrue("Existing ID should be rejected", errors.hasErrors());
+
+            //as is an ID repeated within one import
+            errors = new BatchValidationException();
+            ti.getUpdateService().insertRows(u, _project, Arrays.asList(getPeptide(12), getPeptide(12)), errors, null, null);
+            Assert.assertTrue("Repeated ID should be rejected", errors.hasErrors());
+        }
+    }
+
+    private Map<String, Object> getPeptide(Integer peptideId)
+    {
+        Map<String, Object> row = new CaseInsensitiveHashMap<>();
+        row.put("name", "Peptide" + peptideId);
+        row.put("sequence", "ACDEFG");
+        row.put("peptideId", peptideId);
+
+        return row;
+    }
+
+    @Test
+    public void testIndexBuilderKeepsExistingIndexOnFailure() throws Exception
+    {
+        DbSchema schema = LaboratorySchema.getInstance().getSchema();
+        TableInfo realTable = schema.getTable(LaboratorySchema.TABLE_DATA_SOURCES);
+        String indexName = "IDX_data_sources_container_category";
+        Assert.assertTrue("Index not present before the test", getIndexNames(schema, realTable).contains(indexName));
+
+        //creating an index that already exists fails, and this must not remove the valid index
+        IndexBuilder.TableIndexes table = new IndexBuilder.TableIndexes(schema, realTable);
+        IndexBuilder.IndexDefinition index = new IndexBuilder.IndexDefinition(indexName, Arrays.asList("container", "category"), null, false, false);
+        table.getIndexes().add(index);
+
+        IndexBuilder.Job job = IndexBuilder.get().start(_context.getUser(), Collections.singletonList(table));
+        long start = System.currentTimeMillis();
+        while (!job.isComplete())
+        {
+            Assert.assertTrue("Index build did not finish", System.currentTimeMillis() - start < 60000);
+            Thread.sleep(100);
+        }
+
+        Assert.assertEquals("Index build should have failed", IndexBuilder.IndexState.failed, index.getState());
+        Assert.assertTrue("Existing index was removed after a failed build", getIndexNames(schema, realTable).contains(indexName));
+    }
+
+    private Set<String> getIndexNames(DbSchema schema, TableInfo realTable) throws SQLException
+    {
+        Set<String> ret = new CaseInsensitiveHashSet();
+        try (Connection con = schema.getScope().getConnection(); ResultSet rs = con.getMetaData().getIndexInfo(schema.getScope().getDatabaseName(), schema.getName(), realTable.getName(), false, false))
+        {
+            while (rs.next())
+            {
+                ret.add(rs.getString("INDEX_NAME"));
+            }
+        }
+
+        return ret;
+    }
+
     @After
     public void onComplete()
     {
@@ -59,6 +59,7 @@
 import org.labkey.api.view.ViewContext;
 import org.labkey.laboratory.LaboratoryController;
 import org.labkey.laboratory.LaboratorySchema;
+import org.labkey.laboratory.SummaryCountStore;
 import org.labkey.vfs.FileLike;
 import org.labkey.vfs.FileSystemLike;
 
@@ -216,6 +217,8 @@ public Pair<ExpExperiment, ExpRun> saveAssayBatch(List<Map<String, Object>> resu
         //TODO: see AssayRunAsyncContext
         AssayRunUploadContext uploadContext = new RunUploadContext<>(protocol, provider, name, comments, runProperties, batchProperties, ctx, uploadedFiles);
         Pair<ExpExperiment, ExpRun> resultRows = creator.saveExperimentRun(uploadContext, null);
+        SummaryCountStore.get().invalidate(ctx.getContainer());
+
         return resultRows;
     }
 
@@ -23,6 +23,7 @@
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.security.User;
 import org.labkey.api.util.JsonUtil;
+import org.labkey.laboratory.SummaryCountStore;
 
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
@@ -254,8 +255,8 @@ public void getDataSummary(Container c, User u, final StringBuilder msg, Map<Str
         for (SummaryNavItem item : items)
         {
             String key = item.getPropertyManagerKey();
-            Long total = item.getRowCount(c, u);
-            total = total == null ? 0L : total;
+            //NOTE: this uses an exact count, which also refreshes the count shown on the data summary pages
+            Long total = SummaryCountStore.get().refresh(c, u, item).getCount();
 
             newValueMap.put(key, total.toString());
             Long previousCount = null;
@@ -0,0 +1,145 @@
+package org.labkey.laboratory.query;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.CompareType;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.util.PageFlowUtil;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A server-level index of the occupied positions in each freezer, keyed on the container and freezer, which maps each position to the rowid
+ * of the active sample held there.  A freezer is read from the database the first time it is checked, and is then kept current by the samples
+ * trigger script as samples are inserted, moved or removed.  Entries expire after an hour, which bounds the effect of changes made outside
+ * the trigger script.
+ * A freezer read inside a transaction may include uncommitted rows, so it is only shared once that transaction commits.  Each change to the
+ * index advances a version, and a freezer read before a change is not shared, since it may be missing the change.
+ */
+public class FreezerOccupancyIndex
+{
+    private static final FreezerOccupancyIndex _instance = new FreezerOccupancyIndex();
+
+    private final Cache<String, Map<Position, Integer>> _cache = CacheManager.getStringKeyCache(1000, CacheManager.HOUR, "Laboratory Freezer Occupancy");
+    private final AtomicLong _version = new AtomicLong();
+
+    private FreezerOccupancyIndex()
+    {
+
+    }
+
+    public static FreezerOccupancyIndex get()
+    {
+        return _instance;
+    }
+
+    /**
+     * @param samples the samples table, used to load this freezer if it is not already indexed
+     * @return the rowid of the active sample in this position, or null if it is empty
+     */
+    @Nullable
+    public Integer getOccupant(Container c, TableInfo samples, String freezer, Position position)
+    {
+        return getFreezer(c, samples, freezer).get(position);
+    }
+
+    /**
+     * @param samples the samples table, used to load this freezer if it is not already indexed
+     * @return the rowid of the active sample in each occupied position of this freezer.  If this was read inside a transaction, it is only
+     * shared after that transaction commits, so callers should hold on to it for the rest of the transaction rather than calling this per row.
+     */
+    public Map<Position, Integer> getFreezer(Container c, TableInfo samples, String freezer)
+    {
+        String key = getCacheKey(c, freezer);
+        Map<Position, Integer> positions = _cache.get(key);
+        if (positions != null)
+            return positions;
+
+        long version = _version.get();
+        Map<Position, Integer> loaded = load(samples, freezer);
+
+        DbScope scope = DbScope.getLabKeyScope();
+        if (scope.isTransactionActive())
+            scope.getCurrentTransaction().addCommitTask(() -> share(key, loaded, version), DbScope.CommitTaskOption.POSTCOMMIT);
+        else
+            share(key, loaded, version);
+
+        return loaded;
+    }
+
+    public synchronized void add(Container c, String freezer, Position position, int rowId)
+    {
+        _version.incrementAndGet();
+
+        Map<Position, Integer> positions = _cache.get(getCacheKey(c, freezer));
+        if (positions != null)
+            positions.put(position, rowId);
+    }
+
+    /**
+     * Clears this position, provided it is still held by this sample
+     */
+    public synchronized void remove(Container c, String freezer, Position position, int rowId)
+    {
+        _version.incrementAndGet();
+
+        Map<Position, Integer> positions = _cache.get(getCacheKey(c, freezer));
+        if (positions != null)
+            positions.remove(position, rowId);
+    }
+
+    /**
+     * Removes the freezers of this container, which is called when it is deleted
+     */
+    public synchronized void invalidate(Container c)
+    {
+        _version.incrementAndGet();
+
+        String prefix = c.getId() + "||";
+        _cache.removeUsingFilter(key -> key.startsWith(prefix));
+    }
+
+    //a freezer is only shared if nothing has changed since it was read
+    private synchronized void share(String key, Map<Position, Integer> positions, long version)
+    {
+        if (_version.get() == version)
+            _cache.put(key, positions);
+    }
+
+    private Map<Position, Integer> load(TableInfo samples, String freezer)
+    {
+        SimpleFilter filter = new SimpleFilter(FieldKey.fromString("freezer"), freezer, CompareType.EQUAL);
+        filter.addCondition(FieldKey.fromString("dateremoved"), null, CompareType.ISBLANK);
+
+        Map<Position, Integer> positions = new ConcurrentHashMap<>();
+        TableSelector ts = new TableSelector(samples, PageFlowUtil.set("location", "cane", "box", "box_row", "box_column", "rowid"), filter, null);
+        ts.forEach(rs -> positions.put(Position.of(rs.getString("location"), rs.getString("cane"), rs.getString("box"), rs.getString("box_row"), rs.getString("box_column")), rs.getInt("rowid")));
+
+        return positions;
+    }
+
+    private String getCacheKey(Container c, String freezer)
+    {
+        return c.getId() + "||" + freezer;
+    }
+
+    /**
+     * A position within one freezer.  Empty parts are treated as null.
+     */
+    public record Position(String location, String cane, String box, String boxRow, String boxColumn)
+    {
+        public static Position of(String location, String cane, String box, String boxRow, String boxColumn)
+        {
+            return new Position(StringUtils.defaultIfEmpty(location, null), StringUtils.defaultIfEmpty(cane, null), StringUtils.defaultIfEmpty(box, null), StringUtils.defaultIfEmpty(boxRow, null), StringUtils.defaultIfEmpty(boxColumn, null));
+        }
+    }
+}
@@ -1,24 +1,16 @@
 package org.labkey.laboratory.query;
 
 import org.apache.commons.lang3.StringUtils;
-import org.jetbrains.annotations.NotNull;
-import org.labkey.api.data.CompareType;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
-import org.labkey.api.data.Selector;
-import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.DbScope;
 import org.labkey.api.data.TableInfo;
-import org.labkey.api.data.TableSelector;
-import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryService;
 import org.labkey.api.query.UserSchema;
 import org.labkey.api.security.User;
 import org.labkey.api.security.UserManager;
 import org.labkey.api.util.MemTracker;
-import org.labkey.api.util.PageFlowUtil;
 
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -35,7 +27,10 @@
     private final User _user;
     private final TableInfo _table;
 
-    private final Map<String, Map<String, Integer>> _cachedRows = new HashMap<String, Map<String, Integer>>();
+    private final Map<String, Map<FreezerOccupancyIndex.Position, Integer>> _pendingRows = new HashMap<>();
+
+    //the occupied positions of each freezer checked by this import, so a freezer read inside a transaction is not read again for each row
+    private final Map<String, Map<FreezerOccupancyIndex.Position, Integer>> _freezers = new HashMap<>();
 
     private FreezerTriggerHelper(String containerId, int userId)
     {
@@ -67,23 +62,63 @@ public static FreezerTriggerHelper create(String containerId, int userId)
 
     public boolean isSamplePresent(String location, String freezer, String cane, String box, String box_row, String box_column, Integer rowId)
     {
-        String key = getKey(location, freezer, cane, box, box_row, box_column);
-        Map<String, Integer> cached = getFreezerRows(freezer);
+        FreezerOccupancyIndex.Position position = FreezerOccupancyIndex.Position.of(location, cane, box, box_row, box_column);
+
+        //rows from this import that have not yet been committed are tracked here, rather than in the shared index
+        Map<FreezerOccupancyIndex.Position, Integer> pending = _pendingRows.computeIfAbsent(freezer, f -> new HashMap<>());
+        if (pending.containsKey(position))
+        {
+            return rowId == null || !rowId.equals(pending.get(position));
+        }
 
-        if (cached.containsKey(key))
+        Integer existing = _freezers.computeIfAbsent(freezer, f -> FreezerOccupancyIndex.get().getFreezer(_container, _table, f)).get(position);
+        if (existing != null)
         {
             //this indicates the matching sample is the same as the incoming sample, such a row update
-            return rowId == null || !rowId.equals(cached.get(key));
+            return rowId == null || !rowId.equals(existing);
 
             //this means we have a newly inserted sample matching an existing one
         }
         else
         {
-            cacheValue(freezer, key, rowId);
+            pending.put(position, rowId);
             return false;
         }
     }
 
+    /**
+     * Records a sample that now occupies this position.  If a transaction is active, the shared index is updated after it commits.
+     */
+    public void onSampleSaved(String location, String freezer, String cane, String box, String box_row, String box_column, Integer rowId)
+    {
+        if (StringUtils.isEmpty(freezer) || rowId == null)
+            return;
+
+        FreezerOccupancyIndex.Position position = FreezerOccupancyIndex.Position.of(location, cane, box, box_row, box_column);
+        runAfterCommit(() -> FreezerOccupancyIndex.get().add(_container, freezer, position, rowId));
+    }
+
+    /**
+     * Records that a sample has been moved from, or removed from, this position.  If a transaction is active, the shared index is updated after it commits.
+     */
+    public void onSampleRemoved(String location, String freezer, String cane, String box, String box_row, String box_column, Integer rowId)
+    {
+        if (StringUtils.isEmpty(freezer) || rowId == null)
+            return;
+
+        FreezerOccupancyIndex.Position position = FreezerOccupancyIndex.Position.of(location, cane, box, box_row, box_column);
+        runAfterCommit(() -> FreezerOccupancyIndex.get().remove(_container, freezer, position, rowId));
+    }
+
+    private void runAfterCommit(Runnable r)
+    {
+        DbScope scope = DbScope.getLabKeyScope();
+        if (scope.isTransactionActive())
+            scope.getCurrentTransaction().addCommitTask(r, DbScope.CommitTaskOption.POSTCOMMIT);
+        else
+            r.run();
+    }
+
     public String getKey(String location, String freezer, String cane, String box, String box_row, String box_column)
     {
         List<String> tokens = new ArrayList<String>();
@@ -103,35 +138,4 @@ public String getKey(String location, String freezer, String cane, String box, S
 
         return StringUtils.join(tokens, "||");
     }
-
-    @NotNull
-    private Map<String, Integer> getFreezerRows(String freezer)
-    {
-        if (_cachedRows.containsKey(freezer))
-                return _cachedRows.get(freezer);
-
-        SimpleFilter filter = new SimpleFilter(FieldKey.fromString("freezer"), freezer, CompareType.EQUAL);
-        filter.addCondition(FieldKey.fromString("dateremoved"), null, CompareType.ISBLANK);
-
-        TableSelector ts = new TableSelector(_table, PageFlowUtil.set("location", "freezer", "cane", "box", "box_row", "box_column", "rowid"), filter, null);
-
-        final Map<String, Integer> keys = new HashMap<String, Integer>();
-        ts.forEach(new Selector.ForEachBlock<ResultSet>()
-        {
-            @Override
-            public void exec(ResultSet rs) throws SQLException
-            {
-                keys.put(getKey(rs.getString("location"), rs.getString("freezer"), rs.getString("cane"), rs.getString("box"), rs.getString("box_row"), rs.getString("box_column")), rs.getInt("rowid"));
-            }
-        });
-
-        _cachedRows.put(freezer, keys);
-
-        return keys;
-    }
-
-    private void cacheValue(String freezer, String key, Integer rowId)
-    {
-        _cachedRows.get(freezer).put(key, rowId);
-    }
 }
@@ -276,7 +276,6 @@ private void appendDemographicsCols(final UserSchema us, AbstractTableInfo ti, C
                 Container targetContainer = us.getContainer().isWorkbookOrTab() ? us.getContainer().getParent() : us.getContainer();
                 TableInfo target = qd.getTableInfo(targetContainer, us.getUser());
 
-                //TODO: push this into LaboratoryService and also cache them?
                 if (target != null)
                 {
                     if (target.getUserSchema().getName().equalsIgnoreCase(ti.getUserSchema().getName()) && (target.getName().equalsIgnoreCase(ti.getName())))
@@ -296,7 +295,7 @@ private void appendDemographicsCols(final UserSchema us, AbstractTableInfo ti, C
                     col.setIsUnselectable(true);
                     col.setUserEditable(false);
 
-                    UserSchema targetSchema = qd.getTableInfo(targetContainer, us.getUser()).getUserSchema();
+                    UserSchema targetSchema = target.getUserSchema();
                     col.setFk(new QueryForeignKey(us, ti.getContainerFilter(), targetSchema, null, qd.getQueryName(), qd.getTargetColumn(), qd.getTargetColumn())
                     {
                         @Override